@@ -13,6 +13,7 @@ android {
 
     defaultConfig {
         minSdk = Build.minSdkVersion
+        testInstrumentationRunner = "androidx.test.runner.AndroidJUnitRunner"
     }
 
     configurations {
@@ -43,6 +44,9 @@ dependencies {
     implementation("com.1gravity:android-colorpicker:_")
     implementation("org.greenrobot:eventbus:_")
     implementation(AndroidX.appCompat)
+
+    androidTestImplementation("androidx.test:runner:_")
+    androidTestImplementation("androidx.test.ext:junit:_")
 }
 
 tasks {
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.text.Editable;
+import android.text.Spanned;
+import android.util.Log;
+import android.widget.EditText;
+import android.widget.TextView;
+
+import androidx.appcompat.widget.AppCompatEditText;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.onegravity.rteditor.api.RTApi;
+import com.onegravity.rteditor.api.RTMediaFactoryImpl;
+import com.onegravity.rteditor.api.format.RTFormat;
+import com.onegravity.rteditor.api.format.RTHtml;
+import com.onegravity.rteditor.api.media.RTAudio;
+import com.onegravity.rteditor.api.media.RTImage;
+import com.onegravity.rteditor.api.media.RTVideo;
+import com.onegravity.rteditor.spans.LinkSpan;
+import com.onegravity.rteditor.utils.DirtyRangeTracker;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Timing harness for the keystroke handling of the RTEditText (its TextWatcher and SpanWatcher
+ * methods and the undo recording).
+ * <p>
+ * Types into a document with 10 KB and one with 1 MB of html and compares the median time per
+ * keystroke. The time a plain EditText needs for the same keystroke on the same text is subtracted
+ * because the SpannableStringBuilder itself updates all spans on every change, that cost depends on
+ * the number of spans and isn't ours. The editors aren't attached to a window so layout and drawing
+ * aren't measured either.
+ * <p>
+ * Run it on a device with ./gradlew :RTEditor:connectedAndroidTest, the numbers are logged with the
+ * tag KeystrokeBenchmark.
+ */
+@RunWith(AndroidJUnit4.class)
+public class KeystrokeBenchmark {
+
+    private static final String TAG = "KeystrokeBenchmark";
+
+    private static final int SMALL_DOCUMENT = 10 * 1024;
+    private static final int LARGE_DOCUMENT = 1024 * 1024;
+
+    private static final int WARMUP_KEYSTROKES = 200;
+    private static final int MEASURED_KEYSTROKES = 1000;
+
+    /*
+     * The editor's time per keystroke may grow by this factor from the small to the large document
+     * (plus MAX_DIFFERENCE_NS to absorb the timer resolution and the noise of a device).
+     * Work proportional to the document length grows by a factor of 100.
+     */
+    private static final double MAX_RATIO = 2.0;
+    private static final long MAX_DIFFERENCE_NS = 50 * 1000;
+
+    @Test
+    public void keystrokeTimeIsIndependentOfDocumentLength() {
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        final Context context = instrumentation.getTargetContext();
+        new RTApi(context, null, null);
+
+        final long[] editorTimes = new long[2];
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                editorTimes[0] = measureEditorTime(context, SMALL_DOCUMENT);
+            }
+        });
+        instrumentation.runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                editorTimes[1] = measureEditorTime(context, LARGE_DOCUMENT);
+            }
+        });
+
+        String result = "Editor time per keystroke: " + editorTimes[0] + " ns (10 KB), " +
+                        editorTimes[1] + " ns (1 MB)";
+        Log.i(TAG, result);
+        assertTrue(result, editorTimes[1] <= editorTimes[0] * MAX_RATIO + MAX_DIFFERENCE_NS);
+    }
+
+    /**
+     * @return the median time per keystroke the RTEditText needs on top of a plain EditText in ns
+     */
+    private long measureEditorTime(Context context, int documentSize) {
+        String html = createDocument(documentSize);
+
+        Spanned spanned = (Spanned) new RTHtml<RTImage, RTAudio, RTVideo>(RTFormat.HTML, html)
+                .convertTo(RTFormat.SPANNED, null).getText();
+        EditText plain = new AppCompatEditText(context);
+        plain.setText(spanned, TextView.BufferType.EDITABLE);
+        long plainTime = measureKeystrokes(plain, null);
+
+        RTEditText editor = new RTEditText(context);
+        editor.register(new UndoListener(), new RTMediaFactoryImpl(context, false));
+        editor.setRichTextEditing(true, html);
+        long editorTime = measureKeystrokes(editor, editor.getDirtyRangeTracker());
+
+        Log.i(TAG, "Document with " + editor.length() + " characters: " +
+                   "EditText " + plainTime + " ns, RTEditText " + editorTime + " ns per keystroke");
+
+        return Math.max(0, editorTime - plainTime);
+    }
+
+    /**
+     * Type and delete a character in the middle of the text.
+     *
+     * @param tracker the editor's DirtyRangeTracker or Null for a plain EditText
+     *
+     * @return the median time per keystroke in ns
+     */
+    private long measureKeystrokes(EditText editText, DirtyRangeTracker tracker) {
+        Editable text = editText.getText();
+        int pos = text.length() / 2;
+        editText.setSelection(pos);
+
+        long[] times = new long[MEASURED_KEYSTROKES];
+        for (int i = -WARMUP_KEYSTROKES; i < MEASURED_KEYSTROKES; i++) {
+            long start = System.nanoTime();
+            if (i % 2 == 0) {
+                text.insert(pos, "a");
+            } else {
+                text.delete(pos, pos + 1);
+            }
+            if (tracker != null) {
+                // the editor posts this after every change, it never runs while the editor isn't attached
+                tracker.onTextChangeCompleted();
+            }
+            long time = System.nanoTime() - start;
+            if (i >= 0) {
+                times[i] = time;
+            }
+        }
+
+        Arrays.sort(times);
+        return times[MEASURED_KEYSTROKES / 2];
+    }
+
+    /**
+     * @return html with formatted paragraphs and bullet lists, at least size characters long
+     */
+    private String createDocument(int size) {
+        StringBuilder html = new StringBuilder(size + 256);
+        for (int paragraph = 0; html.length() < size; paragraph++) {
+            if (paragraph % 10 == 9) {
+                html.append("<ul><li>A bullet point with <u>underlined</u> text</li>")
+                    .append("<li>Another bullet point</li></ul>");
+            } else {
+                html.append("<p>Paragraph ").append(paragraph)
+                    .append(" with <b>bold</b>, <i>italic</i> and plain text to make it a bit longer.</p>");
+            }
+        }
+        return html.toString();
+    }
+
+    /*
+     * Records the changes like the RTManager does.
+     */
+    private static class UndoListener implements RTEditTextListener {
+        private final RTOperationManager mOPManager = new RTOperationManager();
+
+        @Override
+        public void onTextChanged(RTEditText editor, TextDelta delta,
+                                  int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter) {
+            mOPManager.executed(editor, new RTOperationManager.DeltaOperation(delta,
+                    selStartBefore, selEndBefore, selStartAfter, selEndAfter));
+        }
+
+        @Override
+        public void onRestoredInstanceState(RTEditText editor) {}
+
+        @Override
+        public void onFocusChanged(RTEditText editor, boolean focused) {}
+
+        @Override
+        public void onSelectionChanged(RTEditText editor, int start, int end) {}
+
+        @Override
+        public void onClick(RTEditText editor, LinkSpan span) {}
+
+        @Override
+        public void onRichTextEditingChanged(RTEditText editor, boolean useRichText) {}
+    }
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor;
+
+import android.content.Context;
+import android.text.Spanned;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.onegravity.rteditor.api.RTApi;
+import com.onegravity.rteditor.api.RTMediaFactory;
+import com.onegravity.rteditor.api.RTMediaFactoryImpl;
+import com.onegravity.rteditor.api.format.RTFormat;
+import com.onegravity.rteditor.api.format.RTHtml;
+import com.onegravity.rteditor.api.media.RTAudio;
+import com.onegravity.rteditor.api.media.RTImage;
+import com.onegravity.rteditor.api.media.RTVideo;
+import com.onegravity.rteditor.converter.ConverterSpannedToHtml;
+import com.onegravity.rteditor.spans.BoldSpan;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that splitting a document into chunks and joining them again doesn't change the document.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RTChunkedDocumentTest {
+
+    // the bold and the colored text cross the chunk boundaries (a chunk per paragraph)
+    private static final String HTML =
+            "First <b>bold<br/>still bold</b> and <font style=\"color:#ff0000\">red<br/>" +
+            "red again<br/>and red</font> done";
+
+    // an image that doesn't exist and one that is a directory
+    private static final String HTML_WITH_MISSING_IMAGES =
+            "Before <img src=\"/does/not/exist.png\"> between <img src=\"%s\"> after<br/>second paragraph";
+
+    private Context mContext;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        new RTApi(mContext, null, null);
+    }
+
+    @Test
+    public void richTextOfChunksEqualsSource() {
+        assertRichTextEqualsSource(false);
+    }
+
+    @Test
+    public void richTextOfLazyChunksEqualsSource() {
+        assertRichTextEqualsSource(true);
+    }
+
+    @Test
+    public void chunksDontShareSpans() {
+        RTChunkedDocument document = new RTChunkedDocument(createHtml(), null, 1, false);
+        assertTrue(document.getChunkCount() > 1);
+
+        Spanned first = document.getChunk(0).getText();
+        Spanned second = document.getChunk(1).getText();
+        BoldSpan[] firstSpans = first.getSpans(0, first.length(), BoldSpan.class);
+        BoldSpan[] secondSpans = second.getSpans(0, second.length(), BoldSpan.class);
+        assertEquals(1, firstSpans.length);
+        assertEquals(1, secondSpans.length);
+        assertNotSame(firstSpans[0], secondSpans[0]);
+    }
+
+    @Test
+    public void lazyLoadingDropsMissingImagesLikeEagerLoading() {
+        RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory = new RTMediaFactoryImpl(mContext, false);
+        String html = String.format(HTML_WITH_MISSING_IMAGES, mContext.getFilesDir().getAbsolutePath());
+
+        RTChunkedDocument eager = new RTChunkedDocument(new RTHtml<RTImage, RTAudio, RTVideo>(RTFormat.HTML, html),
+                                                        mediaFactory, 1, false);
+        RTChunkedDocument lazy = new RTChunkedDocument(new RTHtml<RTImage, RTAudio, RTVideo>(RTFormat.HTML, html),
+                                                       mediaFactory, 1, true);
+
+        String expected = eager.getSpanned().toString();
+        assertEquals(-1, expected.indexOf('\uFFFC'));
+        assertEquals(expected, lazy.getSpanned().toString());
+        assertEquals(expected.length(), lazy.length());
+        assertEquals(eager.getRichText(RTFormat.HTML, mediaFactory).getText(),
+                     lazy.getRichText(RTFormat.HTML, mediaFactory).getText());
+    }
+
+    private void assertRichTextEqualsSource(boolean lazySpans) {
+        // the source as the converter writes it (the converter normalizes the html)
+        Spanned source = RTChunkedDocument.toSpanned(createHtml(), null);
+        String expected = new ConverterSpannedToHtml().convert(source, RTFormat.HTML).getText();
+
+        RTChunkedDocument document = new RTChunkedDocument(createHtml(), null, 1, lazySpans);
+        assertTrue(document.getChunkCount() > 1);
+
+        assertEquals(expected, document.getRichText(RTFormat.HTML, null).getText().toString());
+    }
+
+    private static RTHtml<RTImage, RTAudio, RTVideo> createHtml() {
+        return new RTHtml<RTImage, RTAudio, RTVideo>(RTFormat.HTML, HTML);
+    }
+
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.onegravity.rteditor.RTOperationManager.DeltaOperation;
+import com.onegravity.rteditor.api.RTApi;
+import com.onegravity.rteditor.api.RTMediaFactory;
+import com.onegravity.rteditor.api.RTMediaFactoryImpl;
+import com.onegravity.rteditor.api.format.RTFormat;
+import com.onegravity.rteditor.api.media.RTAudio;
+import com.onegravity.rteditor.api.media.RTImage;
+import com.onegravity.rteditor.api.media.RTVideo;
+import com.onegravity.rteditor.converter.SpanCodec;
+import com.onegravity.rteditor.spans.LinkSpan;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the crash recovery of the RTJournal: the journal is written while editing, then it's
+ * replayed into a new editor like after the process was killed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class RTJournalTest {
+
+    private static final String HTML = "Hello <b>bold</b> world";
+
+    private Context mContext;
+    private RTMediaFactory<RTImage, RTAudio, RTVideo> mMediaFactory;
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        new RTApi(mContext, null, null);
+        mMediaFactory = new RTMediaFactoryImpl(mContext, false);
+        mFile = new File(mContext.getCacheDir(), "RTJournalTest.journal");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void replayRestoresTextAndUndoHistory() {
+        runOnUiThread(() -> {
+            Session session = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            List<String> states = session.type(" one", " two", " three");
+            session.close();
+
+            Session replayed = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            assertTrue(replayed.mRestored);
+            assertEquals(states.get(3), replayed.getHtml());
+
+            // every change is an undo step of its own (see Session.onTextChanged)
+            replayed.mOPManager.undo(replayed.mEditor);
+            assertEquals(states.get(2), replayed.getHtml());
+            replayed.mOPManager.undo(replayed.mEditor);
+            assertEquals(states.get(1), replayed.getHtml());
+            replayed.mOPManager.redo(replayed.mEditor);
+            assertEquals(states.get(2), replayed.getHtml());
+            replayed.close();
+        });
+    }
+
+    @Test
+    public void replayRestoresUndoAndRedo() {
+        runOnUiThread(() -> {
+            Session session = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            List<String> states = session.type(" one", " two", " three");
+            session.mOPManager.undo(session.mEditor);
+            session.mOPManager.undo(session.mEditor);
+            session.mOPManager.redo(session.mEditor);
+            assertEquals(states.get(2), session.getHtml());
+            session.close();
+
+            Session replayed = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            assertEquals(states.get(2), replayed.getHtml());
+            replayed.mOPManager.redo(replayed.mEditor);
+            assertEquals(states.get(3), replayed.getHtml());
+            replayed.close();
+        });
+    }
+
+    @Test
+    public void truncatedRecordIsDropped() {
+        runOnUiThread(() -> {
+            Session session = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            List<String> states = session.type(" one", " two", " three");
+            session.close();
+
+            // the process died while the last record was written (its CRC is missing)
+            long length = awaitJournal();
+            setLength(length - 2);
+
+            Session replayed = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            assertTrue(replayed.mRestored);
+            assertEquals(states.get(2), replayed.getHtml());
+            replayed.close();
+
+            // the partial record was cut off, the journal continues after the last valid record
+            Session continued = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            assertEquals(states.get(2), continued.getHtml());
+            continued.close();
+        });
+    }
+
+    @Test
+    public void recordFailingCrcIsDropped() {
+        runOnUiThread(() -> {
+            Session session = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            List<String> states = session.type(" one", " two", " three");
+            session.close();
+
+            // corrupt the last byte of the last record's data (the CRC takes the last 4 bytes)
+            long length = awaitJournal();
+            flipByte(length - 5);
+
+            Session replayed = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            assertTrue(replayed.mRestored);
+            assertEquals(states.get(2), replayed.getHtml());
+            replayed.close();
+        });
+    }
+
+    @Test
+    public void corruptHeaderIsIgnored() {
+        runOnUiThread(() -> {
+            Session session = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            session.type(" one");
+            session.close();
+
+            awaitJournal();
+            flipByte(0);
+
+            Session replayed = new Session(RTJournal.CHECKPOINT_INTERVAL);
+            assertFalse(replayed.mRestored);
+            replayed.close();
+        });
+    }
+
+    @Test
+    public void replayAcrossCheckpointsAndCompaction() {
+        runOnUiThread(() -> {
+            // a checkpoint every 2 records: the journal is compacted several times
+            Session session = new Session(2);
+            List<String> states = session.type(" one", " two", " three", " four", " five");
+            session.mOPManager.undo(session.mEditor);
+            states.addAll(session.type(" six", " seven"));
+            String expected = session.getHtml();
+            session.close();
+
+            Session replayed = new Session(2);
+            assertTrue(replayed.mRestored);
+            assertEquals(expected, replayed.getHtml());
+
+            // the history after the first checkpoint left by the compaction is restored
+            replayed.mOPManager.undo(replayed.mEditor);
+            assertEquals(states.get(states.size() - 2), replayed.getHtml());
+            replayed.close();
+        });
+    }
+
+    // ****************************************** Helpers *******************************************
+
+    /**
+     * An editor with its undo/redo history writing to the journal file (replaying it first if it exists),
+     * like RTManager.openJournal does.
+     */
+    private class Session implements RTEditTextListener {
+        private final RTEditText mEditor;
+        private final RTOperationManager mOPManager = new RTOperationManager();
+        private final boolean mRestored;
+        private long mTimestamp = 1000000;
+
+        Session(int checkpointInterval) {
+            mEditor = new RTEditText(mContext);
+            mEditor.register(this, mMediaFactory);
+            mEditor.setRichTextEditing(true, HTML);
+
+            RTJournal journal = new RTJournal(mFile, new SpanCodec(mMediaFactory), checkpointInterval);
+            mRestored = journal.replay(mEditor, mOPManager);
+            if (!mRestored) {
+                mOPManager.flushOperations(mEditor);
+            }
+            assertTrue(journal.open());
+            mOPManager.setJournal(mEditor, journal);
+        }
+
+        /**
+         * Append the texts one after the other.
+         *
+         * @return the html before the first text was appended and after each one
+         */
+        List<String> type(String... texts) {
+            List<String> states = new ArrayList<>();
+            states.add(getHtml());
+            for (String text : texts) {
+                mEditor.getText().append(text);
+                states.add(getHtml());
+            }
+            return states;
+        }
+
+        String getHtml() {
+            return mEditor.getText(RTFormat.HTML);
+        }
+
+        /**
+         * Stop writing the journal, the file is kept (like after the process was killed).
+         */
+        void close() {
+            mOPManager.setJournal(mEditor, null);
+            mEditor.unregister();
+        }
+
+        @Override
+        public void onTextChanged(RTEditText editor, TextDelta delta,
+                                  int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter) {
+            // the changes are far enough apart not to be merged into one undo step
+            mTimestamp += 1000;
+            mOPManager.executed(editor, new DeltaOperation(delta, mTimestamp,
+                    selStartBefore, selEndBefore, selStartAfter, selEndAfter));
+        }
+
+        @Override
+        public void onRestoredInstanceState(RTEditText editor) {}
+
+        @Override
+        public void onFocusChanged(RTEditText editor, boolean focused) {}
+
+        @Override
+        public void onSelectionChanged(RTEditText editor, int start, int end) {}
+
+        @Override
+        public void onClick(RTEditText editor, LinkSpan span) {}
+
+        @Override
+        public void onRichTextEditingChanged(RTEditText editor, boolean useRichText) {}
+    }
+
+    /**
+     * @return the length of the journal file once all pending records are written
+     */
+    private long awaitJournal() {
+        RTJournal.awaitWriter();
+        return mFile.length();
+    }
+
+    private void setLength(long length) {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.setLength(length);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void flipByte(long position) {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Run the test on the ui thread (needed for the editors) and report its failure on the test thread.
+     */
+    private static void runOnUiThread(Runnable test) {
+        final Throwable[] failure = new Throwable[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            try {
+                test.run();
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        });
+        if (failure[0] instanceof Error) {
+            throw (Error) failure[0];
+        } else if (failure[0] != null) {
+            throw new RuntimeException(failure[0]);
+        }
+    }
+
+}
@@ -17,6 +17,7 @@
 package com.onegravity.rteditor;
 
 import android.text.SpannableString;
+import android.text.NoCopySpan;
 import android.text.Spanned;
 import android.text.style.CharacterStyle;
 import android.text.style.ParagraphStyle;
@@ -59,7 +60,7 @@ public class ClonedSpannableString extends SpannableString {
         if (source instanceof Spanned) {
             Spanned sp = (Spanned) source;
             for (Object span : sp.getSpans(start, end, Object.class)) {
-                if (span instanceof CharacterStyle || span instanceof ParagraphStyle) {
+                if ((span instanceof CharacterStyle || span instanceof ParagraphStyle) && !(span instanceof NoCopySpan)) {
                     int st = sp.getSpanStart(span);
                     int en = sp.getSpanEnd(span);
                     int fl = sp.getSpanFlags(span);
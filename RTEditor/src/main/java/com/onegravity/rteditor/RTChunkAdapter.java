@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+
+import androidx.core.view.ViewCompat;
+
+/**
+ * A ListAdapter showing the chunks of an RTChunkedDocument in recycled RTEditTexts.
+ * <p>
+ * The editors are created on demand (see createEditor(Context)) and registered with the RTManager,
+ * a recycled editor is re-bound to the chunk it has to show next.
+ */
+public class RTChunkAdapter extends BaseAdapter {
+
+    private final RTManager mRTManager;
+    private final RTChunkedDocument mDocument;
+
+    public RTChunkAdapter(RTManager rtManager, RTChunkedDocument document) {
+        mRTManager = rtManager;
+        mDocument = document;
+    }
+
+    public RTChunkedDocument getDocument() {
+        return mDocument;
+    }
+
+    @Override
+    public int getCount() {
+        return mDocument.getChunkCount();
+    }
+
+    @Override
+    public RTChunkedDocument.Chunk getItem(int position) {
+        return mDocument.getChunk(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mDocument.getChunk(position).getId();
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        RTEditText editor = (RTEditText) convertView;
+        if (editor == null) {
+            editor = createEditor(parent.getContext());
+            // the RTManager identifies its editors by id
+            editor.setId(ViewCompat.generateViewId());
+            mRTManager.registerEditor(editor, true);
+        }
+        mDocument.bind(editor, position);
+        return editor;
+    }
+
+    /**
+     * Override this to create editors with a specific style.
+     */
+    protected RTEditText createEditor(Context context) {
+        return new RTEditText(context);
+    }
+
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor;
+
+import android.text.NoCopySpan;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import com.onegravity.rteditor.api.RTMediaFactory;
+import com.onegravity.rteditor.api.format.RTFormat;
+import com.onegravity.rteditor.api.format.RTHtml;
+import com.onegravity.rteditor.api.format.RTPlainText;
+import com.onegravity.rteditor.api.format.RTText;
+import com.onegravity.rteditor.api.media.RTAudio;
+import com.onegravity.rteditor.api.media.RTImage;
+import com.onegravity.rteditor.api.media.RTMedia;
+import com.onegravity.rteditor.api.media.RTVideo;
+import com.onegravity.rteditor.converter.ConverterHtmlToSpanned;
+import com.onegravity.rteditor.converter.ConverterSpannedToHtml;
+import com.onegravity.rteditor.converter.ImagePlaceholderSpan;
+import com.onegravity.rteditor.converter.SpanCodec;
+import com.onegravity.rteditor.effects.SpanCompactor;
+import com.onegravity.rteditor.metrics.RTMetrics;
+import com.onegravity.rteditor.metrics.RTMetrics.Phase;
+import com.onegravity.rteditor.spans.MediaSpan;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A large document split into paragraph aligned chunks.
+ * <p>
+ * Each chunk is edited in its own RTEditText, usually a recycled view of a ListView (see RTChunkAdapter),
+ * so only the visible chunks are laid out. The document is converted as a whole (getRichText)
+ * and the undo/redo history is kept by chunk, independent of the editor showing the chunk.
+ * <p>
+ * Chunks aren't re-split while editing, a chunk that grows large stays one chunk.
+ * <p>
+ * With lazy spans the chunks that aren't shown in an editor don't keep any span objects.
+ * Their formatting is kept in a compact run table (the spans encoded by SpanCodec) and the spans
+ * (including media spans) are created only when the chunk is shown in an editor. The images aren't
+ * even created while the document is loaded, the converter leaves placeholders the SpanCodec
+ * encodes (see ConverterHtmlToSpanned.convert(RTHtml, RTMediaFactory, boolean)).
+ * <p>
+ * The document keeps track of its media (not the editors showing its chunks), call
+ * onDestroy(boolean) to delete the media files that aren't needed any longer. RTManager.onDestroy
+ * does this for the documents shown in its editors.
+ */
+public class RTChunkedDocument {
+
+    /*
+     * Default minimum size of a chunk (in characters), a chunk ends with the first paragraph
+     * ending after this size
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    /**
+     * A paragraph aligned part of the document.
+     */
+    public static final class Chunk {
+        private final long mId;
+
+        // used to encode/decode the spans if the spans are created lazily, Null otherwise
+        private final SpanCodec mCodec;
+
+        // the text of the chunk while it's not shown in an editor
+        private Spanned mText;
+
+        // lazy spans: the text and the encoded spans while it's not shown in an editor
+        private String mString;
+        private byte[] mRuns;
+
+        // the editor showing the chunk or Null
+        private RTEditText mEditor;
+
+        private Chunk(long id, SpanCodec codec) {
+            mId = id;
+            mCodec = codec;
+        }
+
+        /**
+         * @return an id that is unique within the document
+         */
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * @return the current text of the chunk (the editor's text if the chunk is shown in an editor).
+         * With lazy spans and if the chunk isn't shown in an editor this creates a new text
+         * with new spans each time it's called.
+         */
+        public Spanned getText() {
+            return mEditor != null ? mEditor.getText() : materialize();
+        }
+
+        public int length() {
+            return mEditor != null ? mEditor.length() : mText != null ? mText.length() : mString.length();
+        }
+
+        /**
+         * @return the editor showing this chunk or Null if the chunk isn't shown in an editor
+         */
+        public RTEditText getEditor() {
+            return mEditor;
+        }
+
+        private void store(Spanned text) {
+            if (mCodec == null) {
+                mText = text;
+            } else {
+                store(text, 0, text.length());
+            }
+        }
+
+        private void store(Spanned text, int start, int end) {
+            if (mCodec == null) {
+                mText = copy(text, start, end);
+                return;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                mCodec.writeSpans(new DataOutputStream(bytes), text, start, end);
+            } catch (IOException e) {
+                // We are writing to a byte array. There should not be IO problems.
+                throw new RuntimeException(e);
+            }
+            mString = text.subSequence(start, end).toString();
+            mRuns = bytes.toByteArray();
+            mText = null;
+        }
+
+        private Spanned materialize() {
+            if (mText != null) {
+                return mText;
+            }
+            SpannableStringBuilder text = new SpannableStringBuilder();
+            appendTo(text);
+            return text;
+        }
+
+        private void appendTo(SpannableStringBuilder document) {
+            if (mText != null) {
+                document.append(mText);
+                return;
+            }
+
+            int offset = document.length();
+            document.append(mString);
+            try {
+                mCodec.readSpans(new DataInputStream(new ByteArrayInputStream(mRuns)), document, offset);
+            } catch (IOException e) {
+                // We are reading from a byte array. There should not be IO problems.
+                throw new RuntimeException(e);
+            }
+
+            if (removeMissingMedia(document, offset)) {
+                // keep the text without the removed characters so the chunk's length matches its text
+                store(document, offset, document.length());
+            }
+        }
+
+        /*
+         * Remove the object replacement characters of media that couldn't be created (e.g. because
+         * the file is missing) like ConverterHtmlToSpanned does when the media aren't deferred.
+         * Otherwise saving the document would write them to the html.
+         */
+        private boolean removeMissingMedia(SpannableStringBuilder document, int offset) {
+            boolean removed = false;
+            for (int i = mString.lastIndexOf('\uFFFC'); i >= 0; i = mString.lastIndexOf('\uFFFC', i - 1)) {
+                int pos = offset + i;
+                if (document.getSpans(pos, pos + 1, MediaSpan.class).length == 0) {
+                    document.delete(pos, pos + 1);
+                    removed = true;
+                }
+            }
+            return removed;
+        }
+
+        private void release() {
+            mText = null;
+            mString = null;
+            mRuns = null;
+        }
+    }
+
+    private final List<Chunk> mChunks = new ArrayList<>();
+
+    // the chunks by the editors showing them
+    private final Map<RTEditText, Chunk> mBoundChunks = new WeakHashMap<>();
+
+    /*
+     * The media of the document when it was created and the media added since, by file path
+     * (lazy spans create new media objects each time a chunk is shown).
+     */
+    private final Map<String, RTMedia> mOriginalMedia = new HashMap<>();
+    private final Map<String, RTMedia> mAddedMedia = new HashMap<>();
+    // the original images that weren't created yet (lazy spans), they're resolved in onDestroy
+    private final List<ImagePlaceholderSpan> mOriginalPlaceholders = new ArrayList<>();
+    private final SpanCodec mCodec;
+
+    public RTChunkedDocument(RTText rtText, RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory) {
+        this(rtText, mediaFactory, DEFAULT_CHUNK_SIZE, false);
+    }
+
+    /**
+     * @param rtText    The document in RTFormat.HTML or RTFormat.PLAIN_TEXT
+     * @param chunkSize The minimum size of a chunk (in characters)
+     * @param lazySpans True to create the spans of a chunk only when it's shown in an editor
+     */
+    public RTChunkedDocument(RTText rtText, RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory,
+                             int chunkSize, boolean lazySpans) {
+        this(toSpanned(rtText, mediaFactory, lazySpans), chunkSize, lazySpans ? new SpanCodec(mediaFactory) : null);
+    }
+
+    public RTChunkedDocument(Spanned text, int chunkSize) {
+        this(text, chunkSize, null);
+    }
+
+    /**
+     * @param codec The SpanCodec to encode and decode the spans if they are created lazily, Null otherwise
+     */
+    public RTChunkedDocument(Spanned text, int chunkSize, SpanCodec codec) {
+        mCodec = codec;
+        collectMedia(text, mOriginalMedia);
+        if (codec != null) {
+            for (ImagePlaceholderSpan span : text.getSpans(0, text.length(), ImagePlaceholderSpan.class)) {
+                mOriginalPlaceholders.add(span);
+            }
+        }
+
+        chunkSize = Math.max(1, chunkSize);
+        int length = text.length();
+        String string = text.toString();
+        int start = 0;
+        do {
+            int end = start + chunkSize >= length ? length : string.indexOf('\n', start + chunkSize - 1);
+            end = end < 0 ? length : Math.min(length, end + 1);
+            Chunk chunk = new Chunk(mChunks.size(), codec);
+            chunk.store(text, start, end);
+            mChunks.add(chunk);
+            start = end;
+        } while (start < length);
+    }
+
+    static Spanned toSpanned(RTText rtText, RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory) {
+        return toSpanned(rtText, mediaFactory, false);
+    }
+
+    /**
+     * @param deferMedia True to convert images to ImagePlaceholderSpans (the text needs to be
+     *                   encoded by a SpanCodec before it's shown)
+     */
+    static Spanned toSpanned(RTText rtText, RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory, boolean deferMedia) {
+        if (rtText.getFormat() instanceof RTFormat.Html) {
+            long token = RTMetrics.begin(Phase.CONVERSION);
+            try {
+                if (deferMedia) {
+                    RTHtml<RTImage, RTAudio, RTVideo> html = (RTHtml<RTImage, RTAudio, RTVideo>) rtText;
+                    return (Spanned) new ConverterHtmlToSpanned().convert(html, mediaFactory, true).getText();
+                }
+                return (Spanned) rtText.convertTo(RTFormat.SPANNED, mediaFactory).getText();
+            } finally {
+                RTMetrics.end(Phase.CONVERSION, token);
+            }
+        }
+        CharSequence text = rtText.getText();
+        return new SpannableString(text == null ? "" : text.toString());
+    }
+
+    // ****************************************** Chunks *******************************************
+
+    public int getChunkCount() {
+        return mChunks.size();
+    }
+
+    public Chunk getChunk(int index) {
+        return mChunks.get(index);
+    }
+
+    /**
+     * @return the position of the chunk's first character in the document
+     */
+    public int getChunkStart(int index) {
+        int start = 0;
+        for (int i = 0; i < index; i++) {
+            start += mChunks.get(i).length();
+        }
+        return start;
+    }
+
+    /**
+     * @return the index of the chunk containing the character at a specific position of the document
+     */
+    public int getChunkIndex(int offset) {
+        int start = 0;
+        for (int i = 0, count = mChunks.size(); i < count; i++) {
+            start += mChunks.get(i).length();
+            if (offset < start) {
+                return i;
+            }
+        }
+        return mChunks.size() - 1;
+    }
+
+    /**
+     * @return the length of the whole document
+     */
+    public int length() {
+        int length = 0;
+        for (Chunk chunk : mChunks) {
+            length += chunk.length();
+        }
+        return length;
+    }
+
+    // ****************************************** Editors *******************************************
+
+    /**
+     * Show a chunk in an editor.
+     * The chunk the editor showed before and the editor the chunk was shown in before are unbound.
+     * The editor needs to be registered with the RTManager.
+     */
+    public void bind(RTEditText editor, int index) {
+        Chunk chunk = mChunks.get(index);
+        if (chunk.mEditor == editor) {
+            return;
+        }
+
+        unbind(editor);
+        if (chunk.mEditor != null) {
+            unbind(chunk.mEditor);
+        }
+
+        editor.setChunk(chunk.materialize(), chunk, this);
+        chunk.mEditor = editor;
+        chunk.release();
+        mBoundChunks.put(editor, chunk);
+    }
+
+    /**
+     * Stop showing a chunk in an editor, the chunk keeps a copy of the editor's text.
+     */
+    public void unbind(RTEditText editor) {
+        Chunk chunk = mBoundChunks.remove(editor);
+        if (chunk != null) {
+            chunk.store(snapshot(editor));
+            chunk.mEditor = null;
+        }
+    }
+
+    // ****************************************** Media *******************************************
+
+    /**
+     * A media was added to one of the chunks (see RTEditText.onAddMedia).
+     */
+    void onAddMedia(RTMedia media) {
+        mAddedMedia.put(media.getFilePath(RTFormat.SPANNED), media);
+    }
+
+    /**
+     * Delete the media files that aren't needed any longer, like RTManager.onDestroy(boolean) does
+     * for editors with a text of their own. The whole document is compared, a media is never
+     * deleted just because the chunk using it isn't shown.
+     *
+     * @param isSaved True if the document is saved, False if it's dismissed
+     */
+    public void onDestroy(boolean isSaved) {
+        for (ImagePlaceholderSpan span : mOriginalPlaceholders) {
+            RTMedia media = mCodec.createImage(span);
+            if (media != null) {
+                mOriginalMedia.put(media.getFilePath(RTFormat.SPANNED), media);
+            }
+        }
+        mOriginalPlaceholders.clear();
+
+        Map<String, RTMedia> currentMedia = new HashMap<>();
+        collectMedia(getSpanned(), currentMedia);
+
+        Map<String, RTMedia> media2Delete = new HashMap<>(isSaved ? mOriginalMedia : currentMedia);
+        media2Delete.putAll(mAddedMedia);
+        Map<String, RTMedia> media2Keep = isSaved ? currentMedia : mOriginalMedia;
+        for (Map.Entry<String, RTMedia> entry : media2Delete.entrySet()) {
+            if (!media2Keep.containsKey(entry.getKey())) {
+                entry.getValue().remove();
+            }
+        }
+        mAddedMedia.clear();
+    }
+
+    private static void collectMedia(Spanned text, Map<String, RTMedia> media) {
+        for (MediaSpan span : text.getSpans(0, text.length(), MediaSpan.class)) {
+            RTMedia spanMedia = span.getMedia();
+            media.put(spanMedia.getFilePath(RTFormat.SPANNED), spanMedia);
+        }
+    }
+
+    /*
+     * Copy a part of the text with its spans. A span crossing the start or the end of the part is
+     * replaced by a copy clipped to the part (encoded and decoded by a SpanCodec). A span object
+     * can be attached to one chunk only, appending both chunks to one text (see getSpanned) would
+     * move the span and the first chunk would lose its formatting.
+     */
+    private static Spanned copy(Spanned text, int start, int end) {
+        SpannableStringBuilder copy = new SpannableStringBuilder(text.subSequence(start, end).toString());
+        SpanCodec codec = null;
+        for (Object span : text.getSpans(start, end, Object.class)) {
+            if (span instanceof NoCopySpan) {
+                continue;
+            }
+
+            int spanStart = text.getSpanStart(span);
+            int spanEnd = text.getSpanEnd(span);
+            int flags = text.getSpanFlags(span);
+            if (spanStart == end && spanEnd == end && end < text.length()) {
+                // an empty span at the boundary belongs to the next chunk
+                continue;
+            }
+
+            if (start <= spanStart && spanEnd <= end) {
+                copy.setSpan(span, spanStart - start, spanEnd - start, flags);
+                continue;
+            }
+
+            // media spans cover a single character and never cross a paragraph boundary
+            codec = codec == null ? new SpanCodec(null) : codec;
+            if (codec.canEncode(span)) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try {
+                    codec.writeSpan(new DataOutputStream(bytes), span,
+                                    Math.max(start, spanStart) - start, Math.min(end, spanEnd) - start, flags);
+                    codec.readSpan(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), copy, 0);
+                } catch (IOException e) {
+                    // We are writing to and reading from a byte array. There should not be IO problems.
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return copy;
+    }
+
+    private static Spanned snapshot(RTEditText editor) {
+        editor.compactSpans(false);
+        editor.cleanupParagraphs(false);
+        return new ClonedSpannableString(editor.getText());
+    }
+
+    // ****************************************** Conversion *******************************************
+
+    /**
+     * @return the whole document as one text (only the formatting spans are copied from the editors)
+     */
+    public Spanned getSpanned() {
+        SpannableStringBuilder document = new SpannableStringBuilder();
+        List<Integer> boundaries = new ArrayList<>();
+        for (Chunk chunk : mChunks) {
+            if (document.length() > 0) {
+                boundaries.add(document.length());
+            }
+            if (chunk.mEditor == null) {
+                chunk.appendTo(document);
+            } else {
+                document.append(snapshot(chunk.mEditor));
+            }
+        }
+
+        // character spans that were split at the chunk boundaries are merged again
+        SpanCompactor compactor = new SpanCompactor();
+        for (int boundary : boundaries) {
+            compactor.compact(document, boundary, boundary);
+        }
+
+        return document;
+    }
+
+    /**
+     * Same as RTEditText.getRichText(RTFormat) for the whole document.
+     *
+     * @param format RTFormat.HTML or RTFormat.PLAIN_TEXT
+     */
+    public RTText getRichText(RTFormat format, RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory) {
+        if (format instanceof RTFormat.Html) {
+            return new ConverterSpannedToHtml().convert(getSpanned(), (RTFormat.Html) format);
+        } else if (format instanceof RTFormat.PlainText) {
+            RTHtml<RTImage, RTAudio, RTVideo> rtHtml = new ConverterSpannedToHtml().convert(getSpanned(), RTFormat.HTML);
+            RTText rtText = rtHtml.convertTo(RTFormat.PLAIN_TEXT, mediaFactory);
+            return new RTPlainText(rtText.getText());
+        }
+        throw new UnsupportedOperationException("Can't convert the document to " + format.getClass().getSimpleName());
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor;
+
+import android.content.ClipData;
+import android.content.ClipDescription;
+import android.content.ClipboardManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import com.onegravity.rteditor.api.RTMediaFactory;
+import com.onegravity.rteditor.api.format.RTFormat;
+import com.onegravity.rteditor.api.media.RTAudio;
+import com.onegravity.rteditor.api.media.RTImage;
+import com.onegravity.rteditor.api.media.RTVideo;
+import com.onegravity.rteditor.converter.ConverterSpannedToHtml;
+import com.onegravity.rteditor.converter.SpanCodec;
+import com.onegravity.rteditor.utils.Selection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Copy and paste of rich text between RTEditTexts of the same process.
+ * <p>
+ * Copying keeps the text and its spans encoded by SpanCodec (a compact run table). The platform
+ * clipboard gets the plain text right away and a label identifying the copy. Pasting a clip with
+ * that label decodes the spans directly, there is no conversion to and from HTML.
+ * <p>
+ * For other apps the HTML version of the copied text is created on a background thread
+ * and added to the platform clipboard when it's ready.
+ */
+public final class RTClipboard {
+
+    private static final String LABEL_PREFIX = "RTEditor clip ";
+
+    private static Executor sExecutor;
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    // the last copied text (only one at a time, like the platform clipboard)
+    private static String sLabel;
+    private static String sText;
+    private static byte[] sRuns;
+    private static int sSerial;
+
+    private RTClipboard() {}
+
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "RTClipboard");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        }
+        return sExecutor;
+    }
+
+    // ****************************************** Copy *******************************************
+
+    /**
+     * Copy a range of the editor's text to the clipboard.
+     */
+    static void copy(RTEditText editor, int start, int end, RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory) {
+        ClipboardManager clipboard = getClipboard(editor);
+        if (clipboard == null || start >= end) {
+            return;
+        }
+
+        Spanned text = editor.getText();
+        SpanCodec codec = new SpanCodec(mediaFactory);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            codec.writeSpans(new DataOutputStream(bytes), text, start, end);
+        } catch (IOException e) {
+            // We are writing to a byte array. There should not be IO problems.
+            throw new RuntimeException(e);
+        }
+
+        final String label = LABEL_PREFIX + (++sSerial);
+        final String plainText = text.subSequence(start, end).toString();
+        final byte[] runs = bytes.toByteArray();
+        sLabel = label;
+        sText = plainText;
+        sRuns = runs;
+        clipboard.setPrimaryClip(ClipData.newPlainText(label, plainText));
+
+        // the HTML version is only needed by other apps
+        getExecutor().execute(() -> {
+            Spanned copy = materialize(codec, plainText, runs);
+            final String html = new ConverterSpannedToHtml().convert(copy, RTFormat.HTML).getText().toString();
+            sHandler.post(() -> {
+                if (label.equals(sLabel) && isOwnClip(clipboard.getPrimaryClip())) {
+                    clipboard.setPrimaryClip(ClipData.newHtmlText(label, plainText, html));
+                }
+            });
+        });
+    }
+
+    // ****************************************** Paste *******************************************
+
+    /**
+     * Paste the clipboard content if it was copied by copy(), replacing the selection.
+     *
+     * @return False if the clipboard content wasn't copied by this process (or was changed since)
+     */
+    static boolean paste(RTEditText editor, RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory) {
+        ClipboardManager clipboard = getClipboard(editor);
+        ClipData clip = clipboard == null ? null : clipboard.getPrimaryClip();
+        if (!isOwnClip(clip)) {
+            return false;
+        }
+
+        final Spanned copy = materialize(new SpanCodec(mediaFactory), sText, sRuns);
+        final Editable text = editor.getText();
+        final int start = Math.max(0, Math.min(editor.getSelectionStart(), editor.getSelectionEnd()));
+        final int end = Math.max(0, Math.max(editor.getSelectionStart(), editor.getSelectionEnd()));
+
+        // the pasted paragraphs are cleaned up as part of the change
+        editor.performChange(getParagraphs(text, start, end), () -> {
+            text.replace(start, end, copy);
+            editor.cleanupParagraphs(false);
+            editor.setSelection(start + copy.length());
+        });
+        return true;
+    }
+
+    // ****************************************** Helpers *******************************************
+
+    private static boolean isOwnClip(ClipData clip) {
+        if (clip == null || sLabel == null || clip.getItemCount() == 0) {
+            return false;
+        }
+        ClipDescription description = clip.getDescription();
+        CharSequence label = description == null ? null : description.getLabel();
+        CharSequence text = clip.getItemAt(0).getText();
+        return label != null && sLabel.contentEquals(label) && text != null && sText.contentEquals(text);
+    }
+
+    private static Spanned materialize(SpanCodec codec, String text, byte[] runs) {
+        SpannableStringBuilder copy = new SpannableStringBuilder(text);
+        try {
+            codec.readSpans(new DataInputStream(new ByteArrayInputStream(runs)), copy, 0);
+        } catch (IOException e) {
+            // We are reading from a byte array. There should not be IO problems.
+            throw new RuntimeException(e);
+        }
+        return copy;
+    }
+
+    private static Selection getParagraphs(CharSequence text, int start, int end) {
+        while (start > 0 && text.charAt(start - 1) != '\n') {
+            start--;
+        }
+        while (end < text.length() && text.charAt(end) != '\n') {
+            end++;
+        }
+        return new Selection(start, end);
+    }
+
+    private static ClipboardManager getClipboard(RTEditText editor) {
+        return (ClipboardManager) editor.getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+    }
+
+}
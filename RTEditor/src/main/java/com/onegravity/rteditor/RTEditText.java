@@ -16,8 +16,11 @@
 
 package com.onegravity.rteditor;
 
+import android.content.ClipData;
+import android.content.ClipboardManager;
 import android.content.Context;
 import android.graphics.Rect;
+import android.os.Build;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.Editable;
@@ -25,6 +28,7 @@ import android.text.SpanWatcher;
 import android.text.Spannable;
 import android.text.Spanned;
 import android.text.TextWatcher;
+import android.text.style.CharacterStyle;
 import android.text.style.ParagraphStyle;
 import android.util.AttributeSet;
 import android.widget.EditText;
@@ -41,13 +45,24 @@ import com.onegravity.rteditor.api.media.RTImage;
 import com.onegravity.rteditor.api.media.RTMedia;
 import com.onegravity.rteditor.api.media.RTVideo;
 import com.onegravity.rteditor.effects.Effect;
+import com.onegravity.rteditor.effects.EffectBatch;
 import com.onegravity.rteditor.effects.Effects;
+import com.onegravity.rteditor.effects.SelectionStyleState;
+import com.onegravity.rteditor.effects.SpanCompactor;
+import com.onegravity.rteditor.metrics.RTMetrics;
+import com.onegravity.rteditor.metrics.RTMetrics.Phase;
+import com.onegravity.rteditor.search.FindHighlightSpan;
+import com.onegravity.rteditor.search.RTFindReplace;
 import com.onegravity.rteditor.spans.BulletSpan;
+import com.onegravity.rteditor.spans.ImageSpan;
 import com.onegravity.rteditor.spans.LinkSpan;
 import com.onegravity.rteditor.spans.LinkSpan.LinkSpanListener;
 import com.onegravity.rteditor.spans.MediaSpan;
 import com.onegravity.rteditor.spans.NumberSpan;
 import com.onegravity.rteditor.spans.RTSpan;
+import com.onegravity.rteditor.statistics.RTDocumentStatistics;
+import com.onegravity.rteditor.utils.DirtyRangeTracker;
+import com.onegravity.rteditor.utils.IndexedSpannableStringBuilder;
 import com.onegravity.rteditor.utils.Paragraph;
 import com.onegravity.rteditor.utils.RTLayout;
 import com.onegravity.rteditor.utils.Selection;
@@ -61,11 +76,21 @@ import java.util.Set;
  */
 public class RTEditText extends androidx.appcompat.widget.AppCompatEditText implements TextWatcher, SpanWatcher, LinkSpanListener {
 
+    // clipboard contents of this size (in characters) or larger are pasted asynchronously
+    private static final int ASYNC_PASTE_THRESHOLD = 16 * 1024;
+
     // don't allow any formatting in text mode
     private boolean mUseRTFormatting = true;
 
-    // for performance reasons we compute a new layout only if the text has changed
-    private boolean mLayoutChanged;
+    // True if the Editable is an IndexedSpannableStringBuilder
+    private boolean mUseSpanIndex;
+
+    // the chunk of an RTChunkedDocument this editor shows, Null if it shows a text of its own
+    private Object mHistoryKey;
+    // the document of that chunk, it keeps track of the media instead of the editor
+    private RTChunkedDocument mChunkedDocument;
+
+    // the paragraph layout is updated incrementally when the text changes (see onTextChanged)
     private RTLayout mRTLayout;    // don't call this mLayout because TextView has a mLayout too (no shadowing as both are private but still...)
 
     // while onSaveInstanceState() is running, don't modify any spans
@@ -108,9 +133,41 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
 
     private int mSelStartBefore;        // selection start before text changed
     private int mSelEndBefore;          // selection end before text changed
-    private String mOldText;            // old text before it changed
-    private String mNewText;            // new text after it changed (needed in afterTextChanged to see if the text has changed)
-    private Spannable mOldSpannable;    // undo/redo
+    private TextDelta.Recorder mDeltaRecorder;  // records the change for undo/redo
+    private int mChangeEnd;             // end of the changed text range after the change
+
+    // a change that was interrupted by the current text change (see RTPasteTask), reported before it
+    private TextDelta mInterruptedDelta;
+    private int mInterruptedSelStartBefore;
+    private int mInterruptedSelEndBefore;
+    private int mInterruptedSelStartAfter;
+    private int mInterruptedSelEndAfter;
+
+    // the last paste started by pasteAsync (it might be done already)
+    private RTPasteTask mPasteTask;
+
+    // the Editable the SpanWatcher was added to
+    private Spannable mSpanWatcherText;
+
+    // keeps track of modified text ranges for consumers that want to process only those
+    private final DirtyRangeTracker mDirtyRangeTracker = new DirtyRangeTracker();
+    // ends the last text change once its SpanWatcher notifications have been sent
+    private final Runnable mTextChangeCompleted = mDirtyRangeTracker::onTextChangeCompleted;
+    // the ranges modified since the last paragraph cleanup
+    private final DirtyRangeTracker.Subscription mParagraphChanges = mDirtyRangeTracker.subscribe();
+
+    // merges span fragments, the ranges modified since the last compaction
+    private final SpanCompactor mSpanCompactor = new SpanCompactor();
+    private final DirtyRangeTracker.Subscription mCompactionChanges = mDirtyRangeTracker.subscribe();
+
+    // find/replace, created lazily
+    private RTFindReplace mFindReplace;
+
+    // word/character/paragraph/image counts, created lazily
+    private RTDocumentStatistics mStatistics;
+
+    // the effects in the current selection, Null if the text or the spans have changed
+    private SelectionStyleState mSelectionStyleState;
 
     // we need to keep track of the media for this editor to be able to clean up after we're done
     private Set<RTMedia> mOriginalMedia = new HashSet<RTMedia>();
@@ -143,6 +200,12 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
      * @param isSaved True if the text is saved, False if it's dismissed
      */
     void onDestroy(boolean isSaved) {
+        if (mChunkedDocument != null) {
+            // the editor knows only the chunks it showed, the document decides which media are
+            // still needed (see RTChunkedDocument.onDestroy)
+            return;
+        }
+
         // make sure all obsolete MediaSpan files are removed from the file system:
         // - when saving the text delete the MediaSpan if it was deleted
         // - when dismissing the text delete the MediaSpan if it was deleted and not saved before
@@ -170,7 +233,11 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
      * Important to be able to delete obsolete media once we're done editing.
      */
     void onAddMedia(RTMedia media) {
-        mAddedMedia.add(media);
+        if (mChunkedDocument != null) {
+            mChunkedDocument.onAddMedia(media);
+        } else {
+            mAddedMedia.add(media);
+        }
     }
 
     /**
@@ -193,12 +260,28 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
     }
 
     /**
-     * Return all paragraphs as as array of selection objects
+     * Return all paragraphs as as array of selection objects.
+     * The list is created again after each text change, use getParagraphCount() and
+     * getParagraph(int) to look up single paragraphs.
      */
     public ArrayList<Paragraph> getParagraphs() {
         return getRTLayout().getParagraphs();
     }
 
+    /**
+     * @return the number of paragraphs
+     */
+    public int getParagraphCount() {
+        return getRTLayout().getLineCount();
+    }
+
+    /**
+     * @return the paragraph with a certain index (see getParagraphIndex(int))
+     */
+    public Paragraph getParagraph(int index) {
+        return getRTLayout().getParagraph(index);
+    }
+
     /**
      * Find the start and end of the paragraph(s) encompassing the current selection.
      * A paragraph spans from one \n (exclusive) to the next one (inclusive)
@@ -214,11 +297,40 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
         return new Selection(layout.getLineStart(firstLine), layout.getLineEnd(lastLine));
     }
 
-    private RTLayout getRTLayout() {
-        synchronized (this) {
-            if (mRTLayout == null || mLayoutChanged) {
+    /**
+     * @return the effects and their values in the current selection.
+     * The state is re-used as long as the text isn't modified and the cursor stays within the same style run.
+     */
+    public SelectionStyleState getSelectionStyleState() {
+        int selStart = getSelectionStart();
+        int selEnd = getSelectionEnd();
+        if (mSelectionStyleState == null || !mSelectionStyleState.isValidFor(Math.min(selStart, selEnd), Math.max(selStart, selEnd))) {
+            long token = RTMetrics.begin(Phase.SELECTION_STYLE);
+            try {
+                mSelectionStyleState = new SelectionStyleState(this);
+            } finally {
+                RTMetrics.end(Phase.SELECTION_STYLE, token);
+            }
+        }
+        return mSelectionStyleState;
+    }
+
+    /**
+     * @return the index of the paragraph containing a certain position in the text
+     * (see getParagraph(int)).
+     */
+    public int getParagraphIndex(int offset) {
+        return getRTLayout().getLineForOffset(offset);
+    }
+
+    private synchronized RTLayout getRTLayout() {
+        // rebuild the layout if it's missing or out of sync (text set before the TextWatcher was registered)
+        if (mRTLayout == null || mRTLayout.getTextLength() != length()) {
+            long token = RTMetrics.begin(Phase.LAYOUT_REBUILD);
+            try {
                 mRTLayout = new RTLayout(getText());
-                mLayoutChanged = false;
+            } finally {
+                RTMetrics.end(Phase.LAYOUT_REBUILD, token);
             }
         }
         return mRTLayout;
@@ -322,24 +434,21 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
      */
     public void setText(RTText rtText) {
         assertRegistration();
+        mHistoryKey = null;
+        mChunkedDocument = null;
 
         if (rtText.getFormat() instanceof RTFormat.Html) {
+            long token = RTMetrics.begin(Phase.CONVERSION);
+            RTText converted;
+            try {
+                converted = rtText.convertTo(mUseRTFormatting ? RTFormat.SPANNED : RTFormat.PLAIN_TEXT, mMediaFactory);
+            } finally {
+                RTMetrics.end(Phase.CONVERSION, token);
+            }
             if (mUseRTFormatting) {
-                RTText rtSpanned = rtText.convertTo(RTFormat.SPANNED, mMediaFactory);
-
-                super.setText(rtSpanned.getText(), TextView.BufferType.EDITABLE);
-                addSpanWatcher();
-
-                // collect all current media
-                Spannable text = getText();
-                for (MediaSpan span : text.getSpans(0, text.length(), MediaSpan.class)) {
-                    mOriginalMedia.add(span.getMedia());
-                }
-
-                Effects.cleanupParagraphs(this);
+                setSpannedText(converted.getText());
             } else {
-                RTText rtPlainText = rtText.convertTo(RTFormat.PLAIN_TEXT, mMediaFactory);
-                super.setText(rtPlainText.getText());
+                super.setText(converted.getText());
             }
         } else if (rtText.getFormat() instanceof RTFormat.PlainText) {
             CharSequence text = rtText.getText();
@@ -349,10 +458,83 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
         onSelectionChanged(0, 0);
     }
 
+    /**
+     * Show a chunk of an RTChunkedDocument in this editor.
+     * Setting the text isn't recorded as a change, the undo/redo history is kept by chunk
+     * (historyKey) so it survives when the editor is recycled to show another chunk.
+     * The media of the chunk are tracked by the document.
+     */
+    void setChunk(Spanned text, Object historyKey, RTChunkedDocument document) {
+        assertRegistration();
+
+        mHistoryKey = historyKey;
+        mChunkedDocument = document;
+        ignoreTextChanges();
+        try {
+            setSpannedText(text);
+        } finally {
+            registerTextChanges();
+        }
+
+        onSelectionChanged(0, 0);
+    }
+
+    /**
+     * @return the key of the undo/redo history for the current text
+     * (the chunk if the editor shows a chunk of an RTChunkedDocument, the editor itself otherwise)
+     */
+    Object getHistoryKey() {
+        return mHistoryKey == null ? this : mHistoryKey;
+    }
+
+    /**
+     * @return the document if the editor shows a chunk of an RTChunkedDocument, Null otherwise
+     */
+    RTChunkedDocument getChunkedDocument() {
+        return mChunkedDocument;
+    }
+
+    private void setSpannedText(CharSequence spanned) {
+        super.setText(spanned, TextView.BufferType.EDITABLE);
+        addSpanWatcher();
+
+        // collect all current media (the media of a chunk are collected by its document)
+        Spannable text = getText();
+        if (mChunkedDocument == null) {
+            for (MediaSpan span : text.getSpans(0, text.length(), MediaSpan.class)) {
+                mOriginalMedia.add(span.getMedia());
+            }
+        }
+
+        cleanupParagraphs(true);
+    }
+
     public boolean usesRTFormatting() {
         return mUseRTFormatting;
     }
 
+    /**
+     * Use an IndexedSpannableStringBuilder as Editable to speed up span queries in documents
+     * with lots of spans (see IndexedSpannableStringBuilder).
+     * This takes effect the next time the text is set.
+     * <p>
+     * This is a no-op before Android 6.0 (API 23). The SpannableStringBuilder of those versions
+     * looks up span positions with a linear search, so the index would be slower than no index.
+     */
+    public void setUseSpanIndex(boolean useSpanIndex) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        if (useSpanIndex != mUseSpanIndex) {
+            mUseSpanIndex = useSpanIndex;
+            setEditableFactory(useSpanIndex ? IndexedSpannableStringBuilder.Factory.getInstance() : Editable.Factory.getInstance());
+        }
+    }
+
+    public boolean usesSpanIndex() {
+        return mUseSpanIndex;
+    }
+
     /**
      * Returns the content of this editor as a String. The caller is responsible
      * to call only formats that are supported by RTEditable (which is the rich
@@ -372,8 +554,13 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
     public RTText getRichText(RTFormat format) {
         assertRegistration();
 
-        RTEditable rtEditable = new RTEditable(this);
-        return rtEditable.convertTo(format, mMediaFactory);
+        long token = RTMetrics.begin(Phase.CONVERSION);
+        try {
+            RTEditable rtEditable = new RTEditable(this);
+            return rtEditable.convertTo(format, mMediaFactory);
+        } finally {
+            RTMetrics.end(Phase.CONVERSION, token);
+        }
     }
 
     private void assertRegistration() {
@@ -384,6 +571,14 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
 
     // ****************************************** TextWatcher / SpanWatcher *******************************************
 
+    /**
+     * Returns the DirtyRangeTracker of this editor.
+     * Subscribe to it to get the text ranges modified since the last time they were processed.
+     */
+    public DirtyRangeTracker getDirtyRangeTracker() {
+        return mDirtyRangeTracker;
+    }
+
     public boolean hasChanged() {
         return mTextChanged;
     }
@@ -413,65 +608,95 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
     @Override
     /* TextWatcher */
     public synchronized void beforeTextChanged(CharSequence s, int start, int count, int after) {
-        // we use a String to get a static copy of the CharSequence (the CharSequence changes when the text changes...)
-        String oldText = mOldText == null ? "" : mOldText;
-        if (!mIgnoreTextChanges && !s.toString().equals(oldText)) {
+        // record only the range that is about to change, never the whole text (this is called for every key stroke)
+        if (!mIgnoreTextChanges && mListener != null) {
+            long token = RTMetrics.begin(Phase.UNDO_SNAPSHOT);
             mSelStartBefore = getSelectionStart();
             mSelEndBefore = getSelectionEnd();
-            mOldText = s.toString();
-            mNewText = mOldText;
-            mOldSpannable = cloneSpannable();
+            mDeltaRecorder = new TextDelta.Recorder(getText(), start, start + count);
+            RTMetrics.end(Phase.UNDO_SNAPSHOT, token);
         }
-        mLayoutChanged = true;
         mPreviousTextLength = s.length();
     }
 
     @Override
     /* TextWatcher */
     public synchronized void onTextChanged(CharSequence s, int start, int before, int count) {
-        mLayoutChanged = true;
+        long token = RTMetrics.begin(Phase.TEXT_CHANGE);
+        mChangeEnd = start + count;
+        mDirtyRangeTracker.onTextChanged(start, before, count);
+        mSelectionStyleState = null;
+        if (mRTLayout != null) {
+            mRTLayout.onTextChanged(s, start, before, count);
+        }
+        RTMetrics.end(Phase.TEXT_CHANGE, token);
     }
 
     @Override
     /* TextWatcher */
     public synchronized void afterTextChanged(Editable s) {
-        if (mIsBulletSpanSelected || mIsNumberSpanSelected) {
+        // an interrupted change happened before this one
+        reportInterruptedChange();
+
+        // report the change before appending the zero width character (which is a change of its own)
+        TextDelta.Recorder recorder = mDeltaRecorder;
+        mDeltaRecorder = null;
+        if (recorder != null && mListener != null && !mIgnoreTextChanges) {
+            long token = RTMetrics.begin(Phase.UNDO_SNAPSHOT);
+            TextDelta delta = recorder.finish(s, mChangeEnd);
+            RTMetrics.end(Phase.UNDO_SNAPSHOT, token);
+            if (!delta.isEmpty()) {
+                mListener.onTextChanged(this, delta, mSelStartBefore, mSelEndBefore, getSelectionStart(), getSelectionEnd());
+            }
+        }
+
+        // undo/redo restore the text as it was, including the zero width characters
+        if (!mIgnoreTextChanges && (mIsBulletSpanSelected || mIsNumberSpanSelected)) {
             boolean mBackSpace = mPreviousTextLength >= s.length();
-            if (!mBackSpace && s.toString().endsWith("\n")) {
+            int length = s.length();
+            if (!mBackSpace && length > 0 && s.charAt(length - 1) == '\n') {
                 // append zero width character
                 this.append("\u200B");
             }
         }
-        String theText = s.toString();
-        String newText = mNewText == null ? "" : mNewText;
-        if (mListener != null && !mIgnoreTextChanges && !newText.equals(theText)) {
-            Spannable newSpannable = cloneSpannable();
-            mListener.onTextChanged(this, mOldSpannable, newSpannable, mSelStartBefore, mSelEndBefore, getSelectionStart(), getSelectionEnd());
-            mNewText = theText;
-        }
-        mLayoutChanged = true;
         mTextChanged = true;
         setParagraphsAreUp2Date(false);
         addSpanWatcher();
+
+        // the SpanWatchers are notified about the shifted spans after the TextWatchers (API 23+),
+        // the change is complete once the Editable is done with it
+        removeCallbacks(mTextChangeCompleted);
+        post(mTextChangeCompleted);
     }
 
     @Override
     /* SpanWatcher */
     public void onSpanAdded(Spannable text, Object what, int start, int end) {
+        if (what instanceof FindHighlightSpan) {
+            // search highlights aren't part of the document
+            return;
+        }
+        if (what instanceof ImageSpan && mStatistics != null) {
+            mStatistics.onImageChanged(text, start);
+        }
         mTextChanged = true;
+        if (isFormattingSpan(what)) {
+            mDirtyRangeTracker.onSpanChanged(start, end);
+            mSelectionStyleState = null;
+        }
         // we need to keep track of ordered list spans
         if (what instanceof BulletSpan) {
             mIsBulletSpanSelected = true;
             // if text was empty then append zero width char
             // in order for the bullet to be shown when the span is selected
-            if (text.toString().isEmpty()) {
+            if (text.length() == 0) {
                 this.append("\u200B");
             }
         } else if (what instanceof NumberSpan) {
             mIsNumberSpanSelected = true;
             // if text was empty then append zero width char
             // in order for the number to be shown when the span is selected
-            if (text.toString().isEmpty()) {
+            if (text.length() == 0) {
                 this.append("\u200B");
             }
         }
@@ -484,7 +709,15 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
     @Override
     /* SpanWatcher */
     public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+        if (what instanceof FindHighlightSpan) {
+            // search highlights aren't part of the document
+            return;
+        }
         mTextChanged = true;
+        if (isFormattingSpan(what)) {
+            mDirtyRangeTracker.onSpanChanged(ostart, oend, nstart, nend);
+            mSelectionStyleState = null;
+        }
         if (what instanceof RTSpan && what instanceof ParagraphStyle) {
             setParagraphsAreUp2Date(false);
         }
@@ -493,7 +726,18 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
     @Override
     /* SpanWatcher */
     public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        if (what instanceof FindHighlightSpan) {
+            // search highlights aren't part of the document
+            return;
+        }
+        if (what instanceof ImageSpan && mStatistics != null) {
+            mStatistics.onImageChanged(text, start);
+        }
         mTextChanged = true;
+        if (isFormattingSpan(what)) {
+            mDirtyRangeTracker.onSpanChanged(start, end);
+            mSelectionStyleState = null;
+        }
         // we need to keep track of ordered list spans
         if (what instanceof BulletSpan) {
             mIsBulletSpanSelected = false;
@@ -507,13 +751,96 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
     }
 
     /**
-     * Add a SpanWatcher for the Changeable implementation
+     * @return True for spans that format the text (not selection, composing or watcher spans)
+     */
+    private static boolean isFormattingSpan(Object span) {
+        return span instanceof CharacterStyle || span instanceof ParagraphStyle;
+    }
+
+    /**
+     * Add a SpanWatcher for the Changeable implementation.
+     * The SpanWatcher is a SPAN_INCLUSIVE_INCLUSIVE span covering the whole text so it grows and
+     * shrinks with the text, it only needs to be set once for each Editable.
      */
     private void addSpanWatcher() {
         Spannable spannable = getText();
-        if (spannable.getSpans(0, spannable.length(), getClass()) != null) {
+        if (spannable != mSpanWatcherText) {
             spannable.setSpan(this, 0, spannable.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+            mSpanWatcherText = spannable;
+        }
+    }
+
+    /**
+     * Make sure all paragraph effects are applied to whole paragraphs (see Effects.cleanupParagraphs).
+     *
+     * @param fullPass True to process all paragraphs, False to process only the paragraphs
+     *                 modified since the last cleanup.
+     */
+    public synchronized void cleanupParagraphs(boolean fullPass) {
+        long token = RTMetrics.begin(Phase.PARAGRAPH_CLEANUP);
+        mIgnoreParagraphChanges = true;
+        try {
+            if (fullPass) {
+                Effects.cleanupParagraphs(this);
+            } else if (mParagraphChanges.isDirty()) {
+                Effects.cleanupParagraphs(this, mParagraphChanges.getDirtyRanges());
+            }
+        } finally {
+            mIgnoreParagraphChanges = false;
+            RTMetrics.end(Phase.PARAGRAPH_CLEANUP, token);
         }
+        mParagraphChanges.checkpoint();
+        setParagraphsAreUp2Date(true);
+    }
+
+    /**
+     * Merge adjacent and overlapping character spans with the same value (see SpanCompactor).
+     * Like the paragraph cleanup this doesn't change the formatting and isn't recorded for undo/redo.
+     *
+     * @param fullPass True to process the whole text, False to process only the parts
+     *                 modified since the last compaction.
+     *
+     * @return the number of spans that were merged into other spans
+     */
+    public synchronized int compactSpans(boolean fullPass) {
+        int merged = 0;
+        Spannable text = getText();
+        if (fullPass) {
+            merged = mSpanCompactor.compact(text, 0, text.length());
+        } else if (mCompactionChanges.isDirty()) {
+            for (Selection range : mCompactionChanges.getDirtyRanges()) {
+                merged += mSpanCompactor.compact(text, range.start(), range.end());
+            }
+        }
+        mCompactionChanges.checkpoint();
+        return merged;
+    }
+
+    /**
+     * @return the SpanCompactor of this editor (e.g. to retrieve its metrics)
+     */
+    public SpanCompactor getSpanCompactor() {
+        return mSpanCompactor;
+    }
+
+    /**
+     * @return the find/replace engine of this editor (created when first used)
+     */
+    public RTFindReplace getFindReplace() {
+        if (mFindReplace == null) {
+            mFindReplace = new RTFindReplace(this);
+        }
+        return mFindReplace;
+    }
+
+    /**
+     * @return the document statistics of this editor (created when first used and then kept up to date)
+     */
+    public RTDocumentStatistics getStatistics() {
+        if (mStatistics == null) {
+            mStatistics = new RTDocumentStatistics(this);
+        }
+        return mStatistics;
     }
 
     synchronized private void setParagraphsAreUp2Date(boolean value) {
@@ -628,10 +955,7 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
             if (mUseRTFormatting) {
 
                 if (!mIsSaving && !mParagraphsAreUp2Date) {
-                    mIgnoreParagraphChanges = true;
-                    Effects.cleanupParagraphs(this);
-                    mIgnoreParagraphChanges = false;
-                    setParagraphsAreUp2Date(true);
+                    cleanupParagraphs(false);
                 }
 
                 if (mListener != null) {
@@ -651,19 +975,179 @@ public class RTEditText extends androidx.appcompat.widget.AppCompatEditText impl
      */
     public <V extends Object, C extends RTSpan<V>> void applyEffect(Effect<V, C> effect, V value) {
         if (mUseRTFormatting && !mIsSelectionChanging && !mIsSaving) {
-            Spannable oldSpannable = mIgnoreTextChanges ? null : cloneSpannable();
+            performChange(effect.getAffectedRange(this), () -> effect.applyToSelection(this, value));
+        }
+    }
+
+    /**
+     * Apply several effects to the current selection as one undo/redo operation,
+     * with a single paragraph cleanup (see EffectBatch).
+     */
+    public void applyEffects(EffectBatch batch) {
+        if (mUseRTFormatting && !mIsSelectionChanging && !mIsSaving && !batch.isEmpty()) {
+            // the batch's cleanup must only process the paragraphs it changed (the recorded range)
+            if (!mParagraphsAreUp2Date) {
+                cleanupParagraphs(false);
+            }
+            performChange(batch.getAffectedRange(this), () -> batch.applyTo(this));
+        }
+    }
+
+    /**
+     * Modify the text and/or its spans as one undo/redo operation.
+     * The modifications are done within a batch edit and the text changes they cause aren't
+     * recorded individually (e.g. the zero width characters for bullets are part of the change).
+     *
+     * @param range  All modifications need to be within this range (positions before the change).
+     * @param change Performs the modifications.
+     */
+    public void performChange(Selection range, Runnable change) {
+        finishPendingPaste();
 
-            effect.applyToSelection(this, value);
+        boolean recordChange = isRecordingChanges();
+        int selStartBefore = getSelectionStart();
+        int selEndBefore = getSelectionEnd();
+        int oldLength = length();
+        TextDelta.Recorder recorder = recordChange ? new TextDelta.Recorder(getText(), range.start(), range.end()) : null;
 
-            synchronized (this) {
-                if (mListener != null && !mIgnoreTextChanges) {
-                    Spannable newSpannable = cloneSpannable();
-                    mListener.onTextChanged(this, oldSpannable, newSpannable, getSelectionStart(), getSelectionEnd(),
-                                            getSelectionStart(), getSelectionEnd());
+        if (recordChange) {
+            ignoreTextChanges();
+        }
+        beginBatchEdit();
+        try {
+            change.run();
+        } finally {
+            endBatchEdit();
+            if (recordChange) {
+                registerTextChanges();
+            }
+        }
+
+        if (recorder != null) {
+            reportChange(recorder.finish(getText(), range.end() + length() - oldLength), selStartBefore, selEndBefore);
+        }
+    }
+
+    /**
+     * @return True if text changes are currently recorded for undo/redo
+     */
+    synchronized boolean isRecordingChanges() {
+        return mListener != null && !mIgnoreTextChanges;
+    }
+
+    /**
+     * Report a change that was recorded outside of the TextWatcher (see performChange and RTPasteTask).
+     */
+    synchronized void reportChange(TextDelta delta, int selStartBefore, int selEndBefore) {
+        if (mListener != null && !delta.isEmpty()) {
+            mListener.onTextChanged(this, delta, selStartBefore, selEndBefore, getSelectionStart(), getSelectionEnd());
+        }
+    }
+
+    /**
+     * Report a change that was interrupted by a text change that is just starting (called from
+     * a TextWatcher.beforeTextChanged). No change may be reported from within another change,
+     * so it's reported once the TextWatchers are notified about the interrupting change (before
+     * that change is reported).
+     */
+    synchronized void reportChangeBefore(TextDelta delta, int selStartBefore, int selEndBefore) {
+        if (!delta.isEmpty()) {
+            mInterruptedDelta = delta;
+            mInterruptedSelStartBefore = selStartBefore;
+            mInterruptedSelEndBefore = selEndBefore;
+            mInterruptedSelStartAfter = getSelectionStart();
+            mInterruptedSelEndAfter = getSelectionEnd();
+        }
+    }
+
+    private void reportInterruptedChange() {
+        TextDelta delta = mInterruptedDelta;
+        mInterruptedDelta = null;
+        if (delta != null && mListener != null) {
+            mListener.onTextChanged(this, delta, mInterruptedSelStartBefore, mInterruptedSelEndBefore,
+                                    mInterruptedSelStartAfter, mInterruptedSelEndAfter);
+        }
+    }
+
+    // ****************************************** Paste *******************************************
+
+    /**
+     * Paste a text without blocking the UI thread: the text is converted in the background and
+     * inserted in chunks (replacing the current selection), see RTPasteTask.
+     *
+     * @param rtText   The text in RTFormat.HTML or RTFormat.PLAIN_TEXT
+     * @param listener Notified about the progress, can be Null
+     * @return the RTPasteTask, e.g. to cancel the paste
+     */
+    public RTPasteTask pasteAsync(RTText rtText, RTPasteTask.PasteListener listener) {
+        assertRegistration();
+        finishPendingPaste();
+        RTPasteTask task = new RTPasteTask(this, listener);
+        mPasteTask = task;
+        task.start(rtText, mMediaFactory);
+        return task;
+    }
+
+    /**
+     * Stop a paste that is still running (see RTPasteTask.cancel()), the chunks inserted so far
+     * are recorded as one undo/redo operation.
+     * This needs to be called before the text is modified by undo/redo or any other recorded change.
+     */
+    public void finishPendingPaste() {
+        RTPasteTask task = mPasteTask;
+        mPasteTask = null;
+        if (task != null && !task.isDone()) {
+            task.cancel();
+        }
+    }
+
+    @Override
+    public boolean onTextContextMenuItem(int id) {
+        if (mUseRTFormatting && mMediaFactory != null) {
+            int selStart = Math.max(0, Math.min(getSelectionStart(), getSelectionEnd()));
+            int selEnd = Math.max(0, Math.max(getSelectionStart(), getSelectionEnd()));
+            if (id == android.R.id.copy && selStart < selEnd) {
+                RTClipboard.copy(this, selStart, selEnd, mMediaFactory);
+                return true;
+            } else if (id == android.R.id.cut && selStart < selEnd) {
+                RTClipboard.copy(this, selStart, selEnd, mMediaFactory);
+                getText().delete(selStart, selEnd);
+                return true;
+            } else if (id == android.R.id.paste) {
+                // rich text copied within the app is pasted without converting it to HTML and back
+                if (RTClipboard.paste(this, mMediaFactory)) {
+                    return true;
+                }
+                RTText clip = getLargeClip();
+                if (clip != null) {
+                    pasteAsync(clip, null);
+                    return true;
                 }
-                mLayoutChanged = true;
             }
         }
+        return super.onTextContextMenuItem(id);
+    }
+
+    /*
+     * @return the clipboard content if it's too large to paste synchronously, Null otherwise
+     */
+    private RTText getLargeClip() {
+        ClipboardManager clipboard = (ClipboardManager) getContext().getSystemService(Context.CLIPBOARD_SERVICE);
+        ClipData clip = clipboard == null ? null : clipboard.getPrimaryClip();
+        if (clip == null || clip.getItemCount() == 0) {
+            return null;
+        }
+
+        ClipData.Item item = clip.getItemAt(0);
+        String html = item.getHtmlText();
+        if (html != null && html.length() >= ASYNC_PASTE_THRESHOLD) {
+            return new RTHtml<RTImage, RTAudio, RTVideo>(RTFormat.HTML, html);
+        }
+        CharSequence text = item.getText();
+        if (html == null && text != null && text.length() >= ASYNC_PASTE_THRESHOLD) {
+            return new RTPlainText(text.toString());
+        }
+        return null;
     }
 
     @Override
@@ -16,8 +16,6 @@
 
 package com.onegravity.rteditor;
 
-import android.text.Spannable;
-
 import com.onegravity.rteditor.spans.LinkSpan;
 
 /**
@@ -46,8 +44,9 @@ public interface RTEditTextListener {
 
     /**
      * Text and or text effects have changed (used for undo/redo function).
+     * The TextDelta contains only the changed part of the text, not the complete text.
      */
-    void onTextChanged(RTEditText editor, Spannable before, Spannable after,
+    void onTextChanged(RTEditText editor, TextDelta delta,
                        int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter);
 
     /**
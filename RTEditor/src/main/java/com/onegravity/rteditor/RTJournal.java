@@ -0,0 +1,621 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor;
+
+import android.text.Spanned;
+import android.text.SpannableStringBuilder;
+import android.util.Log;
+
+import com.onegravity.rteditor.RTOperationManager.DeltaOperation;
+import com.onegravity.rteditor.converter.SpanCodec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of the changes made in a rich text editor.
+ * <p>
+ * Every operation registered by the RTOperationManager (change, undo, redo) is written as a
+ * compact record to a file. After the process was killed, replaying the journal restores the
+ * text and the undo/redo history of the editor.
+ * <p>
+ * The file starts with a checkpoint (the complete text) followed by the change records.
+ * Every CHECKPOINT_INTERVAL records (by default) a new checkpoint is written and the records
+ * before the previous checkpoint are discarded (compaction), so the journal never holds more
+ * than two checkpoint intervals.
+ * <p>
+ * Record format: [length][type, id, timestamp, payload][CRC32 of type to payload].
+ * A record that was only partially written when the process died fails the CRC check and is
+ * removed together with all records following it.
+ * <p>
+ * The records are written by a background thread in the order they were issued. The UI thread
+ * only encodes the (small) change records, encoding the checkpoints, syncing the file and the
+ * compaction happen in the background.
+ * <p>
+ * The checkpoints aren't taken from the editor's text. The background thread keeps a copy of the
+ * text and applies each change (and each undo/redo) to it after writing its record, a checkpoint
+ * encodes that copy. Only the first checkpoint after opening the journal (or after the copy got
+ * out of sync) takes a snapshot of the editor's text on the UI thread, which is O(document).
+ * The copy needs about as much memory as the text itself.
+ */
+class RTJournal {
+
+    private static final int MAGIC = 0x52544a31;    // "RTJ1"
+    private static final int HEADER_SIZE = 4;
+
+    /*
+     * Record types
+     */
+    private static final byte CHECKPOINT = 1;
+    private static final byte CHANGE = 2;
+    private static final byte UNDO = 3;
+    private static final byte REDO = 4;
+
+    /*
+     * Default number of records after which a new checkpoint is written
+     */
+    static final int CHECKPOINT_INTERVAL = 500;
+
+    /*
+     * Records larger than this are considered corrupt
+     */
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    /*
+     * Writes the records of all journals (one thread so the records of a journal stay in order)
+     */
+    private static Executor sWriter;
+
+    private static synchronized Executor getWriter() {
+        if (sWriter == null) {
+            sWriter = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "RTJournal");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sWriter;
+    }
+
+    private final File mFile;
+    private final SpanCodec mCodec;
+    private final int mCheckpointInterval;
+
+    // used by the writer thread once the journal is open (by the UI thread before that)
+    private FileOutputStream mFileOut;
+    private DataOutputStream mOut;
+    private long mPosition;                 // position of the next record
+    private long mPreviousCheckpoint = -1;  // position of the second to last checkpoint
+    private long mLastCheckpoint = -1;      // position of the last checkpoint
+
+    // used by the writer thread: the text after the last written record (Null if unknown)
+    private SpannableStringBuilder mShadow;
+
+    // False if the next checkpoint needs a snapshot of the editor's text (set by both threads)
+    private volatile boolean mHasShadow;
+
+    // used by the UI thread
+    private boolean mOpen;
+    private boolean mHasCheckpoint;
+    private int mRecordsSinceCheckpoint;
+    private long mNextId;
+
+    RTJournal(File file, SpanCodec codec) {
+        this(file, codec, CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * @param checkpointInterval The number of records after which a new checkpoint is written
+     */
+    RTJournal(File file, SpanCodec codec, int checkpointInterval) {
+        mFile = file;
+        mCodec = codec;
+        mCheckpointInterval = Math.max(1, checkpointInterval);
+    }
+
+    // ****************************************** Replay *******************************************
+
+    /**
+     * Restore the text and the undo/redo history of the editor from the journal.
+     * Call this before open(). Records that can't be read or applied are removed from the journal.
+     *
+     * @return True if the text was restored, False if the journal is empty or unreadable
+     */
+    boolean replay(RTEditText editor, RTOperationManager opManager) {
+        // the journal might have been written by another RTJournal instance before
+        awaitWriter();
+
+        mPosition = 0;
+        if (!mFile.exists() || mFile.length() <= HEADER_SIZE) {
+            return false;
+        }
+
+        boolean restored = false;
+        int selStart = 0;
+        int selEnd = 0;
+
+        DataInputStream in = null;
+        editor.ignoreTextChanges();
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != MAGIC) {
+                return false;
+            }
+            mPosition = HEADER_SIZE;
+
+            byte[] record;
+            while ((record = readRecord(in)) != null) {
+                DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = recordIn.readByte();
+                long id = recordIn.readLong();
+                long timestamp = recordIn.readLong();
+
+                if (type == CHECKPOINT) {
+                    selStart = recordIn.readInt();
+                    selEnd = recordIn.readInt();
+                    SpannableStringBuilder text = new SpannableStringBuilder(SpanCodec.readString(recordIn));
+                    mCodec.readSpans(recordIn, text, 0);
+                    if (!restored || !text.toString().equals(editor.getText().toString())) {
+                        // the first checkpoint or the replayed text doesn't match the checkpoint
+                        editor.setText(text);
+                        opManager.flushOperations(editor);
+                        restored = true;
+                    }
+                    mPreviousCheckpoint = mLastCheckpoint;
+                    mLastCheckpoint = mPosition;
+                    mRecordsSinceCheckpoint = 0;
+                } else if (restored && type == CHANGE) {
+                    int selStartBefore = recordIn.readInt();
+                    int selEndBefore = recordIn.readInt();
+                    selStart = recordIn.readInt();
+                    selEnd = recordIn.readInt();
+                    TextDelta delta = TextDelta.replay(editor.getText(), recordIn, mCodec);
+                    opManager.executed(editor, new DeltaOperation(delta, timestamp, selStartBefore, selEndBefore, selStart, selEnd));
+                    mRecordsSinceCheckpoint++;
+                } else if (restored && (type == UNDO || type == REDO)) {
+                    if (type == UNDO) {
+                        opManager.undo(editor);
+                    } else {
+                        opManager.redo(editor);
+                    }
+                    selStart = editor.getSelectionStart();
+                    selEnd = editor.getSelectionEnd();
+                    mRecordsSinceCheckpoint++;
+                }
+
+                mPosition += 8 + record.length;
+                mNextId = id + 1;
+            }
+        } catch (IOException | RuntimeException e) {
+            // the rest of the journal is unusable, everything up to mPosition has been replayed
+            Log.w(getClass().getSimpleName(), "Journal replay stopped at " + mPosition, e);
+        } finally {
+            closeQuietly(in);
+            editor.registerTextChanges();
+        }
+
+        if (restored) {
+            int length = editor.getText().length();
+            editor.setSelection(Math.min(selStart, length), Math.min(selEnd, length));
+        }
+
+        // cut off what couldn't be replayed
+        truncate(restored ? mPosition : 0);
+        if (!restored) {
+            mPosition = 0;
+            mPreviousCheckpoint = mLastCheckpoint = -1;
+        }
+        mHasCheckpoint = mLastCheckpoint >= 0;
+
+        return restored;
+    }
+
+    /**
+     * @return the record's data (without length and CRC) or Null if the end of the journal
+     * is reached or the record is corrupt
+     */
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+            byte[] record = new byte[length];
+            in.readFully(record);
+            int crc = in.readInt();
+            return crc == crc(record) ? record : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            if (file.length() > length) {
+                file.setLength(length);
+            }
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), e.getMessage(), e);
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    // ****************************************** Write Methods *******************************************
+
+    /**
+     * Open the journal for writing. Call replay(RTEditText, RTOperationManager) first.
+     *
+     * @return True if the journal was opened, False otherwise
+     */
+    boolean open() {
+        awaitWriter();
+        try {
+            mFileOut = new FileOutputStream(mFile, mPosition > 0);
+            mOut = new DataOutputStream(new BufferedOutputStream(mFileOut));
+            if (mPosition == 0) {
+                mOut.writeInt(MAGIC);
+                mOut.flush();
+                mPosition = HEADER_SIZE;
+            }
+            mOpen = true;
+            return true;
+        } catch (IOException e) {
+            Log.e(getClass().getSimpleName(), e.getMessage(), e);
+            closeFile();
+            return false;
+        }
+    }
+
+    /**
+     * @return True if the journal is open for writing
+     */
+    boolean isOpen() {
+        return mOpen;
+    }
+
+    /**
+     * @return True if the journal has no checkpoint yet, if the last checkpoint is
+     * checkpointInterval records ago or if the copy of the text needs a new snapshot
+     */
+    boolean needsCheckpoint() {
+        return !mHasCheckpoint || !mHasShadow || mRecordsSinceCheckpoint >= mCheckpointInterval;
+    }
+
+    /**
+     * Write a checkpoint. The checkpoint is encoded and written in the background from the
+     * writer's copy of the text. Only if there's no such copy yet a snapshot of the text is taken
+     * on the calling thread.
+     *
+     * @param text The current text, it must match the changes written so far.
+     */
+    void writeCheckpoint(Spanned text, final int selStart, final int selEnd) {
+        if (!mOpen) {
+            return;
+        }
+
+        final Spanned snapshot = mHasShadow ? null : new ClonedSpannableString(text);
+        final long id = mNextId++;
+        final long timestamp = System.currentTimeMillis();
+        mHasCheckpoint = true;
+        mHasShadow = true;
+        mRecordsSinceCheckpoint = 0;
+
+        getWriter().execute(() -> {
+            if (mOut == null) {
+                return;
+            }
+            if (snapshot != null) {
+                mShadow = new SpannableStringBuilder(snapshot);
+            }
+            if (mShadow == null) {
+                // the copy got out of sync, the next checkpoint takes a snapshot (see needsCheckpoint())
+                return;
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(mShadow.length() * 2 + 64);
+                DataOutputStream out = startRecord(bytes, CHECKPOINT, id, timestamp);
+                out.writeInt(selStart);
+                out.writeInt(selEnd);
+                SpanCodec.writeString(out, mShadow.toString());
+                mCodec.writeSpans(out, mShadow, 0, mShadow.length());
+
+                long position = mPosition;
+                writeRecord(bytes.toByteArray());
+                mFileOut.getFD().sync();
+
+                mPreviousCheckpoint = mLastCheckpoint;
+                mLastCheckpoint = position;
+
+                if (mPreviousCheckpoint > HEADER_SIZE) {
+                    compact();
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        });
+    }
+
+    void writeChange(TextDelta delta, long timestamp, int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter) {
+        if (!mOpen) {
+            return;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(delta.getNewLength() * 2 + 64);
+            DataOutputStream out = startRecord(bytes, CHANGE, mNextId++, timestamp);
+            out.writeInt(selStartBefore);
+            out.writeInt(selEndBefore);
+            out.writeInt(selStartAfter);
+            out.writeInt(selEndAfter);
+            int deltaOffset = bytes.size();
+            delta.write(out, mCodec);
+            final byte[] record = bytes.toByteArray();
+            submitRecord(record, () -> applyToShadow(record, deltaOffset));
+            mRecordsSinceCheckpoint++;
+        } catch (IOException e) {
+            // We are writing to a byte array. There should not be IO problems.
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @param changes The changes the undo applied to the text in the order they were applied.
+     *                They aren't part of the record (the replay undoes the operation), they're
+     *                applied to the writer's copy of the text.
+     */
+    void writeUndo(List<TextDelta> changes) {
+        writeMarker(UNDO, changes);
+    }
+
+    /**
+     * @param changes The changes the redo applied to the text (see writeUndo(List)).
+     */
+    void writeRedo(List<TextDelta> changes) {
+        writeMarker(REDO, changes);
+    }
+
+    private void writeMarker(byte type, List<TextDelta> changes) {
+        if (!mOpen) {
+            return;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            startRecord(bytes, type, mNextId++, System.currentTimeMillis());
+
+            final List<byte[]> encodedChanges = new ArrayList<>(changes.size());
+            for (TextDelta change : changes) {
+                ByteArrayOutputStream changeBytes = new ByteArrayOutputStream(change.getNewLength() * 2 + 64);
+                DataOutputStream changeOut = new DataOutputStream(changeBytes);
+                if (type == UNDO) {
+                    change.writeUndo(changeOut, mCodec);
+                } else {
+                    change.write(changeOut, mCodec);
+                }
+                encodedChanges.add(changeBytes.toByteArray());
+            }
+
+            submitRecord(bytes.toByteArray(), () -> {
+                for (byte[] change : encodedChanges) {
+                    applyToShadow(change, 0);
+                }
+            });
+            mRecordsSinceCheckpoint++;
+        } catch (IOException e) {
+            // We are writing to a byte array. There should not be IO problems.
+            throw new RuntimeException(e);
+        }
+    }
+
+    private DataOutputStream startRecord(ByteArrayOutputStream bytes, byte type, long id, long timestamp) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(type);
+        out.writeLong(id);
+        out.writeLong(timestamp);
+        return out;
+    }
+
+    /**
+     * @param applyToShadow Applies the change to the writer's copy of the text once the record is written.
+     */
+    private void submitRecord(final byte[] record, final Runnable applyToShadow) {
+        getWriter().execute(() -> {
+            if (mOut != null) {
+                try {
+                    writeRecord(record);
+                    applyToShadow.run();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Apply a change written by TextDelta.write or TextDelta.writeUndo to the writer's copy of the text.
+     * If it doesn't match, the copy is dropped and the next checkpoint takes a new snapshot.
+     */
+    private void applyToShadow(byte[] change, int offset) {
+        if (mShadow == null) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(change, offset, change.length - offset));
+            TextDelta.replay(mShadow, in, mCodec);
+        } catch (IOException | RuntimeException e) {
+            Log.w(getClass().getSimpleName(), "The copy of the text is out of sync", e);
+            dropShadow();
+        }
+    }
+
+    private void dropShadow() {
+        mShadow = null;
+        mHasShadow = false;
+    }
+
+    private void writeRecord(byte[] record) throws IOException {
+        mOut.writeInt(record.length);
+        mOut.write(record);
+        mOut.writeInt(crc(record));
+        // hand the record over to the OS, it survives a process death from here on
+        mOut.flush();
+        mPosition += 8 + record.length;
+    }
+
+    /**
+     * Discard all records before the previous checkpoint.
+     */
+    private void compact() throws IOException {
+        mOut.close();
+        mOut = null;
+        mFileOut = null;
+
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new FileInputStream(mFile);
+            out = new FileOutputStream(tmpFile);
+            DataOutputStream dataOut = new DataOutputStream(out);
+            dataOut.writeInt(MAGIC);
+
+            long skip = mPreviousCheckpoint;
+            while (skip > 0) {
+                long skipped = in.skip(skip);
+                if (skipped <= 0) {
+                    throw new EOFException();
+                }
+                skip -= skipped;
+            }
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.flush();
+            ((FileOutputStream) out).getFD().sync();
+        } finally {
+            closeQuietly(in);
+            closeQuietly(out);
+        }
+
+        if (!tmpFile.renameTo(mFile)) {
+            tmpFile.delete();
+            throw new IOException("Unable to replace " + mFile.getPath());
+        }
+
+        long removed = mPreviousCheckpoint - HEADER_SIZE;
+        mPosition -= removed;
+        mLastCheckpoint -= removed;
+        mPreviousCheckpoint = HEADER_SIZE;
+
+        mFileOut = new FileOutputStream(mFile, true);
+        mOut = new DataOutputStream(new BufferedOutputStream(mFileOut));
+    }
+
+    private void fail(IOException e) {
+        // a journal with gaps is worse than none
+        Log.e(getClass().getSimpleName(), "Journal disabled", e);
+        closeFile();
+    }
+
+    /**
+     * Close the journal once the pending records are written (it can be replayed later on).
+     */
+    void close() {
+        mOpen = false;
+        getWriter().execute(this::closeFile);
+    }
+
+    /**
+     * Close and delete the journal once the pending records are written (e.g. after the text was saved).
+     */
+    void delete() {
+        mOpen = false;
+        mHasCheckpoint = false;
+        mRecordsSinceCheckpoint = 0;
+        getWriter().execute(() -> {
+            closeFile();
+            mFile.delete();
+            mPosition = 0;
+            mPreviousCheckpoint = mLastCheckpoint = -1;
+        });
+    }
+
+    private void closeFile() {
+        closeQuietly(mOut != null ? mOut : mFileOut);
+        mOut = null;
+        mFileOut = null;
+        dropShadow();
+    }
+
+    /**
+     * Wait until the writer thread has written all pending records (of all journals).
+     */
+    static void awaitWriter() {
+        FutureTask<Void> barrier = new FutureTask<>(() -> {}, null);
+        getWriter().execute(barrier);
+        try {
+            barrier.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // the barrier does nothing
+        }
+    }
+
+    // ****************************************** Private Methods *******************************************
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+}
@@ -20,10 +20,9 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.text.Editable;
-import android.text.Layout;
-import android.text.Layout.Alignment;
 import android.text.Spannable;
 import android.text.Spanned;
+import android.view.Choreographer;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.AlphaAnimation;
@@ -33,44 +32,36 @@ import android.widget.Toast;
 
 import com.onegravity.rteditor.LinkFragment.Link;
 import com.onegravity.rteditor.LinkFragment.LinkEvent;
-import com.onegravity.rteditor.RTOperationManager.TextChangeOperation;
+import com.onegravity.rteditor.RTOperationManager.DeltaOperation;
 import com.onegravity.rteditor.api.RTApi;
 import com.onegravity.rteditor.api.media.RTImage;
 import com.onegravity.rteditor.api.media.RTMedia;
-import com.onegravity.rteditor.effects.AbsoluteSizeEffect;
-import com.onegravity.rteditor.effects.AlignmentEffect;
-import com.onegravity.rteditor.effects.BackgroundColorEffect;
-import com.onegravity.rteditor.effects.BoldEffect;
-import com.onegravity.rteditor.effects.BulletEffect;
+import com.onegravity.rteditor.converter.SpanCodec;
 import com.onegravity.rteditor.effects.Effect;
+import com.onegravity.rteditor.effects.EffectBatch;
 import com.onegravity.rteditor.effects.Effects;
-import com.onegravity.rteditor.effects.ForegroundColorEffect;
-import com.onegravity.rteditor.effects.ItalicEffect;
-import com.onegravity.rteditor.effects.NumberEffect;
 import com.onegravity.rteditor.effects.SpanCollectMode;
-import com.onegravity.rteditor.effects.StrikethroughEffect;
-import com.onegravity.rteditor.effects.SubscriptEffect;
-import com.onegravity.rteditor.effects.SuperscriptEffect;
-import com.onegravity.rteditor.effects.TypefaceEffect;
-import com.onegravity.rteditor.effects.UnderlineEffect;
-import com.onegravity.rteditor.fonts.RTTypeface;
 import com.onegravity.rteditor.media.choose.MediaChooserActivity;
 import com.onegravity.rteditor.media.choose.MediaEvent;
+import com.onegravity.rteditor.metrics.RTMetrics;
+import com.onegravity.rteditor.metrics.RTMetrics.Phase;
 import com.onegravity.rteditor.spans.ImageSpan;
 import com.onegravity.rteditor.spans.LinkSpan;
 import com.onegravity.rteditor.spans.RTSpan;
 import com.onegravity.rteditor.utils.Constants.MediaAction;
-import com.onegravity.rteditor.utils.Helper;
 import com.onegravity.rteditor.utils.Selection;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -165,6 +156,21 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
      */
     final transient private RTOperationManager mOPManager;
 
+    /*
+     * Selection changes are coalesced and the toolbars are updated once per frame.
+     * The state last applied to each toolbar (by toolbar id) is used to update only what has changed.
+     */
+    transient private RTUpdateScheduler mUpdateScheduler = new FrameScheduler();
+    transient private RTEditText mToolbarUpdateEditor;
+    transient private boolean mToolbarUpdatePending;
+    final transient private Map<Integer, RTToolbarState> mToolbarStates;
+    final transient private Runnable mToolbarUpdate = new Runnable() {
+        @Override
+        public void run() {
+            updateToolbars();
+        }
+    };
+
     // ****************************************** Lifecycle Methods *******************************************
 
     /**
@@ -180,6 +186,7 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
         mEditors = new ConcurrentHashMap<Integer, RTEditText>();
         mToolbars = new ConcurrentHashMap<Integer, RTToolbar>();
         mOPManager = new RTOperationManager();
+        mToolbarStates = new ConcurrentHashMap<Integer, RTToolbarState>();
 
         if (savedInstanceState != null) {
             String tmp = savedInstanceState.getString("mToolbarVisibility");
@@ -219,6 +226,27 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
     public void onDestroy(boolean isSaved) {
         EventBus.getDefault().unregister(this);
 
+        mOPManager.closeJournals();
+
+        if (mToolbarUpdatePending && mUpdateScheduler != null) {
+            mUpdateScheduler.cancel(mToolbarUpdate);
+        }
+        mToolbarUpdatePending = false;
+        mToolbarUpdateEditor = null;
+        mToolbarStates.clear();
+
+        // the documents shown in chunk editors decide which of their media are obsolete
+        Set<RTChunkedDocument> documents = new HashSet<>();
+        for (RTEditText editor : mEditors.values()) {
+            RTChunkedDocument document = editor.getChunkedDocument();
+            if (document != null) {
+                documents.add(document);
+            }
+        }
+        for (RTChunkedDocument document : documents) {
+            document.onDestroy(isSaved);
+        }
+
         for (RTEditText editor : mEditors.values()) {
             editor.unregister();
             editor.onDestroy(isSaved);
@@ -274,6 +302,68 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
         updateToolbarVisibility();
     }
 
+    /**
+     * Set the maximum memory the undo/redo history of all registered editors may use.
+     * If the history exceeds this size the oldest operations are discarded.
+     * Use this to limit the undo memory on low-RAM devices.
+     *
+     * @param maxSize The maximum size in bytes.
+     */
+    public void setUndoHistoryMaxSize(long maxSize) {
+        mOPManager.setMaxSize(maxSize);
+    }
+
+    /**
+     * @return The estimated memory used by the undo/redo history of all registered editors in bytes.
+     */
+    public long getUndoHistorySize() {
+        return mOPManager.getSize();
+    }
+
+    /**
+     * Write all changes of an editor to a journal file.
+     * <p>
+     * If the journal file exists (e.g. because the process was killed before the text was saved)
+     * the text and the undo/redo history of the editor are restored from the journal first.
+     * Otherwise the journal starts with the current text of the editor and its current undo/redo
+     * history is discarded, so call this right after setting the text.
+     * <p>
+     * Must be called from the ui thread after the editor was registered.
+     *
+     * @param editor      The rich text editor.
+     * @param journalFile The file to write the journal to.
+     * @return True if the text was restored from the journal, False otherwise.
+     */
+    public boolean openJournal(RTEditText editor, File journalFile) {
+        if (editor.getChunkedDocument() != null) {
+            throw new IllegalArgumentException("Journals aren't supported for editors showing a chunk of an RTChunkedDocument");
+        }
+        RTJournal journal = new RTJournal(journalFile, new SpanCodec(mRTApi));
+        boolean restored = journal.replay(editor, mOPManager);
+        if (!restored) {
+            mOPManager.flushOperations(editor);
+        }
+        if (journal.open()) {
+            mOPManager.setJournal(editor, journal);
+        }
+        return restored;
+    }
+
+    /**
+     * Stop writing the journal of an editor.
+     *
+     * @param editor The rich text editor.
+     * @param delete True to delete the journal file (e.g. because the text was saved),
+     *               False to keep it so it can be replayed later.
+     */
+    public void closeJournal(RTEditText editor, boolean delete) {
+        RTJournal journal = mOPManager.getJournal(editor);
+        mOPManager.setJournal(editor, null);
+        if (journal != null && delete) {
+            journal.delete();
+        }
+    }
+
     /**
      * Register a toolbar.
      * <p>
@@ -287,6 +377,7 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
      */
     public void registerToolbar(ViewGroup toolbarContainer, RTToolbar toolbar) {
         mToolbars.put(toolbar.getId(), toolbar);
+        mToolbarStates.remove(toolbar.getId());
         toolbar.setToolbarListener(this);
         toolbar.setToolbarContainer(toolbarContainer);
 
@@ -310,6 +401,7 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
      */
     public void unregisterToolbar(RTToolbar toolbar) {
         mToolbars.remove(toolbar.getId());
+        mToolbarStates.remove(toolbar.getId());
         toolbar.removeToolbarListener();
         updateToolbarVisibility();
     }
@@ -379,6 +471,9 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
     @Override
     /* @inheritDoc */
     public <V, C extends RTSpan<V>> void onEffectSelected(Effect<V, C> effect, V value) {
+        // the toolbar updated its own views so the next toolbar update needs to set all values
+        mToolbarStates.clear();
+
         RTEditText editor = getActiveEditor();
         if (editor != null) {
             editor.applyEffect(effect, value);
@@ -388,20 +483,12 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
     @Override
     /* @inheritDoc */
     public void onClearFormatting() {
+        mToolbarStates.clear();
+
         RTEditText editor = getActiveEditor();
         if (editor != null) {
-            int selStartBefore = editor.getSelectionStart();
-            int selEndBefore = editor.getSelectionEnd();
-            Spannable oldSpannable = editor.cloneSpannable();
-            for (Effect effect : Effects.FORMATTING_EFFECTS) {
-                effect.clearFormattingInSelection(editor);
-            }
-            int selStartAfter = editor.getSelectionStart();
-            int selEndAfter = editor.getSelectionEnd();
-            Spannable newSpannable = editor.cloneSpannable();
-            mOPManager.executed(editor, new TextChangeOperation(oldSpannable, newSpannable,
-                    selStartBefore, selEndBefore,
-                    selStartAfter, selEndAfter));
+            // one sweep over the spans and one undo/redo operation for all effects
+            editor.applyEffects(new EffectBatch().clearFormatting(Effects.FORMATTING_EFFECTS));
         }
     }
 
@@ -410,6 +497,8 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
     public void onUndo() {
         RTEditText editor = getActiveEditor();
         if (editor != null) {
+            // a running paste is recorded first, undo/redo must not interleave with its chunks
+            editor.finishPendingPaste();
             mOPManager.undo(editor);
         }
     }
@@ -419,6 +508,7 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
     public void onRedo() {
         RTEditText editor = getActiveEditor();
         if (editor != null) {
+            editor.finishPendingPaste();
             mOPManager.redo(editor);
         }
     }
@@ -490,7 +580,7 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
 
             try {
                 // now add the actual image and inform the RTOperationManager about the operation
-                Spannable oldSpannable = editor.cloneSpannable();
+                TextDelta.Recorder recorder = new TextDelta.Recorder(str, selection.start(), selection.end() + 1);
 
                 ImageSpan imageSpan = new ImageSpan(image, false);
                 str.setSpan(imageSpan, selection.start(), selection.end() + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
@@ -498,9 +588,9 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
                 int selEndAfter = editor.getSelectionEnd();
                 editor.onAddMedia(image);
 
-                Spannable newSpannable = editor.cloneSpannable();
+                TextDelta delta = recorder.finish(str, selection.end() + 1);
 
-                mOPManager.executed(editor, new RTOperationManager.TextChangeOperation(oldSpannable, newSpannable,
+                mOPManager.executed(editor, new DeltaOperation(delta,
                         selection.start(), selection.end(), selStartAfter, selEndAfter));
             } catch (OutOfMemoryError e) {
                 str.delete(selection.start(), selection.end() + 1);
@@ -571,111 +661,99 @@ public class RTManager implements RTToolbarListener, RTEditTextListener {
     public void onSelectionChanged(RTEditText editor, int start, int end) {
         if (editor == null) return;
 
-        // default values
-        boolean isBold = false;
-        boolean isItalic = false;
-        boolean isUnderLine = false;
-        boolean isStrikethrough = false;
-        boolean isSuperscript = false;
-        boolean isSubscript = false;
-        boolean isBullet = false;
-        boolean isNumber = false;
-        List<Alignment> alignments = null;
-        List<RTTypeface> typefaces = null;
-        List<Integer> sizes = null;
-        List<Integer> fontColors = null;
-        List<Integer> bgColors = null;
-
-        // check if effect exists in selection
-        for (Effect effect : Effects.ALL_EFFECTS) {
-            if (effect.existsInSelection(editor)) {
-                if (effect instanceof BoldEffect) {
-                    isBold = true;
-                } else if (effect instanceof ItalicEffect) {
-                    isItalic = true;
-                } else if (effect instanceof UnderlineEffect) {
-                    isUnderLine = true;
-                } else if (effect instanceof StrikethroughEffect) {
-                    isStrikethrough = true;
-                } else if (effect instanceof SuperscriptEffect) {
-                    isSuperscript = true;
-                } else if (effect instanceof SubscriptEffect) {
-                    isSubscript = true;
-                } else if (effect instanceof BulletEffect) {
-                    isBullet = true;
-                } else if (effect instanceof NumberEffect) {
-                    isNumber = true;
-                } else if (effect instanceof AlignmentEffect) {
-                    alignments = Effects.ALIGNMENT.valuesInSelection(editor);
-                } else if (effect instanceof TypefaceEffect) {
-                    typefaces = Effects.TYPEFACE.valuesInSelection(editor);
-                } else if (effect instanceof AbsoluteSizeEffect) {
-                    sizes = Effects.FONTSIZE.valuesInSelection(editor);
-                } else if (effect instanceof ForegroundColorEffect) {
-                    fontColors = Effects.FONTCOLOR.valuesInSelection(editor);
-                } else if (effect instanceof BackgroundColorEffect) {
-                    bgColors = Effects.BGCOLOR.valuesInSelection(editor);
+        // update the toolbar(s) once per frame, not for every selection change
+        mToolbarUpdateEditor = editor;
+        if (mUpdateScheduler == null) {
+            updateToolbars();
+        } else if (!mToolbarUpdatePending) {
+            mToolbarUpdatePending = true;
+            mUpdateScheduler.schedule(mToolbarUpdate);
+        }
+    }
+
+    private void updateToolbars() {
+        mToolbarUpdatePending = false;
+        RTEditText editor = mToolbarUpdateEditor;
+        mToolbarUpdateEditor = null;
+        if (editor == null) return;
+
+        long token = RTMetrics.begin(Phase.TOOLBAR_UPDATE);
+        try {
+            RTToolbarState state = new RTToolbarState(editor);
+            for (RTToolbar toolbar : mToolbars.values()) {
+                RTToolbarState previous = mToolbarStates.get(toolbar.getId());
+                if (!state.equals(previous)) {
+                    toolbar.setState(state, previous);
+                    mToolbarStates.put(toolbar.getId(), state);
                 }
             }
+        } finally {
+            RTMetrics.end(Phase.TOOLBAR_UPDATE, token);
         }
+    }
 
-        // update toolbar(s)
-        for (RTToolbar toolbar : mToolbars.values()) {
-            toolbar.setBold(isBold);
-            toolbar.setItalic(isItalic);
-            toolbar.setUnderline(isUnderLine);
-            toolbar.setStrikethrough(isStrikethrough);
-            toolbar.setSuperscript(isSuperscript);
-            toolbar.setSubscript(isSubscript);
-            toolbar.setBullet(isBullet);
-            toolbar.setNumber(isNumber);
-
-            // alignment (left, center, right)
-            if (alignments != null && alignments.size() == 1) {
-                toolbar.setAlignment(alignments.get(0));
-            } else {
-                boolean isRTL = Helper.isRTL(editor.getText(), start, end);
-                toolbar.setAlignment(isRTL ? Alignment.ALIGN_OPPOSITE : Layout.Alignment.ALIGN_NORMAL);
-            }
+    /**
+     * Measure the editor's hot phases (see RTMetrics) and report the histograms to a listener.
+     *
+     * @param listener         The MetricsListener or Null to stop measuring
+     * @param reportIntervalMs The minimum time between two reports (in milliseconds)
+     */
+    public void setMetricsListener(RTMetrics.MetricsListener listener, long reportIntervalMs) {
+        RTMetrics.setMetricsListener(listener, reportIntervalMs);
+    }
 
-            // fonts
-            if (typefaces != null && typefaces.size() == 1) {
-                toolbar.setFont(typefaces.get(0));
-            }
-            else {
-                toolbar.setFont(null);
-            }
+    /**
+     * Set the scheduler used to coalesce toolbar updates.
+     * By default the toolbars are updated once per frame.
+     *
+     * @param scheduler The RTUpdateScheduler or Null to update the toolbars immediately.
+     */
+    public void setUpdateScheduler(RTUpdateScheduler scheduler) {
+        if (mToolbarUpdatePending && mUpdateScheduler != null) {
+            mUpdateScheduler.cancel(mToolbarUpdate);
+            mToolbarUpdatePending = false;
+            updateToolbars();
+        }
+        mUpdateScheduler = scheduler;
+    }
 
-            // text size
-            if (sizes == null) {
-                toolbar.setFontSize(Math.round(editor.getTextSize()));
-            } else if (sizes.size() == 1) {
-                toolbar.setFontSize(sizes.get(0));
-            } else {
-                toolbar.setFontSize(-1);
+    /**
+     * Runs the work before the next frame is drawn.
+     */
+    private static class FrameScheduler implements RTUpdateScheduler, Choreographer.FrameCallback {
+        private Runnable mWork;
+
+        @Override
+        public void schedule(Runnable work) {
+            if (mWork == null) {
+                Choreographer.getInstance().postFrameCallback(this);
             }
+            mWork = work;
+        }
 
-            // font color
-            if (fontColors != null && fontColors.size() == 1) {
-                toolbar.setFontColor(fontColors.get(0));
-            } else {
-                toolbar.removeFontColor();
+        @Override
+        public void cancel(Runnable work) {
+            if (mWork == work) {
+                Choreographer.getInstance().removeFrameCallback(this);
+                mWork = null;
             }
+        }
 
-            // background color
-            if (bgColors != null && bgColors.size() == 1) {
-                toolbar.setBGColor(bgColors.get(0));
-            } else {
-                toolbar.removeBGColor();
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            Runnable work = mWork;
+            mWork = null;
+            if (work != null) {
+                work.run();
             }
         }
     }
 
     @Override
     /* @inheritDoc */
-    public void onTextChanged(RTEditText editor, Spannable before, Spannable after,
+    public void onTextChanged(RTEditText editor, TextDelta delta,
                               int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter) {
-        TextChangeOperation op = new TextChangeOperation(before, after,
+        DeltaOperation op = new DeltaOperation(delta,
                 selStartBefore, selEndBefore,
                 selStartAfter, selEndAfter);
         mOPManager.executed(editor, op);
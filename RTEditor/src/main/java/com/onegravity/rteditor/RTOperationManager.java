@@ -16,24 +16,35 @@
 
 package com.onegravity.rteditor;
 
-import android.annotation.SuppressLint;
-import android.text.Spannable;
-
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.WeakHashMap;
 
 /**
  * This class manages Operations for multiple rich text editors.
  * It's used by the RTManager to undo/redo operations.
+ * <p>
+ * The memory used by the undo/redo history of all editors is limited by a maximum size
+ * (see setMaxSize(long)). If the limit is exceeded the oldest operations are discarded.
  */
-@SuppressLint("UseSparseArrays")
 class RTOperationManager {
 
     /*
-     * Maximum number of operations to put in the undo/redo stack
+     * Default maximum size (in bytes) of the undo/redo history of all editors
+     */
+    private static final long DEFAULT_MAX_SIZE = 4 * 1024 * 1024;
+
+    /*
+     * Number of operations on top of an undo/redo stack that won't be compressed
      */
-    private static final int MAX_NR_OF_OPERATIONS = 50;
+    private static final int NR_OF_HOT_OPERATIONS = 10;
+
+    /*
+     * Estimated memory footprint of an operation without its change (in bytes)
+     */
+    private static final int OPERATION_SIZE = 48;
 
     /*
      * two operations performed in this time frame (in ms) are considered one
@@ -42,11 +53,18 @@ class RTOperationManager {
     private static final int TIME_BETWEEN_OPERATIONS = 300;
 
     /*
-     * The undo/redo stacks by editor Id
+     * The undo/redo stacks by history key (see RTEditText.getHistoryKey()), usually the editor
+     * itself or the chunk of an RTChunkedDocument it shows (stacks are lost once the key is garbage collected)
+     */
+    private final Map<Object, History> mUndoStacks = new WeakHashMap<>();
+    private final Map<Object, History> mRedoStacks = new WeakHashMap<>();
+
+    private long mMaxSize = DEFAULT_MAX_SIZE;
+
+    /*
+     * The journals by history key like the undo/redo stacks (optional)
      */
-    private Map<Integer, Stack<Operation>> mUndoStacks = new HashMap<>();
-    private Map<Integer, Stack<Operation>> mRedoStacks = new HashMap<>();
-    ;
+    private final Map<Object, RTJournal> mJournals = new WeakHashMap<>();
 
     // ****************************************** Operation Classes *******************************************
 
@@ -60,20 +78,26 @@ class RTOperationManager {
 
         private int mSelStartBefore;
         private int mSelEndBefore;
-        private Spannable mBefore;
 
         private int mSelStartAfter;
         private int mSelEndAfter;
-        private Spannable mAfter;
 
-        Operation(Spannable before, Spannable after, int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter) {
+        // the operation this one was merged with (null if there is none)
+        private Operation mPrevious;
+
+        // estimated memory footprint including the merged operations, -1 if it needs to be computed
+        private int mSize = -1;
+
+        Operation(int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter) {
+            this(System.currentTimeMillis(), selStartBefore, selEndBefore, selStartAfter, selEndAfter);
+        }
+
+        Operation(long timestamp, int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter) {
             mSelStartBefore = selStartBefore;
             mSelEndBefore = selEndBefore;
             mSelStartAfter = selStartAfter;
             mSelEndAfter = selEndAfter;
-            mBefore = before;
-            mAfter = after;
-            mTimestamp = System.currentTimeMillis();
+            mTimestamp = timestamp;
         }
 
         boolean canMerge(Operation other) {
@@ -81,30 +105,252 @@ class RTOperationManager {
         }
 
         Operation merge(Operation previousOp) {
-            mBefore = previousOp.mBefore;
+            mPrevious = previousOp;
+            mSize = -1;
             mSelStartBefore = previousOp.mSelStartBefore;
             mSelEndBefore = previousOp.mSelEndBefore;
             return this;
         }
 
-        void undo(RTEditText editor) {
+        /**
+         * Undo this operation and the merged ones.
+         * The changes are applied to the current text in place and within a batch edit.
+         * The scroll position is kept unless the selection would be outside the visible area.
+         */
+        final void undo(RTEditText editor) {
+            int scrollX = editor.getScrollX();
+            int scrollY = editor.getScrollY();
             editor.ignoreTextChanges();
-            editor.setText(mBefore);
-            editor.setSelection(mSelStartBefore, mSelEndBefore);
-            editor.registerTextChanges();
+            editor.beginBatchEdit();
+            try {
+                // undo the most recent change first
+                for (Operation op = this; op != null; op = op.mPrevious) {
+                    op.undoChange(editor);
+                }
+                editor.setSelection(mSelStartBefore, mSelEndBefore);
+            } finally {
+                editor.endBatchEdit();
+                editor.registerTextChanges();
+            }
+            restoreScrollPosition(editor, scrollX, scrollY);
         }
 
-        void redo(RTEditText editor) {
+        /**
+         * Redo this operation and the merged ones (see undo(RTEditText)).
+         */
+        final void redo(RTEditText editor) {
+            int scrollX = editor.getScrollX();
+            int scrollY = editor.getScrollY();
             editor.ignoreTextChanges();
-            editor.setText(mAfter);
-            editor.setSelection(mSelStartAfter, mSelEndAfter);
-            editor.registerTextChanges();
+            editor.beginBatchEdit();
+            try {
+                // redo the oldest change first
+                List<Operation> ops = new ArrayList<>();
+                for (Operation op = this; op != null; op = op.mPrevious) {
+                    ops.add(op);
+                }
+                for (int i = ops.size() - 1; i >= 0; i--) {
+                    ops.get(i).redoChange(editor);
+                }
+                editor.setSelection(mSelStartAfter, mSelEndAfter);
+            } finally {
+                editor.endBatchEdit();
+                editor.registerTextChanges();
+            }
+            restoreScrollPosition(editor, scrollX, scrollY);
+        }
+
+        private static void restoreScrollPosition(RTEditText editor, int scrollX, int scrollY) {
+            editor.scrollTo(scrollX, scrollY);
+            editor.bringPointIntoView(editor.getSelectionEnd());
+        }
+
+        /**
+         * Add the changes of this operation and the merged ones in the order undo(RTEditText)
+         * (or redo(RTEditText)) applies them.
+         */
+        final void collectChanges(List<TextDelta> changes, boolean undo) {
+            int first = changes.size();
+            for (Operation op = this; op != null; op = op.mPrevious) {
+                changes.add(op.toDelta());
+            }
+            if (!undo) {
+                Collections.reverse(changes.subList(first, changes.size()));
+            }
+        }
+
+        /**
+         * @return the estimated memory footprint of this operation including the merged ones (in bytes)
+         */
+        final int getSize() {
+            if (mSize < 0) {
+                mSize = OPERATION_SIZE + getChangeSize() + (mPrevious == null ? 0 : mPrevious.getSize());
+            }
+            return mSize;
+        }
+
+        /**
+         * Compress this operation and the merged ones.
+         */
+        final void compress() {
+            List<Operation> ops = new ArrayList<>();
+            for (Operation op = this; op != null; op = op.mPrevious) {
+                op.compressChange();
+                op.mSize = -1;
+                ops.add(op);
+            }
+            // compute the sizes starting with the oldest operation (avoids a deep recursion)
+            for (int i = ops.size() - 1; i >= 0; i--) {
+                ops.get(i).getSize();
+            }
+        }
+
+        /**
+         * Revert the change of this operation (without the merged ones).
+         */
+        abstract void undoChange(RTEditText editor);
+
+        /**
+         * Re-apply the change of this operation (without the merged ones).
+         */
+        abstract void redoChange(RTEditText editor);
+
+        /**
+         * @return the estimated memory footprint of the change of this operation (without the merged ones)
+         */
+        abstract int getChangeSize();
+
+        /**
+         * @return the change of this operation (without the merged ones) as TextDelta
+         */
+        abstract TextDelta toDelta();
+
+        /**
+         * Compress the change of this operation (without the merged ones) if it's supported.
+         */
+        void compressChange() {
         }
     }
 
-    static class TextChangeOperation extends Operation {
-        TextChangeOperation(Spannable before, Spannable after, int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter) {
-            super(before, after, selStartBefore, selEndBefore, selStartAfter, selEndAfter);
+    /**
+     * An operation that stores only the changed part of the text (see TextDelta).
+     */
+    static class DeltaOperation extends Operation {
+        private final TextDelta mDelta;
+
+        DeltaOperation(TextDelta delta, int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter) {
+            super(selStartBefore, selEndBefore, selStartAfter, selEndAfter);
+            mDelta = delta;
+        }
+
+        DeltaOperation(TextDelta delta, long timestamp, int selStartBefore, int selEndBefore, int selStartAfter, int selEndAfter) {
+            super(timestamp, selStartBefore, selEndBefore, selStartAfter, selEndAfter);
+            mDelta = delta;
+        }
+
+        @Override
+        void undoChange(RTEditText editor) {
+            mDelta.undo(editor.getText());
+        }
+
+        @Override
+        void redoChange(RTEditText editor) {
+            mDelta.redo(editor.getText());
+        }
+
+        @Override
+        int getChangeSize() {
+            return mDelta.getSize();
+        }
+
+        @Override
+        TextDelta toDelta() {
+            return mDelta;
+        }
+
+        @Override
+        void compressChange() {
+            mDelta.compress();
+        }
+    }
+
+    // ****************************************** History *******************************************
+
+    /**
+     * The undo or redo stack of a single editor.
+     * <p>
+     * It's implemented as a growing ring buffer so the oldest operation can be discarded in
+     * constant time. Operations that aren't among the most recent ones are compressed.
+     */
+    private static final class History {
+        private Operation[] mOperations = new Operation[16];
+        private int mFirst;     // index of the oldest operation
+        private int mCount;
+        private long mSize;     // estimated memory footprint of all operations
+
+        boolean isEmpty() {
+            return mCount == 0;
+        }
+
+        int size() {
+            return mCount;
+        }
+
+        long getSize() {
+            return mSize;
+        }
+
+        void push(Operation op) {
+            if (mCount == mOperations.length) {
+                Operation[] operations = new Operation[mOperations.length * 2];
+                for (int i = 0; i < mCount; i++) {
+                    operations[i] = mOperations[index(i)];
+                }
+                mOperations = operations;
+                mFirst = 0;
+            }
+            mOperations[index(mCount++)] = op;
+            mSize += op.getSize();
+
+            // the operation that just became "cold" is compressed
+            if (mCount > NR_OF_HOT_OPERATIONS) {
+                Operation coldOp = mOperations[index(mCount - 1 - NR_OF_HOT_OPERATIONS)];
+                mSize -= coldOp.getSize();
+                coldOp.compress();
+                mSize += coldOp.getSize();
+            }
+        }
+
+        Operation peek() {
+            return mCount == 0 ? null : mOperations[index(mCount - 1)];
+        }
+
+        Operation pop() {
+            int index = index(--mCount);
+            Operation op = mOperations[index];
+            mOperations[index] = null;
+            mSize -= op.getSize();
+            return op;
+        }
+
+        Operation removeOldest() {
+            Operation op = mOperations[mFirst];
+            mOperations[mFirst] = null;
+            mFirst = (mFirst + 1) % mOperations.length;
+            mCount--;
+            mSize -= op.getSize();
+            return op;
+        }
+
+        void clear() {
+            while (mCount > 0) {
+                pop();
+            }
+            mFirst = 0;
+        }
+
+        private int index(int i) {
+            return (mFirst + i) % mOperations.length;
         }
     }
 
@@ -117,12 +363,19 @@ class RTOperationManager {
      * @param op     The Operation that was performed
      */
     synchronized void executed(RTEditText editor, Operation op) {
-        Stack<Operation> undoStack = getUndoStack(editor);
-        Stack<Operation> redoStack = getRedoStack(editor);
+        History undoStack = getUndoStack(editor);
+        History redoStack = getRedoStack(editor);
+
+        RTJournal journal = mJournals.get(editor.getHistoryKey());
+        if (journal != null) {
+            journal.writeChange(op.toDelta(), op.mTimestamp,
+                                op.mSelStartBefore, op.mSelEndBefore, op.mSelStartAfter, op.mSelEndAfter);
+            checkpointIfNeeded(editor, journal);
+        }
 
         // if operations are executed in a quick succession we "merge" them to have but one
         // -> saves memory and makes more sense from a user perspective (each key stroke an undo? -> no way)
-        while (!undoStack.empty() && op.canMerge(undoStack.peek())) {
+        while (!undoStack.isEmpty() && op.canMerge(undoStack.peek())) {
             Operation previousOp = undoStack.pop();
             op.merge(previousOp);
         }
@@ -137,17 +390,21 @@ class RTOperationManager {
      * @param editor Undo the last operation for this rich text editor
      */
     synchronized void undo(RTEditText editor) {
-        Stack<Operation> undoStack = getUndoStack(editor);
-        if (!undoStack.empty()) {
-            Stack<Operation> redoStack = getRedoStack(editor);
+        History undoStack = getUndoStack(editor);
+        if (!undoStack.isEmpty()) {
+            History redoStack = getRedoStack(editor);
+            List<TextDelta> changes = mJournals.containsKey(editor.getHistoryKey()) ? new ArrayList<TextDelta>() : null;
             Operation op = undoStack.pop();
             push(op, redoStack);
             op.undo(editor);
-            while (!undoStack.empty() && op.canMerge(undoStack.peek())) {
+            collectChanges(op, changes, true);
+            while (!undoStack.isEmpty() && op.canMerge(undoStack.peek())) {
                 op = undoStack.pop();
                 push(op, redoStack);
                 op.undo(editor);
+                collectChanges(op, changes, true);
             }
+            journal(editor, true, changes);
         }
     }
 
@@ -157,18 +414,78 @@ class RTOperationManager {
      * @param editor Re-do an operation for this rich text editor
      */
     synchronized void redo(RTEditText editor) {
-        Stack<Operation> redoStack = getRedoStack(editor);
-        if (!redoStack.empty()) {
-            Stack<Operation> undoStack = getUndoStack(editor);
+        History redoStack = getRedoStack(editor);
+        if (!redoStack.isEmpty()) {
+            History undoStack = getUndoStack(editor);
+            List<TextDelta> changes = mJournals.containsKey(editor.getHistoryKey()) ? new ArrayList<TextDelta>() : null;
             Operation op = redoStack.pop();
             push(op, undoStack);
             op.redo(editor);
-            while (!redoStack.empty() && op.canMerge(redoStack.peek())) {
+            collectChanges(op, changes, false);
+            while (!redoStack.isEmpty() && op.canMerge(redoStack.peek())) {
                 op = redoStack.pop();
                 push(op, undoStack);
                 op.redo(editor);
+                collectChanges(op, changes, false);
             }
+            journal(editor, false, changes);
+        }
+    }
+
+    /**
+     * Set the maximum memory the undo/redo history of all editors may use.
+     * If the history exceeds this size the oldest operations are discarded.
+     *
+     * @param maxSize The maximum size in bytes
+     */
+    synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(null);
+    }
+
+    /**
+     * @return the estimated memory footprint of the undo/redo history of all editors (in bytes)
+     */
+    synchronized long getSize() {
+        long size = 0;
+        for (History history : mUndoStacks.values()) {
+            size += history.getSize();
+        }
+        for (History history : mRedoStacks.values()) {
+            size += history.getSize();
         }
+        return size;
+    }
+
+    /**
+     * Write all operations of the editor to a journal from now on.
+     * The journal needs to be open for writing.
+     *
+     * @param journal The journal or Null to stop writing the journal (the current one is closed).
+     */
+    synchronized void setJournal(RTEditText editor, RTJournal journal) {
+        Object key = editor.getHistoryKey();
+        RTJournal oldJournal = journal == null ? mJournals.remove(key) : mJournals.put(key, journal);
+        if (oldJournal != null && oldJournal != journal) {
+            oldJournal.close();
+        }
+        if (journal != null) {
+            checkpointIfNeeded(editor, journal);
+        }
+    }
+
+    synchronized RTJournal getJournal(RTEditText editor) {
+        return mJournals.get(editor.getHistoryKey());
+    }
+
+    /**
+     * Close the journals of all editors.
+     */
+    synchronized void closeJournals() {
+        for (RTJournal journal : mJournals.values()) {
+            journal.close();
+        }
+        mJournals.clear();
     }
 
     /**
@@ -177,36 +494,87 @@ class RTOperationManager {
      * @param editor This rich text editor's operations will be flushed
      */
     synchronized void flushOperations(RTEditText editor) {
-        Stack<Operation> undoStack = getUndoStack(editor);
-        Stack<Operation> redoStack = getRedoStack(editor);
+        History undoStack = getUndoStack(editor);
+        History redoStack = getRedoStack(editor);
         undoStack.clear();
         redoStack.clear();
     }
 
     // ****************************************** Private Methods *******************************************
 
-    private void push(Operation op, Stack<Operation> stack) {
-        if (stack.size() >= MAX_NR_OF_OPERATIONS) {
-            stack.remove(0);
+    /**
+     * @param changes The changes undo/redo applied to the text in the order they were applied
+     *                (Null if the editor has no journal).
+     */
+    private void journal(RTEditText editor, boolean undo, List<TextDelta> changes) {
+        RTJournal journal = mJournals.get(editor.getHistoryKey());
+        if (journal != null) {
+            if (undo) {
+                journal.writeUndo(changes);
+            } else {
+                journal.writeRedo(changes);
+            }
+            checkpointIfNeeded(editor, journal);
+        }
+    }
+
+    private void collectChanges(Operation op, List<TextDelta> changes, boolean undo) {
+        if (changes != null) {
+            op.collectChanges(changes, undo);
         }
+    }
+
+    private void checkpointIfNeeded(RTEditText editor, RTJournal journal) {
+        if (journal.needsCheckpoint()) {
+            journal.writeCheckpoint(editor.getText(), editor.getSelectionStart(), editor.getSelectionEnd());
+        }
+    }
+
+    private void push(Operation op, History stack) {
         stack.push(op);
+        trimToSize(stack);
+    }
+
+    /**
+     * Discard the oldest operations until the history fits into the maximum size.
+     * The stack the last operation was pushed to is trimmed first but its most recent operation is kept.
+     */
+    private void trimToSize(History current) {
+        long size = getSize();
+        if (current != null) {
+            while (size > mMaxSize && current.size() > 1) {
+                size -= current.removeOldest().getSize();
+            }
+        }
+        size = trimToSize(mRedoStacks, current, size);
+        trimToSize(mUndoStacks, current, size);
+    }
+
+    private long trimToSize(Map<Object, History> stacks, History current, long size) {
+        for (History stack : stacks.values()) {
+            while (size > mMaxSize && stack != current && !stack.isEmpty()) {
+                size -= stack.removeOldest().getSize();
+            }
+        }
+        return size;
     }
 
-    private Stack<Operation> getUndoStack(RTEditText editor) {
+    private History getUndoStack(RTEditText editor) {
         return getStack(mUndoStacks, editor);
     }
 
-    private Stack<Operation> getRedoStack(RTEditText editor) {
+    private History getRedoStack(RTEditText editor) {
         return getStack(mRedoStacks, editor);
     }
 
-    private Stack<Operation> getStack(Map<Integer, Stack<Operation>> stacks, RTEditText editor) {
-        Stack<Operation> stack = stacks.get(editor.getId());
+    private History getStack(Map<Object, History> stacks, RTEditText editor) {
+        Object key = editor.getHistoryKey();
+        History stack = stacks.get(key);
         if (stack == null) {
-            stack = new Stack<>();
-            stacks.put(editor.getId(), stack);
+            stack = new History();
+            stacks.put(key, stack);
         }
         return stack;
     }
 
-}
\ No newline at end of file
+}
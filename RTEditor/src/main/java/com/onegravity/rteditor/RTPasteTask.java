@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import com.onegravity.rteditor.api.RTMediaFactory;
+import com.onegravity.rteditor.api.format.RTText;
+import com.onegravity.rteditor.api.media.RTAudio;
+import com.onegravity.rteditor.api.media.RTImage;
+import com.onegravity.rteditor.api.media.RTVideo;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Pastes a large text into an RTEditText without blocking the UI thread (see RTEditText.pasteAsync).
+ * <p>
+ * The text is converted to a Spanned text on a background thread, then inserted in paragraph
+ * aligned chunks, one chunk per frame. The paragraphs are cleaned up once after the last chunk
+ * and the whole paste is recorded as one undo/redo operation.
+ * <p>
+ * If the text is modified by anything else while the chunks are inserted (e.g. the user types),
+ * the paste is cancelled. The chunks inserted so far remain and are recorded as one operation,
+ * which is reported right before the change that interrupted the paste.
+ * Undo/redo cancel a running paste before they modify the text (see RTEditText.finishPendingPaste).
+ */
+public class RTPasteTask {
+
+    /*
+     * Minimum size of a chunk (in characters), a chunk ends with the first paragraph ending after this size
+     */
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Notified on the UI thread.
+     */
+    public interface PasteListener {
+        /**
+         * @param inserted The number of characters inserted so far
+         * @param total    The number of characters to insert
+         */
+        void onPasteProgress(RTEditText editor, int inserted, int total);
+
+        void onPasteFinished(RTEditText editor, boolean cancelled);
+    }
+
+    private static Executor sExecutor;
+
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "RTPasteTask");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        }
+        return sExecutor;
+    }
+
+    private final RTEditText mEditor;
+    private final PasteListener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private Future<Spanned> mConversion;
+
+    // the converted text and the number of characters inserted so far
+    private Spanned mText;
+    private int mInserted;
+    private int mInsertPos;
+
+    // records the whole paste as one change
+    private TextDelta.Recorder mRecorder;
+    private int mRecordEnd;
+    private int mOldLength;
+    private int mSelStartBefore;
+    private int mSelEndBefore;
+
+    private boolean mInsertingChunk;
+    private boolean mDone;
+
+    private final TextWatcher mWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            if (!mInsertingChunk) {
+                // somebody else is changing the text -> the remaining chunks can't be inserted,
+                // the paste is reported by the editor before that change (not from within it)
+                finish(true, true);
+            }
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+        @Override
+        public void afterTextChanged(Editable s) {}
+    };
+
+    private final Runnable mInsertNextChunk = this::insertNextChunk;
+
+    RTPasteTask(RTEditText editor, PasteListener listener) {
+        mEditor = editor;
+        mListener = listener;
+    }
+
+    void start(final RTText rtText, final RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory) {
+        final FutureTask<Spanned> conversion = new FutureTask<Spanned>(() -> RTChunkedDocument.toSpanned(rtText, mediaFactory)) {
+            @Override
+            protected void done() {
+                if (!isCancelled()) {
+                    mHandler.post(() -> onConverted(this));
+                }
+            }
+        };
+        mConversion = conversion;
+        getExecutor().execute(conversion);
+    }
+
+    /**
+     * Stop pasting. The chunks inserted so far remain (as one undo/redo operation).
+     */
+    public void cancel() {
+        if (mConversion != null) {
+            mConversion.cancel(true);
+        }
+        finish(true, false);
+    }
+
+    public boolean isDone() {
+        return mDone;
+    }
+
+    // ****************************************** Insertion *******************************************
+
+    private void onConverted(Future<Spanned> conversion) {
+        if (mDone || conversion != mConversion) {
+            return;
+        }
+
+        try {
+            mText = conversion.get();
+        } catch (Exception e) {
+            // the conversion failed, nothing to paste
+            finish(true, false);
+            return;
+        }
+
+        Editable text = mEditor.getText();
+        int selStart = Math.max(0, Math.min(mEditor.getSelectionStart(), mEditor.getSelectionEnd()));
+        int selEnd = Math.max(0, Math.max(mEditor.getSelectionStart(), mEditor.getSelectionEnd()));
+
+        // record whole paragraphs, the paragraph cleanup at the end may change their spans
+        int recordStart = selStart;
+        while (recordStart > 0 && text.charAt(recordStart - 1) != '\n') {
+            recordStart--;
+        }
+        int recordEnd = selEnd;
+        while (recordEnd < text.length() && text.charAt(recordEnd) != '\n') {
+            recordEnd++;
+        }
+
+        if (mEditor.isRecordingChanges()) {
+            mRecorder = new TextDelta.Recorder(text, recordStart, recordEnd);
+            mRecordEnd = recordEnd;
+            mOldLength = text.length();
+            mSelStartBefore = mEditor.getSelectionStart();
+            mSelEndBefore = mEditor.getSelectionEnd();
+        }
+
+        mEditor.addTextChangedListener(mWatcher);
+        insert(selStart, selEnd, "", 0, 0);
+        mInsertPos = selStart;
+        insertNextChunk();
+    }
+
+    private void insertNextChunk() {
+        if (mDone) {
+            return;
+        }
+
+        int length = mText.length();
+        int end = Math.min(length, mInserted + CHUNK_SIZE);
+        while (end < length && mText.charAt(end - 1) != '\n') {
+            end++;
+        }
+
+        insert(mInsertPos, mInsertPos, mText, mInserted, end);
+        mInsertPos += end - mInserted;
+        mInserted = end;
+        mEditor.setSelection(mInsertPos);
+
+        if (mListener != null) {
+            mListener.onPasteProgress(mEditor, mInserted, length);
+        }
+
+        if (mInserted < length) {
+            mEditor.postOnAnimation(mInsertNextChunk);
+        } else {
+            finish(false, false);
+        }
+    }
+
+    private void insert(int start, int end, CharSequence text, int textStart, int textEnd) {
+        mInsertingChunk = true;
+        mEditor.ignoreTextChanges();
+        try {
+            mEditor.getText().replace(start, end, text, textStart, textEnd);
+        } finally {
+            mEditor.registerTextChanges();
+            mInsertingChunk = false;
+        }
+    }
+
+    /**
+     * @param interrupted True if another text change is just starting (called from beforeTextChanged)
+     */
+    private void finish(boolean cancelled, boolean interrupted) {
+        if (mDone) {
+            return;
+        }
+        mDone = true;
+        mEditor.removeCallbacks(mInsertNextChunk);
+        mEditor.removeTextChangedListener(mWatcher);
+
+        if (!cancelled) {
+            // merge the spans split at the chunk boundaries and clean up the pasted paragraphs once
+            mEditor.compactSpans(false);
+            mEditor.cleanupParagraphs(false);
+        }
+
+        if (mRecorder != null) {
+            Editable text = mEditor.getText();
+            TextDelta delta = mRecorder.finish(text, mRecordEnd + text.length() - mOldLength);
+            mRecorder = null;
+            if (interrupted) {
+                mEditor.reportChangeBefore(delta, mSelStartBefore, mSelEndBefore);
+            } else {
+                mEditor.reportChange(delta, mSelStartBefore, mSelEndBefore);
+            }
+        }
+
+        mText = null;
+        if (mListener != null) {
+            mListener.onPasteFinished(mEditor, cancelled);
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor;
+
+import android.content.Context;
+import android.util.AttributeSet;
+
+import androidx.core.text.PrecomputedTextCompat;
+
+import com.onegravity.rteditor.api.RTMediaFactory;
+import com.onegravity.rteditor.api.format.RTFormat;
+import com.onegravity.rteditor.api.format.RTHtml;
+import com.onegravity.rteditor.api.format.RTText;
+import com.onegravity.rteditor.api.media.RTAudio;
+import com.onegravity.rteditor.api.media.RTImage;
+import com.onegravity.rteditor.api.media.RTVideo;
+import com.onegravity.rteditor.converter.ConverterHtmlToSpanned;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A read-only view for rich text (e.g. for list items).
+ * <p>
+ * Other than the RTEditText it doesn't need to be registered with an RTManager and it has no
+ * text or span watchers. The html is converted and the text layout is precomputed on a background
+ * thread (see setRichText(RTText)), the view blocks only if it needs to be measured before that's done.
+ */
+public class RTTextView extends androidx.appcompat.widget.AppCompatTextView {
+
+    private static Executor sExecutor;
+
+    private RTMediaFactory<RTImage, RTAudio, RTVideo> mMediaFactory;
+
+    // the text that is currently converted/precomputed
+    private Future<PrecomputedTextCompat> mTextFuture;
+
+    public RTTextView(Context context) {
+        super(context);
+    }
+
+    public RTTextView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public RTTextView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+    }
+
+    /**
+     * Set the Executor used to convert and precompute the texts of all RTTextViews.
+     * The default Executor uses two low priority background threads.
+     */
+    public static synchronized void setExecutor(Executor executor) {
+        sExecutor = executor;
+    }
+
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(2, runnable -> {
+                Thread thread = new Thread(runnable, "RTTextView");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * The RTMediaFactory is needed to show rich text with images.
+     */
+    public void setMediaFactory(RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory) {
+        mMediaFactory = mediaFactory;
+    }
+
+    /**
+     * Set the text of this view.
+     * RTFormat.HTML is converted to a Spanned text, then the text layout is precomputed, both on a
+     * background thread. Setting another text before that's done cancels the pending conversion.
+     */
+    public void setRichText(final RTText rtText) {
+        if (mTextFuture != null) {
+            mTextFuture.cancel(false);
+        }
+
+        final boolean isHtml = rtText.getFormat() instanceof RTFormat.Html;
+        if (isHtml && mMediaFactory == null) {
+            throw new IllegalStateException("The RTMediaFactory is null. Please call setMediaFactory before setting rich text.");
+        }
+
+        final RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory = mMediaFactory;
+        final PrecomputedTextCompat.Params params = getTextMetricsParamsCompat();
+        FutureTask<PrecomputedTextCompat> task = new FutureTask<>(() -> {
+            CharSequence text = isHtml ?
+                    new ConverterHtmlToSpanned().convert((RTHtml<?, ?, ?>) rtText, mediaFactory).getText() :
+                    rtText.getText();
+            return PrecomputedTextCompat.create(text == null ? "" : text, params);
+        });
+        mTextFuture = task;
+        getExecutor().execute(task);
+        setTextFuture(task);
+    }
+
+}
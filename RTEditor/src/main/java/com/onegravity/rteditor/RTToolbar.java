@@ -63,6 +63,22 @@ public interface RTToolbar {
      */
     ViewGroup getToolbarContainer();
 
+    /**
+     * Update the toolbar to the state of the current selection.
+     * This is called by the RTManager (at most once per frame) instead of the individual setters.
+     * <p>
+     * The default implementation calls the setters for the values that differ from the previous state.
+     * Implementations can override this to diff against the state they applied last and to update
+     * their views more efficiently.
+     *
+     * @param state The new state.
+     * @param previous The state passed in the previous call or Null if all values need to be set
+     *                 (first call or the user changed the toolbar since).
+     */
+    default void setState(RTToolbarState state, RTToolbarState previous) {
+        state.applyTo(this, previous);
+    }
+
     void setBold(boolean enabled);
 
     void setItalic(boolean enabled);
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor;
+
+import android.text.Layout;
+import android.text.Layout.Alignment;
+
+import com.onegravity.rteditor.effects.Effects;
+import com.onegravity.rteditor.effects.SelectionStyleState;
+import com.onegravity.rteditor.fonts.RTTypeface;
+import com.onegravity.rteditor.utils.Helper;
+
+import java.util.List;
+
+/**
+ * The state of a rich text toolbar for the current selection of an RTEditText
+ * (which effects are on, the current alignment, font, text size and colors).
+ * <p>
+ * The state is immutable so it can be compared to the state applied before
+ * to update only what has changed (see RTToolbar.setState(RTToolbarState, RTToolbarState)).
+ */
+public final class RTToolbarState {
+
+    private final boolean mBold;
+    private final boolean mItalic;
+    private final boolean mUnderline;
+    private final boolean mStrikethrough;
+    private final boolean mSuperscript;
+    private final boolean mSubscript;
+    private final boolean mBullet;
+    private final boolean mNumber;
+    private final Layout.Alignment mAlignment;
+    private final RTTypeface mFont;
+    private final int mFontSize;
+    private final Integer mFontColor;
+    private final Integer mBGColor;
+
+    /**
+     * Compute the toolbar state for the current selection of the editor.
+     */
+    public RTToolbarState(RTEditText editor) {
+        SelectionStyleState state = editor.getSelectionStyleState();
+
+        mBold = state.exists(Effects.BOLD);
+        mItalic = state.exists(Effects.ITALIC);
+        mUnderline = state.exists(Effects.UNDERLINE);
+        mStrikethrough = state.exists(Effects.STRIKETHROUGH);
+        mSuperscript = state.exists(Effects.SUPERSCRIPT);
+        mSubscript = state.exists(Effects.SUBSCRIPT);
+        mBullet = state.exists(Effects.BULLET);
+        mNumber = state.exists(Effects.NUMBER);
+
+        // alignment (left, center, right)
+        List<Alignment> alignments = state.getValues(Effects.ALIGNMENT);
+        if (alignments.size() == 1) {
+            mAlignment = alignments.get(0);
+        } else {
+            int start = Math.min(editor.getSelectionStart(), editor.getSelectionEnd());
+            int end = Math.max(editor.getSelectionStart(), editor.getSelectionEnd());
+            boolean isRTL = Helper.isRTL(editor.getText(), start, end);
+            mAlignment = isRTL ? Alignment.ALIGN_OPPOSITE : Layout.Alignment.ALIGN_NORMAL;
+        }
+
+        // fonts
+        List<RTTypeface> typefaces = state.getValues(Effects.TYPEFACE);
+        mFont = typefaces.size() == 1 ? typefaces.get(0) : null;
+
+        // text size
+        List<Integer> sizes = state.getValues(Effects.FONTSIZE);
+        mFontSize = sizes.isEmpty() ? Math.round(editor.getTextSize()) :
+                    sizes.size() == 1 ? sizes.get(0) :
+                    -1;
+
+        // font and background color
+        List<Integer> fontColors = state.getValues(Effects.FONTCOLOR);
+        mFontColor = fontColors.size() == 1 ? fontColors.get(0) : null;
+        List<Integer> bgColors = state.getValues(Effects.BGCOLOR);
+        mBGColor = bgColors.size() == 1 ? bgColors.get(0) : null;
+    }
+
+    public boolean isBold() {
+        return mBold;
+    }
+
+    public boolean isItalic() {
+        return mItalic;
+    }
+
+    public boolean isUnderline() {
+        return mUnderline;
+    }
+
+    public boolean isStrikethrough() {
+        return mStrikethrough;
+    }
+
+    public boolean isSuperscript() {
+        return mSuperscript;
+    }
+
+    public boolean isSubscript() {
+        return mSubscript;
+    }
+
+    public boolean isBullet() {
+        return mBullet;
+    }
+
+    public boolean isNumber() {
+        return mNumber;
+    }
+
+    public Layout.Alignment getAlignment() {
+        return mAlignment;
+    }
+
+    /**
+     * @return the font or Null if the selection has no or more than one font
+     */
+    public RTTypeface getFont() {
+        return mFont;
+    }
+
+    /**
+     * @return the text size or -1 if the selection has more than one text size
+     */
+    public int getFontSize() {
+        return mFontSize;
+    }
+
+    /**
+     * @return the font color or Null if the selection has no or more than one font color
+     */
+    public Integer getFontColor() {
+        return mFontColor;
+    }
+
+    /**
+     * @return the background color or Null if the selection has no or more than one background color
+     */
+    public Integer getBGColor() {
+        return mBGColor;
+    }
+
+    /**
+     * Update the toolbar to this state.
+     * Only the values that differ from the previous state are set.
+     *
+     * @param previous The state applied to the toolbar before or Null to set all values.
+     */
+    public void applyTo(RTToolbar toolbar, RTToolbarState previous) {
+        boolean all = previous == null;
+
+        if (all || mBold != previous.mBold) toolbar.setBold(mBold);
+        if (all || mItalic != previous.mItalic) toolbar.setItalic(mItalic);
+        if (all || mUnderline != previous.mUnderline) toolbar.setUnderline(mUnderline);
+        if (all || mStrikethrough != previous.mStrikethrough) toolbar.setStrikethrough(mStrikethrough);
+        if (all || mSuperscript != previous.mSuperscript) toolbar.setSuperscript(mSuperscript);
+        if (all || mSubscript != previous.mSubscript) toolbar.setSubscript(mSubscript);
+        if (all || mBullet != previous.mBullet) toolbar.setBullet(mBullet);
+        if (all || mNumber != previous.mNumber) toolbar.setNumber(mNumber);
+        if (all || mAlignment != previous.mAlignment) toolbar.setAlignment(mAlignment);
+        if (all || !equals(mFont, previous.mFont)) toolbar.setFont(mFont);
+        if (all || mFontSize != previous.mFontSize) toolbar.setFontSize(mFontSize);
+
+        if (all || !equals(mFontColor, previous.mFontColor)) {
+            if (mFontColor != null) {
+                toolbar.setFontColor(mFontColor);
+            } else {
+                toolbar.removeFontColor();
+            }
+        }
+
+        if (all || !equals(mBGColor, previous.mBGColor)) {
+            if (mBGColor != null) {
+                toolbar.setBGColor(mBGColor);
+            } else {
+                toolbar.removeBGColor();
+            }
+        }
+    }
+
+    private static boolean equals(Object o1, Object o2) {
+        return o1 == null ? o2 == null : o1.equals(o2);
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof RTToolbarState)) {
+            return false;
+        }
+        RTToolbarState other = (RTToolbarState) object;
+        return mBold == other.mBold && mItalic == other.mItalic && mUnderline == other.mUnderline &&
+               mStrikethrough == other.mStrikethrough && mSuperscript == other.mSuperscript &&
+               mSubscript == other.mSubscript && mBullet == other.mBullet && mNumber == other.mNumber &&
+               mAlignment == other.mAlignment && equals(mFont, other.mFont) && mFontSize == other.mFontSize &&
+               equals(mFontColor, other.mFontColor) && equals(mBGColor, other.mBGColor);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = (mBold ? 1 : 0) | (mItalic ? 2 : 0) | (mUnderline ? 4 : 0) | (mStrikethrough ? 8 : 0) |
+                   (mSuperscript ? 16 : 0) | (mSubscript ? 32 : 0) | (mBullet ? 64 : 0) | (mNumber ? 128 : 0);
+        hash = 31 * hash + (mAlignment == null ? 0 : mAlignment.hashCode());
+        // RTTypeface doesn't override hashCode() so the font isn't part of the hash
+        hash = 31 * hash + mFontSize;
+        hash = 31 * hash + (mFontColor == null ? 0 : mFontColor);
+        hash = 31 * hash + (mBGColor == null ? 0 : mBGColor);
+        return hash;
+    }
+
+}
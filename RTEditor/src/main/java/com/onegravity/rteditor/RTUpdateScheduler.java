@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor;
+
+/**
+ * Schedules deferred work, like the toolbar updates of the RTManager.
+ * <p>
+ * The default implementation runs the work before the next frame is drawn (using the Choreographer)
+ * so that all selection changes within one frame result in a single toolbar update.
+ * A custom scheduler can be set with RTManager.setUpdateScheduler(RTUpdateScheduler).
+ */
+public interface RTUpdateScheduler {
+
+    /**
+     * Run the work once at a later point in time (on the ui thread).
+     */
+    void schedule(Runnable work);
+
+    /**
+     * Cancel work scheduled before but not run yet.
+     */
+    void cancel(Runnable work);
+
+}
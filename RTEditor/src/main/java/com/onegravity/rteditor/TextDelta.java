@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.Spanned;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+
+import com.onegravity.rteditor.converter.SpanCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A TextDelta describes the change of a Spannable by the text range that was replaced and the
+ * spans attached to that range before and after the change (used for undo/redo).
+ * <p>
+ * Other than a ClonedSpannableString it doesn't copy the whole text but only the part that was
+ * changed, so its size depends on the size of the change and not on the size of the document.
+ * A TextDelta can be applied in both directions: undo() turns the "after" text into the "before"
+ * text and redo() does the opposite.
+ * <p>
+ * Like the ClonedSpannableString it only records CharacterStyle and ParagraphStyle spans.
+ */
+public final class TextDelta {
+
+    /*
+     * Texts shorter than this aren't worth compressing
+     */
+    private static final int MIN_COMPRESS_LENGTH = 256;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /*
+     * Estimated memory footprint of the delta itself and of a single span record (in bytes)
+     */
+    private static final int DELTA_SIZE = 64;
+    private static final int SPAN_RECORD_SIZE = 24;
+
+    private final int mStart;
+    private final int mOldLength;
+    private final int mNewLength;
+
+    // the replaced text and its replacement, both are null if the text didn't change (span changes only)
+    private String mOldText;
+    private String mNewText;
+    private final boolean mTextChanged;
+
+    // the replaced text and its replacement if they are compressed (see compress())
+    private byte[] mOldTextCompressed;
+    private byte[] mNewTextCompressed;
+
+    // the spans attached to the range before and after the change
+    private final SpanRecords mOldSpans;
+    private final SpanRecords mNewSpans;
+
+    private TextDelta(int start, int oldLength, int newLength, String oldText, String newText,
+                      SpanRecords oldSpans, SpanRecords newSpans) {
+        mStart = start;
+        mOldLength = oldLength;
+        mNewLength = newLength;
+        mOldText = oldText;
+        mNewText = newText;
+        mTextChanged = newText != null;
+        mOldSpans = oldSpans;
+        mNewSpans = newSpans;
+    }
+
+    /**
+     * @return the position of the change in the text
+     */
+    public int getStart() {
+        return mStart;
+    }
+
+    /**
+     * @return the length of the changed range before the change
+     */
+    public int getOldLength() {
+        return mOldLength;
+    }
+
+    /**
+     * @return the length of the changed range after the change
+     */
+    public int getNewLength() {
+        return mNewLength;
+    }
+
+    /**
+     * @return True if the text changed, False if only spans were added, removed or changed
+     */
+    public boolean isTextChange() {
+        return mTextChanged;
+    }
+
+    /**
+     * @return True if neither the text nor the spans changed
+     */
+    public boolean isEmpty() {
+        return !mTextChanged && mOldSpans.sameAs(mNewSpans);
+    }
+
+    /**
+     * @return the estimated memory footprint of this delta in bytes
+     */
+    public int getSize() {
+        return DELTA_SIZE +
+               textSize(mOldText, mOldTextCompressed) + textSize(mNewText, mNewTextCompressed) +
+               (mOldSpans.mSpanCount + mNewSpans.mSpanCount) * SPAN_RECORD_SIZE;
+    }
+
+    private static int textSize(String text, byte[] compressed) {
+        return text != null ? text.length() * 2 : compressed != null ? compressed.length : 0;
+    }
+
+    /**
+     * Compress the replaced text and its replacement if they are long enough to make it worthwhile.
+     * The text is decompressed when the delta is applied (undo/redo) but the delta stays compressed.
+     */
+    void compress() {
+        if (mOldText != null && mOldText.length() >= MIN_COMPRESS_LENGTH) {
+            mOldTextCompressed = deflate(mOldText);
+            mOldText = null;
+        }
+        if (mNewText != null && mNewText.length() >= MIN_COMPRESS_LENGTH) {
+            mNewTextCompressed = deflate(mNewText);
+            mNewText = null;
+        }
+    }
+
+    /**
+     * Turn the "after" text into the "before" text.
+     */
+    void undo(Editable text) {
+        String oldText = mOldTextCompressed != null ? inflate(mOldTextCompressed) : mOldText;
+        apply(text, mNewLength, oldText, mNewSpans, mOldSpans);
+    }
+
+    /**
+     * Turn the "before" text into the "after" text.
+     */
+    void redo(Editable text) {
+        String newText = mNewTextCompressed != null ? inflate(mNewTextCompressed) : mNewText;
+        apply(text, mOldLength, newText, mOldSpans, mNewSpans);
+    }
+
+    private void apply(Editable text, int replaceLength, String replacement, SpanRecords remove, SpanRecords add) {
+        if (replacement != null) {
+            // a String has no spans so the replacement won't add any spans on its own
+            text.replace(mStart, mStart + replaceLength, replacement);
+        }
+        remove.removeFrom(text);
+        add.applyTo(text);
+    }
+
+    // ****************************************** Serialization *******************************************
+
+    /**
+     * Write the "after" part of the delta (the new text and its spans).
+     * That's all we need to replay the change on the "before" text (see replay(Editable, DataInput, SpanCodec)).
+     */
+    void write(DataOutput out, SpanCodec codec) throws IOException {
+        out.writeInt(mStart);
+        out.writeInt(mOldLength);
+        out.writeInt(mNewLength);
+        out.writeBoolean(mTextChanged);
+        if (mTextChanged) {
+            SpanCodec.writeString(out, mNewTextCompressed != null ? inflate(mNewTextCompressed) : mNewText);
+        }
+        mNewSpans.write(out, codec);
+    }
+
+    /**
+     * Write the "before" part of the delta (the replaced text and its spans) like
+     * write(DataOutput, SpanCodec) writes the "after" part.
+     * Replaying it on the "after" text undoes the change.
+     */
+    void writeUndo(DataOutput out, SpanCodec codec) throws IOException {
+        out.writeInt(mStart);
+        out.writeInt(mNewLength);
+        out.writeInt(mOldLength);
+        out.writeBoolean(mTextChanged);
+        if (mTextChanged) {
+            SpanCodec.writeString(out, mOldTextCompressed != null ? inflate(mOldTextCompressed) : mOldText);
+        }
+        mOldSpans.write(out, codec);
+    }
+
+    /**
+     * Apply a change written by write(DataOutput, SpanCodec) or writeUndo(DataOutput, SpanCodec) to the text.
+     * The spans attached to the changed range are replaced by the written ones.
+     *
+     * @return the TextDelta for the applied change
+     * @throws IOException if the change can't be read or doesn't match the text
+     */
+    static TextDelta replay(Editable text, DataInput in, SpanCodec codec) throws IOException {
+        int start = in.readInt();
+        int oldLength = in.readInt();
+        int newLength = in.readInt();
+        String newText = in.readBoolean() ? SpanCodec.readString(in) : null;
+
+        int oldEnd = start + oldLength;
+        if (start < 0 || oldLength < 0 || oldEnd > text.length() ||
+            (newText == null ? newLength != oldLength : newText.length() != newLength)) {
+            throw new IOException("The change [" + start + ", " + oldEnd + "] doesn't match the text");
+        }
+
+        Recorder recorder = new Recorder(text, start, oldEnd);
+        if (newText != null) {
+            text.replace(start, oldEnd, newText);
+        }
+        // nothing is marked as shared yet so all spans of the changed range are removed
+        recorder.mOldSpans.removeFrom(text);
+        codec.readSpans(in, text, 0);
+
+        return recorder.finish(text, start + newLength);
+    }
+
+    private static byte[] deflate(String text) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            byte[] input = text.getBytes(UTF8);
+            deflater.setInput(input);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(input.length / 2 + 16);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static String inflate(byte[] compressed) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[4096];
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                out.write(buffer, 0, count);
+            }
+            return new String(out.toByteArray(), UTF8);
+        } catch (DataFormatException e) {
+            // we compressed the data ourselves so this should never happen
+            throw new IllegalStateException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // ****************************************** Recorder *******************************************
+
+    /**
+     * Records a TextDelta.
+     * Create the Recorder before the change with the range that is about to change and call
+     * finish(Spanned, int) after the change with the end of the changed range.
+     * <p>
+     * Spans that only touch the range (adjacent spans) are recorded too because their size can
+     * change when text is inserted at their start or end.
+     */
+    static final class Recorder {
+        private final int mStart;
+        private final int mOldEnd;
+        private final String mOldText;
+        private final SpanRecords mOldSpans;
+
+        Recorder(Spanned text, int start, int end) {
+            mStart = start;
+            mOldEnd = end;
+            mOldText = text.subSequence(start, end).toString();
+            mOldSpans = SpanRecords.capture(text, start, end);
+        }
+
+        int getStart() {
+            return mStart;
+        }
+
+        TextDelta finish(Spanned text, int newEnd) {
+            String newText = text.subSequence(mStart, newEnd).toString();
+            SpanRecords newSpans = SpanRecords.capture(text, mStart, newEnd);
+            SpanRecords.markShared(mOldSpans, newSpans);
+
+            boolean textChanged = !mOldText.equals(newText);
+            return new TextDelta(mStart, mOldEnd - mStart, newEnd - mStart,
+                                 textChanged ? mOldText : null, textChanged ? newText : null,
+                                 mOldSpans, newSpans);
+        }
+    }
+
+    // ****************************************** SpanRecords *******************************************
+
+    /**
+     * The spans attached to a text range with their start, end and flags.
+     * The data layout is the same as in ClonedSpannableString.
+     */
+    private static final class SpanRecords {
+        private static final int START = 0;
+        private static final int END = 1;
+        private static final int FLAGS = 2;
+        private static final int COLUMNS = 3;
+
+        private final Object[] mSpans;
+        private final int[] mSpanData;
+        private final int mSpanCount;
+
+        // True if the span is part of the "other" SpanRecords too (before vs. after the change)
+        private final boolean[] mShared;
+
+        private SpanRecords(Object[] spans, int[] spanData, int spanCount) {
+            mSpans = spans;
+            mSpanData = spanData;
+            mSpanCount = spanCount;
+            mShared = new boolean[spanCount];
+        }
+
+        static SpanRecords capture(Spanned text, int start, int end) {
+            // widen the range by one character to find adjacent spans too
+            int length = text.length();
+            Object[] candidates = text.getSpans(Math.max(0, start - 1), Math.min(length, end + 1), Object.class);
+
+            Object[] spans = new Object[candidates.length];
+            int[] spanData = new int[candidates.length * COLUMNS];
+            int count = 0;
+            for (Object span : candidates) {
+                if ((span instanceof CharacterStyle || span instanceof ParagraphStyle) && !(span instanceof NoCopySpan)) {
+                    int spanStart = text.getSpanStart(span);
+                    int spanEnd = text.getSpanEnd(span);
+                    if (spanStart <= end && spanEnd >= start) {
+                        spans[count] = span;
+                        spanData[count * COLUMNS + START] = spanStart;
+                        spanData[count * COLUMNS + END] = spanEnd;
+                        spanData[count * COLUMNS + FLAGS] = text.getSpanFlags(span);
+                        count++;
+                    }
+                }
+            }
+
+            return new SpanRecords(spans, spanData, count);
+        }
+
+        static void markShared(SpanRecords records1, SpanRecords records2) {
+            Map<Object, Integer> index = new IdentityHashMap<>(records2.mSpanCount);
+            for (int i = 0; i < records2.mSpanCount; i++) {
+                index.put(records2.mSpans[i], i);
+            }
+            for (int i = 0; i < records1.mSpanCount; i++) {
+                Integer j = index.get(records1.mSpans[i]);
+                if (j != null) {
+                    records1.mShared[i] = true;
+                    records2.mShared[j] = true;
+                }
+            }
+        }
+
+        /**
+         * @return True if both SpanRecords contain the same spans at the same positions
+         */
+        boolean sameAs(SpanRecords other) {
+            if (mSpanCount != other.mSpanCount) {
+                return false;
+            }
+            for (int i = 0; i < mSpanCount; i++) {
+                if (mSpans[i] != other.mSpans[i]) {
+                    return false;
+                }
+            }
+            for (int i = 0, size = mSpanCount * COLUMNS; i < size; i++) {
+                if (mSpanData[i] != other.mSpanData[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Remove the spans that aren't part of the other SpanRecords.
+         * The shared ones are repositioned by applyTo(Editable).
+         */
+        void removeFrom(Editable text) {
+            for (int i = 0; i < mSpanCount; i++) {
+                if (!mShared[i]) {
+                    text.removeSpan(mSpans[i]);
+                }
+            }
+        }
+
+        void write(DataOutput out, SpanCodec codec) throws IOException {
+            int count = 0;
+            for (int i = 0; i < mSpanCount; i++) {
+                if (codec.canEncode(mSpans[i])) {
+                    count++;
+                }
+            }
+
+            out.writeInt(count);
+            for (int i = 0; i < mSpanCount; i++) {
+                if (codec.canEncode(mSpans[i])) {
+                    codec.writeSpan(out, mSpans[i], mSpanData[i * COLUMNS + START],
+                                    mSpanData[i * COLUMNS + END], mSpanData[i * COLUMNS + FLAGS]);
+                }
+            }
+        }
+
+        void applyTo(Editable text) {
+            int length = text.length();
+            for (int i = 0; i < mSpanCount; i++) {
+                Object span = mSpans[i];
+                int start = mSpanData[i * COLUMNS + START];
+                int end = mSpanData[i * COLUMNS + END];
+                int flags = mSpanData[i * COLUMNS + FLAGS];
+                if (start <= end && end <= length &&
+                    (text.getSpanStart(span) != start || text.getSpanEnd(span) != end || text.getSpanFlags(span) != flags)) {
+                    text.setSpan(span, start, end, flags);
+                }
+            }
+        }
+    }
+
+}
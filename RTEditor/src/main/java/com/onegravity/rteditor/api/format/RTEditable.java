@@ -25,7 +25,6 @@ import com.onegravity.rteditor.api.media.RTAudio;
 import com.onegravity.rteditor.api.media.RTImage;
 import com.onegravity.rteditor.api.media.RTVideo;
 import com.onegravity.rteditor.converter.ConverterSpannedToHtml;
-import com.onegravity.rteditor.effects.Effects;
 
 /**
  * RTText representing rich text in android.text.Spanned format.
@@ -64,12 +63,16 @@ public final class RTEditable extends RTSpanned {
         Editable text = mEditor.getText();
         BaseInputConnection.removeComposingSpans(text);
 
+        // merge the span fragments created by editing the text
+        mEditor.compactSpans(false);
+
         /*
          Cleanup ParagraphStyles to:
           - make sure spans are applied to whole paragraphs
           - remove obsolete spans
           - Note: the sequence is important
+          - only the paragraphs modified since the last cleanup need to be processed
         */
-        Effects.cleanupParagraphs(mEditor);
+        mEditor.cleanupParagraphs(false);
     }
 }
\ No newline at end of file
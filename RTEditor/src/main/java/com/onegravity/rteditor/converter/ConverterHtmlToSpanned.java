@@ -83,6 +83,7 @@ public class ConverterHtmlToSpanned implements ContentHandler {
 
     private String mSource;
     private RTMediaFactory<? extends RTImage, ? extends RTAudio, ? extends RTVideo> mMediaFactory;
+    private boolean mDeferMedia;
     private Parser mParser;
     private SpannableStringBuilder mResult;
 
@@ -116,8 +117,20 @@ public class ConverterHtmlToSpanned implements ContentHandler {
 
     public RTSpanned convert(RTHtml<? extends RTImage, ? extends RTAudio, ? extends RTVideo> input,
                              RTMediaFactory<? extends RTImage, ? extends RTAudio, ? extends RTVideo> mediaFactory) {
+        return convert(input, mediaFactory, false);
+    }
+
+    /**
+     * @param deferMedia True to convert images to ImagePlaceholderSpans instead of ImageSpans:
+     *                   no media is created and no file is accessed, the SpanCodec creates the
+     *                   images when the encoded spans are decoded (see RTChunkedDocument).
+     */
+    public RTSpanned convert(RTHtml<? extends RTImage, ? extends RTAudio, ? extends RTVideo> input,
+                             RTMediaFactory<? extends RTImage, ? extends RTAudio, ? extends RTVideo> mediaFactory,
+                             boolean deferMedia) {
         mSource = input.getText();
         mMediaFactory = mediaFactory;
+        mDeferMedia = deferMedia;
 
         mParser = new Parser();
         try {
@@ -591,6 +604,14 @@ public class ConverterHtmlToSpanned implements ContentHandler {
     private void startImg(Attributes attributes) {
         int len = mResult.length();
         String src = attributes.getValue("", "src");
+        if (mDeferMedia) {
+            if (src != null) {
+                mResult.append("\uFFFC");
+                mResult.setSpan(new ImagePlaceholderSpan(src), len, len + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            return;
+        }
+
         RTImage image = mMediaFactory.createImage(src);
 
         if (image != null && image.exists()) {
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor.converter;
+
+/**
+ * Stands in for an ImageSpan in a text converted with deferred media
+ * (see ConverterHtmlToSpanned.convert(RTHtml, RTMediaFactory, boolean)).
+ * <p>
+ * It only keeps the image source. The SpanCodec encodes it like an ImageSpan, the image is
+ * created by the RTMediaFactory once the span is decoded (when the text is shown).
+ */
+public final class ImagePlaceholderSpan {
+
+    private final String mSource;
+
+    public ImagePlaceholderSpan(String source) {
+        mSource = source;
+    }
+
+    /**
+     * @return the image source as passed to RTMediaFactory.createImage(String)
+     */
+    public String getSource() {
+        return mSource;
+    }
+
+}
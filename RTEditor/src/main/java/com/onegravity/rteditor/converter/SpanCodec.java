@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor.converter;
+
+import android.text.Layout;
+import android.text.Spannable;
+import android.text.Spanned;
+
+import com.onegravity.rteditor.api.RTMediaFactory;
+import com.onegravity.rteditor.api.format.RTFormat;
+import com.onegravity.rteditor.api.media.RTAudio;
+import com.onegravity.rteditor.api.media.RTImage;
+import com.onegravity.rteditor.api.media.RTMedia;
+import com.onegravity.rteditor.api.media.RTVideo;
+import com.onegravity.rteditor.fonts.FontManager;
+import com.onegravity.rteditor.fonts.RTTypeface;
+import com.onegravity.rteditor.spans.AbsoluteSizeSpan;
+import com.onegravity.rteditor.spans.AlignmentSpan;
+import com.onegravity.rteditor.spans.AudioSpan;
+import com.onegravity.rteditor.spans.BackgroundColorSpan;
+import com.onegravity.rteditor.spans.BoldSpan;
+import com.onegravity.rteditor.spans.BulletSpan;
+import com.onegravity.rteditor.spans.ForegroundColorSpan;
+import com.onegravity.rteditor.spans.ImageSpan;
+import com.onegravity.rteditor.spans.IndentationSpan;
+import com.onegravity.rteditor.spans.ItalicSpan;
+import com.onegravity.rteditor.spans.LinkSpan;
+import com.onegravity.rteditor.spans.MediaSpan;
+import com.onegravity.rteditor.spans.NumberSpan;
+import com.onegravity.rteditor.spans.StrikethroughSpan;
+import com.onegravity.rteditor.spans.SubscriptSpan;
+import com.onegravity.rteditor.spans.SuperscriptSpan;
+import com.onegravity.rteditor.spans.TypefaceSpan;
+import com.onegravity.rteditor.spans.UnderlineSpan;
+import com.onegravity.rteditor.spans.VideoSpan;
+import com.onegravity.rteditor.utils.Helper;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes the spans of a rich text into a compact binary format and decodes them again.
+ * <p>
+ * Only the spans used by the rich text editor are supported, other spans are ignored.
+ * Like in ConverterHtmlToSpanned paragraph spans (bullets, numbers, indentation) are decoded
+ * without their paragraph specific state (first, last, empty paragraph, numbering).
+ * They are replaced anyway when Effects.cleanupParagraphs is called.
+ */
+public class SpanCodec {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte BOLD = 1;
+    private static final byte ITALIC = 2;
+    private static final byte UNDERLINE = 3;
+    private static final byte STRIKETHROUGH = 4;
+    private static final byte SUPERSCRIPT = 5;
+    private static final byte SUBSCRIPT = 6;
+    private static final byte ABSOLUTE_SIZE = 7;
+    private static final byte FOREGROUND_COLOR = 8;
+    private static final byte BACKGROUND_COLOR = 9;
+    private static final byte TYPEFACE = 10;
+    private static final byte LINK = 11;
+    private static final byte BULLET = 12;
+    private static final byte NUMBER = 13;
+    private static final byte INDENTATION = 14;
+    private static final byte ALIGNMENT = 15;
+    private static final byte IMAGE = 16;
+    private static final byte AUDIO = 17;
+    private static final byte VIDEO = 18;
+
+    private final RTMediaFactory<RTImage, RTAudio, RTVideo> mMediaFactory;
+
+    /**
+     * @param mediaFactory The RTMediaFactory is needed to decode media spans (images, audio and video).
+     */
+    public SpanCodec(RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory) {
+        mMediaFactory = mediaFactory;
+    }
+
+    /**
+     * @return True if the span can be encoded, False if it would be ignored
+     */
+    public boolean canEncode(Object span) {
+        return getType(span) != 0;
+    }
+
+    /**
+     * Write all spans attached to a range of the text.
+     * The spans are clipped to the range and their positions are relative to the start of the range.
+     */
+    public void writeSpans(DataOutput out, Spanned text, int start, int end) throws IOException {
+        Object[] spans = text.getSpans(start, end, Object.class);
+        int count = 0;
+        for (Object span : spans) {
+            if (canEncode(span)) {
+                count++;
+            }
+        }
+
+        out.writeInt(count);
+        for (Object span : spans) {
+            if (canEncode(span)) {
+                int spanStart = Math.max(start, text.getSpanStart(span));
+                int spanEnd = Math.min(end, text.getSpanEnd(span));
+                writeSpan(out, span, spanStart - start, spanEnd - start, text.getSpanFlags(span));
+            }
+        }
+    }
+
+    /**
+     * Read spans written by writeSpans(DataOutput, Spanned, int, int) and attach them to the text.
+     *
+     * @param offset The position of the range the spans were written for.
+     */
+    public void readSpans(DataInput in, Spannable text, int offset) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            readSpan(in, text, offset);
+        }
+    }
+
+    /**
+     * Write a single span.
+     * The caller is responsible to call this only for spans that can be encoded (see canEncode(Object)).
+     */
+    public void writeSpan(DataOutput out, Object span, int start, int end, int flags) throws IOException {
+        byte type = getType(span);
+        out.writeByte(type);
+        out.writeInt(start);
+        out.writeInt(end);
+        out.writeInt(flags);
+
+        switch (type) {
+            case ABSOLUTE_SIZE:
+                out.writeInt(((AbsoluteSizeSpan) span).getValue());
+                break;
+            case FOREGROUND_COLOR:
+                out.writeInt(((ForegroundColorSpan) span).getValue());
+                break;
+            case BACKGROUND_COLOR:
+                out.writeInt(((BackgroundColorSpan) span).getValue());
+                break;
+            case TYPEFACE:
+                writeString(out, ((TypefaceSpan) span).getValue().getName());
+                break;
+            case LINK:
+                writeString(out, ((LinkSpan) span).getValue());
+                break;
+            case INDENTATION:
+                out.writeInt(((IndentationSpan) span).getValue());
+                break;
+            case ALIGNMENT:
+                out.writeInt(((AlignmentSpan) span).getValue().ordinal());
+                break;
+            case IMAGE:
+            case AUDIO:
+            case VIDEO:
+                if (span instanceof ImagePlaceholderSpan) {
+                    // the image is created when the span is decoded, a converted image is saved
+                    writeString(out, ((ImagePlaceholderSpan) span).getSource());
+                    out.writeBoolean(true);
+                    break;
+                }
+                MediaSpan mediaSpan = (MediaSpan) span;
+                writeString(out, mediaSpan.getMedia().getFilePath(RTFormat.SPANNED));
+                out.writeBoolean(mediaSpan.isSaved());
+                break;
+        }
+    }
+
+    /**
+     * Read a single span written by writeSpan(DataOutput, Object, int, int, int) and attach it to the text.
+     * Spans that can't be restored (e.g. because a font or a media file is missing) are ignored.
+     *
+     * @param offset This is added to the span's start and end position.
+     */
+    public void readSpan(DataInput in, Spannable text, int offset) throws IOException {
+        byte type = in.readByte();
+        int start = in.readInt() + offset;
+        int end = in.readInt() + offset;
+        int flags = in.readInt();
+
+        Object span = null;
+        switch (type) {
+            case BOLD:
+                span = new BoldSpan();
+                break;
+            case ITALIC:
+                span = new ItalicSpan();
+                break;
+            case UNDERLINE:
+                span = new UnderlineSpan();
+                break;
+            case STRIKETHROUGH:
+                span = new StrikethroughSpan();
+                break;
+            case SUPERSCRIPT:
+                span = new SuperscriptSpan();
+                break;
+            case SUBSCRIPT:
+                span = new SubscriptSpan();
+                break;
+            case ABSOLUTE_SIZE:
+                span = new AbsoluteSizeSpan(in.readInt());
+                break;
+            case FOREGROUND_COLOR:
+                span = new ForegroundColorSpan(in.readInt());
+                break;
+            case BACKGROUND_COLOR:
+                span = new BackgroundColorSpan(in.readInt());
+                break;
+            case TYPEFACE:
+                RTTypeface typeface = FontManager.getTypeface(readString(in));
+                span = typeface == null ? null : new TypefaceSpan(typeface);
+                break;
+            case LINK:
+                span = new LinkSpan(readString(in));
+                break;
+            case BULLET:
+                span = new BulletSpan(Helper.getLeadingMarging(), start == end, false, false);
+                break;
+            case NUMBER:
+                span = new NumberSpan(1, Helper.getLeadingMarging(), start == end, false, false);
+                break;
+            case INDENTATION:
+                span = new IndentationSpan(in.readInt(), start == end, false, false);
+                break;
+            case ALIGNMENT:
+                Layout.Alignment align = Layout.Alignment.values()[in.readInt()];
+                boolean isRTL = start <= end && end <= text.length() && Helper.isRTL(text, start, end);
+                span = new AlignmentSpan(align, isRTL);
+                break;
+            case IMAGE:
+            case AUDIO:
+            case VIDEO:
+                span = readMediaSpan(in, type);
+                break;
+            default:
+                throw new IOException("Unknown span type " + type);
+        }
+
+        if (span != null && 0 <= start && start <= end && end <= text.length()) {
+            text.setSpan(span, start, end, flags);
+        }
+    }
+
+    /**
+     * @return the image an ImagePlaceholderSpan stands for or Null if it can't be created
+     */
+    public RTImage createImage(ImagePlaceholderSpan span) {
+        return mMediaFactory.createImage(span.getSource());
+    }
+
+    private MediaSpan readMediaSpan(DataInput in, byte type) throws IOException {
+        String path = readString(in);
+        boolean isSaved = in.readBoolean();
+
+        RTMedia media = type == IMAGE ? mMediaFactory.createImage(path) :
+                        type == AUDIO ? mMediaFactory.createAudio(path) :
+                        mMediaFactory.createVideo(path);
+        if (media == null || !media.exists()) {
+            return null;
+        }
+        if (type == IMAGE && new File(media.getFilePath(RTFormat.SPANNED)).isDirectory()) {
+            // same work around as in ConverterHtmlToSpanned.startImg (images that are directories)
+            return null;
+        }
+
+        return type == IMAGE ? new ImageSpan((RTImage) media, isSaved) :
+               type == AUDIO ? new AudioSpan((RTAudio) media, isSaved) :
+               new VideoSpan((RTVideo) media, isSaved);
+    }
+
+    private static byte getType(Object span) {
+        return span instanceof BoldSpan ? BOLD :
+               span instanceof ItalicSpan ? ITALIC :
+               span instanceof UnderlineSpan ? UNDERLINE :
+               span instanceof StrikethroughSpan ? STRIKETHROUGH :
+               span instanceof SuperscriptSpan ? SUPERSCRIPT :
+               span instanceof SubscriptSpan ? SUBSCRIPT :
+               span instanceof AbsoluteSizeSpan ? ABSOLUTE_SIZE :
+               span instanceof ForegroundColorSpan ? FOREGROUND_COLOR :
+               span instanceof BackgroundColorSpan ? BACKGROUND_COLOR :
+               span instanceof TypefaceSpan ? TYPEFACE :
+               span instanceof LinkSpan ? LINK :
+               span instanceof BulletSpan ? BULLET :
+               span instanceof NumberSpan ? NUMBER :
+               span instanceof IndentationSpan ? INDENTATION :
+               span instanceof AlignmentSpan ? ALIGNMENT :
+               span instanceof ImageSpan || span instanceof ImagePlaceholderSpan ? IMAGE :
+               span instanceof AudioSpan ? AUDIO :
+               span instanceof VideoSpan ? VIDEO : 0;
+    }
+
+    // ****************************************** String Methods *******************************************
+
+    /**
+     * Write a String of any length (DataOutput.writeUTF is limited to 64 KB).
+     */
+    public static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+}
@@ -27,7 +27,6 @@ import com.onegravity.rteditor.utils.Helper;
 import com.onegravity.rteditor.utils.Paragraph;
 import com.onegravity.rteditor.utils.Selection;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -40,23 +39,20 @@ import java.util.List;
  */
 public class AlignmentEffect extends ParagraphEffect<Layout.Alignment, AlignmentSpan> {
 
-    private ParagraphSpanProcessor<Layout.Alignment> mSpans2Process = new ParagraphSpanProcessor();
-
     @Override
-    public void applyToSelection(RTEditText editor, Selection selectedParagraphs, Layout.Alignment alignment) {
+    void applyToParagraphs(RTEditText editor, Selection selectedParagraphs, Layout.Alignment alignment,
+                           int firstLine, int lastLine) {
         final Spannable str = editor.getText();
 
-        mSpans2Process.clear();
+        ParagraphSpanProcessor<Layout.Alignment> spans2Process = obtainSpanProcessor();
 
-        // a manual for loop is faster than the for-each loop for an ArrayList:
-        // see https://developer.android.com/training/articles/perf-tips.html#Loops
-        ArrayList<Paragraph> paragraphs = editor.getParagraphs();
-        for (int i = 0, size = paragraphs.size(); i < size; i++) {
-            Paragraph paragraph = paragraphs.get(i);
+        // only the processed paragraphs are looked up (getParagraphs() would create all of them)
+        for (int i = firstLine; i <= lastLine; i++) {
+            Paragraph paragraph = editor.getParagraph(i);
 
-            // find existing AlignmentSpan and add them to mSpans2Process to be removed
+            // find existing AlignmentSpan and add them to spans2Process to be removed
             List<RTSpan<Layout.Alignment>> existingSpans = getSpans(str, paragraph, SpanCollectMode.SPAN_FLAGS);
-            mSpans2Process.removeSpans(existingSpans, paragraph);
+            spans2Process.removeSpans(existingSpans, paragraph);
 
             // if the paragraph is selected then we sure have an alignment
             boolean hasExistingSpans = !existingSpans.isEmpty();
@@ -66,12 +62,13 @@ public class AlignmentEffect extends ParagraphEffect<Layout.Alignment, Alignment
             if (newAlignment != null) {
                 boolean isRTL = Helper.isRTL(str, paragraph.start(), paragraph.end());
                 AlignmentSpan alignmentSpan = new AlignmentSpan(newAlignment, isRTL);
-                mSpans2Process.addSpan(alignmentSpan, paragraph);
+                spans2Process.addSpan(alignmentSpan, paragraph);
             }
         }
 
         // add or remove spans
-        mSpans2Process.process(str);
+        spans2Process.process(str);
+        recycleSpanProcessor(spans2Process);
     }
 
 }
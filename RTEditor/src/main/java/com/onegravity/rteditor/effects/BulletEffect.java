@@ -25,7 +25,6 @@ import com.onegravity.rteditor.utils.Helper;
 import com.onegravity.rteditor.utils.Paragraph;
 import com.onegravity.rteditor.utils.Selection;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -38,23 +37,20 @@ import java.util.List;
  */
 public class BulletEffect extends ParagraphEffect<Boolean, BulletSpan> {
 
-    private ParagraphSpanProcessor<Boolean> mSpans2Process = new ParagraphSpanProcessor();
-
     @Override
-    public synchronized void applyToSelection(RTEditText editor, Selection selectedParagraphs, Boolean enable) {
+    void applyToParagraphs(RTEditText editor, Selection selectedParagraphs, Boolean enable,
+                           int firstLine, int lastLine) {
         final Spannable str = editor.getText();
 
-        mSpans2Process.clear();
+        ParagraphSpanProcessor<Boolean> spans2Process = obtainSpanProcessor();
 
-        // a manual for loop is faster than the for-each loop for an ArrayList:
-        // see https://developer.android.com/training/articles/perf-tips.html#Loops
-        ArrayList<Paragraph> paragraphs = editor.getParagraphs();
-        for (int i = 0, size = paragraphs.size(); i < size; i++) {
-            Paragraph paragraph = paragraphs.get(i);
+        // only the processed paragraphs are looked up (getParagraphs() would create all of them)
+        for (int i = firstLine; i <= lastLine; i++) {
+            Paragraph paragraph = editor.getParagraph(i);
 
-            // find existing BulletSpan and add them to mSpans2Process to be removed
+            // find existing BulletSpan and add them to spans2Process to be removed
             List<RTSpan<Boolean>> existingSpans = getSpans(str, paragraph, SpanCollectMode.SPAN_FLAGS);
-            mSpans2Process.removeSpans(existingSpans, paragraph);
+            spans2Process.removeSpans(existingSpans, paragraph);
 
             // if the paragraph is selected then we sure have a bullet
             boolean hasExistingSpans = !existingSpans.isEmpty();
@@ -64,15 +60,16 @@ public class BulletEffect extends ParagraphEffect<Boolean, BulletSpan> {
             if (hasBullet) {
                 int margin = Helper.getLeadingMarging();
                 BulletSpan bulletSpan = new BulletSpan(margin, paragraph.isEmpty(), paragraph.isFirst(), paragraph.isLast());
-                mSpans2Process.addSpan(bulletSpan, paragraph);
+                spans2Process.addSpan(bulletSpan, paragraph);
 
                 // if the paragraph has number spans, then remove them
-                Effects.NUMBER.findSpans2Remove(str, paragraph, mSpans2Process);
+                Effects.NUMBER.findSpans2Remove(str, paragraph, spans2Process);
             }
         }
 
         // add or remove spans
-        mSpans2Process.process(str);
+        spans2Process.process(str);
+        recycleSpanProcessor(spans2Process);
     }
 
 }
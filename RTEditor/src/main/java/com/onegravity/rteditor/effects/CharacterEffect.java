@@ -38,6 +38,17 @@ abstract class CharacterEffect<V, C extends RTSpan<V>> extends Effect<V, C> {
         return new Selection(editor);
     }
 
+    /**
+     * Character effects only change spans intersecting with or adjacent to the selection.
+     * The range is expanded by one character on each side to include adjacent spans
+     * (e.g. the LinkEffect removes adjacent links).
+     */
+    @Override
+    public Selection getAffectedRange(RTEditText editor) {
+        Selection selection = getSelection(editor).offset(1, 1);
+        return new Selection(selection.start(), Math.min(selection.end(), editor.length()));
+    }
+
     /**
      * Apply this effect to the selection.
      * If value is Null then the effect will be removed from the current selection.
@@ -46,6 +57,7 @@ abstract class CharacterEffect<V, C extends RTSpan<V>> extends Effect<V, C> {
      * @param value  The value to apply (depends on the Effect)
      */
     public void applyToSelection(RTEditText editor, V value) {
+        Selection affectedRange = getAffectedRange(editor);
         Selection selection = getSelection(editor);
         // SPAN_INCLUSIVE_INCLUSIVE is default for empty spans
         int flags = selection.isEmpty() ? Spanned.SPAN_INCLUSIVE_INCLUSIVE : Spanned.SPAN_EXCLUSIVE_INCLUSIVE;
@@ -83,6 +95,9 @@ abstract class CharacterEffect<V, C extends RTSpan<V>> extends Effect<V, C> {
                 str.setSpan(newSpan, selection.start(), selection.end(), flags);
             }
         }
+
+        // merge the span fragments around the selection (only spans touching the affected range)
+        editor.getSpanCompactor().compact(str, affectedRange.start(), affectedRange.end(), this);
     }
 
 
@@ -52,6 +52,15 @@ class CharacterSpanCollector<V> extends SpanCollector<V> {
         return result;
     }
 
+    @Override
+    final protected boolean isCollected(Spannable str, Selection selection, Object span, SpanCollectMode mode) {
+        // same (widened) selection as in getSpans(Spannable, Selection, SpanCollectMode)
+        int selStart = Math.max(0, selection.start() - 1);
+        int selEnd = Math.min(str.length(), selection.end() + 1);
+        return isReturnedByAndroid(str.getSpanStart(span), str.getSpanEnd(span), selStart, selEnd) &&
+               isAttached(str, selection, span, mode);
+    }
+
     private boolean isAttached(Spannable str, Selection selection, Object span, SpanCollectMode mode) {
         int spanStart = str.getSpanStart(span);
         int spanEnd = str.getSpanEnd(span);
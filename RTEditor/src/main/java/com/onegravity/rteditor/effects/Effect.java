@@ -103,14 +103,33 @@ abstract public class Effect<V, C extends RTSpan<V>> {
      * @return the list of spans in this Spannable/Selection, never Null
      */
     final public List<RTSpan<V>> getSpans(Spannable str, Selection selection, SpanCollectMode mode) {
+        return getSpanCollector().getSpans(str, selection, mode);
+    }
+
+    /**
+     * @return True if getSpans(Spannable, Selection, SpanCollectMode) would return this span
+     * (the span doesn't need to be one of this effect's spans).
+     */
+    final boolean isCollected(Spannable str, Selection selection, Object span, SpanCollectMode mode) {
+        SpanCollector<V> spanCollector = getSpanCollector();
+        return spanCollector.getSpanClass().isInstance(span) && spanCollector.isCollected(str, selection, span, mode);
+    }
+
+    /**
+     * @return the class of this effect's spans
+     */
+    final Class<? extends RTSpan<V>> getSpanClass() {
+        return getSpanCollector().getSpanClass();
+    }
+
+    private SpanCollector<V> getSpanCollector() {
         if (mSpanCollector == null) {
             // lazy initialize the SpanCollector
             Type[] types = ((ParameterizedType) getClass().getGenericSuperclass()).getActualTypeArguments();
             Class<? extends RTSpan<V>> spanClazz = (Class<? extends RTSpan<V>>) types[types.length - 1];
             mSpanCollector = newSpanCollector(spanClazz);
         }
-
-        return mSpanCollector.getSpans(str, selection, mode);
+        return mSpanCollector;
     }
 
     /**
@@ -123,6 +142,19 @@ abstract public class Effect<V, C extends RTSpan<V>> {
      */
     abstract protected Selection getSelection(RTEditText editor);
 
+    /**
+     * Returns the part of the text applyToSelection(RTEditText, V) might change.
+     * All spans added, removed or changed by the effect must intersect with or touch this range.
+     * It's used to record the change for undo/redo.
+     * <p>
+     * The default implementation returns the whole text.
+     *
+     * @param editor The editor the effect will be applied to (current selection)
+     */
+    public Selection getAffectedRange(RTEditText editor) {
+        return new Selection(0, editor.length());
+    }
+
     /**
      * Apply this effect to the selection.
      * If value is Null then the effect will be removed from the current selection.
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor.effects;
+
+import android.text.Spannable;
+
+import com.onegravity.rteditor.RTEditText;
+import com.onegravity.rteditor.spans.RTSpan;
+import com.onegravity.rteditor.utils.Selection;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Several effects applied to the selection of an RTEditText as one operation
+ * (see RTEditText.applyEffects(EffectBatch)), e.g. clear formatting or style presets.
+ * <p>
+ * Compared to applying the effects one by one:<br>
+ * - formatting is cleared with one sweep over the spans instead of one per effect<br>
+ * - paragraph effects only process the selected paragraphs, the paragraphs are cleaned up
+ *   once after all effects were applied<br>
+ * - the whole batch is one batch edit and one undo/redo operation
+ */
+public class EffectBatch {
+
+    private static final class Entry<V, C extends RTSpan<V>> {
+        final Effect<V, C> mEffect;
+        final V mValue;
+
+        Entry(Effect<V, C> effect, V value) {
+            mEffect = effect;
+            mValue = value;
+        }
+
+        void applyTo(RTEditText editor) {
+            if (mEffect instanceof ParagraphEffect) {
+                ((ParagraphEffect<V, C>) mEffect).applyToSelectedParagraphs(editor, mValue);
+            } else {
+                mEffect.applyToSelection(editor, mValue);
+            }
+        }
+    }
+
+    private final List<Effect<?, ?>> mClearEffects = new ArrayList<>();
+    private final List<Entry<?, ?>> mEntries = new ArrayList<>();
+
+    /**
+     * Remove these effects from the selection (from the whole text if the selection is empty),
+     * see Effect.clearFormattingInSelection(RTEditText). Formatting is cleared before the other
+     * effects of the batch are applied.
+     */
+    public EffectBatch clearFormatting(Collection<? extends Effect> effects) {
+        for (Effect<?, ?> effect : effects) {
+            mClearEffects.add(effect);
+        }
+        return this;
+    }
+
+    /**
+     * Apply an effect to the selection (like RTEditText.applyEffect), effects are applied in the
+     * order they were added.
+     */
+    public <V, C extends RTSpan<V>> EffectBatch add(Effect<V, C> effect, V value) {
+        mEntries.add(new Entry<>(effect, value));
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return mClearEffects.isEmpty() && mEntries.isEmpty();
+    }
+
+    /**
+     * @return the part of the text applyTo(RTEditText) might change (see Effect.getAffectedRange):
+     * the selections of the effects widened to whole paragraphs and the enclosing lists because
+     * the paragraphs are cleaned up afterwards, the whole text if formatting is cleared without
+     * a selection
+     */
+    public Selection getAffectedRange(RTEditText editor) {
+        if (!mClearEffects.isEmpty() && new Selection(editor).isEmpty()) {
+            return new Selection(0, editor.length());
+        }
+
+        int start = editor.length();
+        int end = 0;
+        for (Effect<?, ?> effect : mClearEffects) {
+            Selection selection = effect.getSelection(editor);
+            start = Math.min(start, selection.start());
+            end = Math.max(end, selection.end());
+        }
+        for (Entry<?, ?> entry : mEntries) {
+            Selection range = entry.mEffect.getAffectedRange(editor);
+            start = Math.min(start, range.start());
+            end = Math.max(end, range.end());
+        }
+        return start > end ? new Selection(0, 0) : Effects.getAffectedParagraphs(editor, new Selection(start, end));
+    }
+
+    /**
+     * Apply the batch to the editor's selection.
+     * Use RTEditText.applyEffects(EffectBatch) to record the change for undo/redo.
+     */
+    public void applyTo(RTEditText editor) {
+        if (!mClearEffects.isEmpty()) {
+            clearFormatting(editor);
+        }
+
+        for (Entry<?, ?> entry : mEntries) {
+            entry.applyTo(editor);
+        }
+
+        // the paragraphs changed by the paragraph effects
+        editor.cleanupParagraphs(false);
+    }
+
+    private void clearFormatting(RTEditText editor) {
+        Spannable str = editor.getText();
+        boolean wholeText = new Selection(editor).isEmpty();
+
+        // the selection of each effect (paragraph effects use the selected paragraphs)
+        int count = mClearEffects.size();
+        Selection[] selections = new Selection[count];
+        int start = str.length();
+        int end = 0;
+        for (int i = 0; i < count; i++) {
+            Selection selection = wholeText ? new Selection(0, str.length()) : mClearEffects.get(i).getSelection(editor);
+            selections[i] = selection;
+            start = Math.min(start, selection.start());
+            end = Math.max(end, selection.end());
+        }
+
+        // one sweep over all spans
+        for (RTSpan span : str.getSpans(Math.min(start, end), end, RTSpan.class)) {
+            for (int i = 0; i < count; i++) {
+                if (mClearEffects.get(i).isCollected(str, selections[i], span, SpanCollectMode.EXACT)) {
+                    str.removeSpan(span);
+                    break;
+                }
+            }
+        }
+    }
+
+}
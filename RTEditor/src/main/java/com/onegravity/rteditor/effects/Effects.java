@@ -16,6 +16,9 @@
 
 package com.onegravity.rteditor.effects;
 
+import android.text.Spannable;
+import android.text.style.ParagraphStyle;
+
 import com.onegravity.rteditor.RTEditText;
 import com.onegravity.rteditor.fonts.RTTypeface;
 import com.onegravity.rteditor.spans.AbsoluteSizeSpan;
@@ -24,13 +27,17 @@ import com.onegravity.rteditor.spans.BoldSpan;
 import com.onegravity.rteditor.spans.ForegroundColorSpan;
 import com.onegravity.rteditor.spans.ItalicSpan;
 import com.onegravity.rteditor.spans.LinkSpan;
+import com.onegravity.rteditor.spans.RTSpan;
 import com.onegravity.rteditor.spans.StrikethroughSpan;
 import com.onegravity.rteditor.spans.SubscriptSpan;
 import com.onegravity.rteditor.spans.SuperscriptSpan;
 import com.onegravity.rteditor.spans.TypefaceSpan;
 import com.onegravity.rteditor.spans.UnderlineSpan;
+import com.onegravity.rteditor.utils.Paragraph;
+import com.onegravity.rteditor.utils.Selection;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class Effects {
     // character effects
@@ -118,14 +125,137 @@ public class Effects {
         cleanupParagraphs(editor, Effects.NUMBER, exclude);
     }
 
+    /**
+     * Like cleanupParagraphs(RTEditText, Effect...) but only the paragraphs intersecting with one
+     * of the ranges are processed (e.g. the ranges modified since the last cleanup).
+     * <p>
+     * The ranges are widened to whole paragraphs plus:<br>
+     * - the neighbouring paragraphs (inserting or deleting a line feed splits or merges them)<br>
+     * - the paragraphs covered by paragraph spans reaching into the range<br>
+     * - the whole list (numbered or indented paragraphs) the range is part of because the numbering
+     *   depends on the preceding paragraphs and changes for the following ones
+     *
+     * @param ranges The modified ranges, sorted by position and not overlapping.
+     * @param exclude if an Effect has just been applied, there's no need to cleanup that Effect.
+     */
+    public static void cleanupParagraphs(RTEditText editor, List<Selection> ranges, Effect...exclude) {
+        int lastLine = editor.getParagraphCount() - 1;
+
+        int first = -1;
+        int last = -1;
+        for (Selection range : ranges) {
+            int rangeFirst = Math.max(0, editor.getParagraphIndex(range.start()) - 1);
+            int rangeLast = Math.min(lastLine, editor.getParagraphIndex(range.end()) + 1);
+            if (first >= 0 && rangeFirst <= last + 1) {
+                // merge with the previous range
+                last = Math.max(last, rangeLast);
+                continue;
+            }
+            if (first >= 0) {
+                cleanupRange(editor, first, last, exclude);
+            }
+            first = rangeFirst;
+            last = rangeLast;
+        }
+        if (first >= 0) {
+            cleanupRange(editor, first, last, exclude);
+        }
+    }
+
+    private static void cleanupRange(RTEditText editor, int first, int last, Effect...exclude) {
+        int[] lines = widenToLists(editor, first, last);
+        cleanupParagraphs(editor, lines[0], lines[1], exclude);
+    }
+
+    /**
+     * Returns the part of the text a ParagraphEffect applied to the selected paragraphs can change:
+     * the paragraphs widened like in cleanupParagraphs(RTEditText, List, Effect...).
+     */
+    static Selection getAffectedParagraphs(RTEditText editor, Selection selectedParagraphs) {
+        int lastLine = editor.getParagraphCount() - 1;
+        int first = Math.max(0, editor.getParagraphIndex(selectedParagraphs.start()) - 1);
+        int last = Math.min(lastLine, editor.getParagraphIndex(selectedParagraphs.end()) + 1);
+        int[] lines = widenToLists(editor, first, last);
+        return new Selection(editor.getParagraph(lines[0]).start(), editor.getParagraph(lines[1]).end());
+    }
+
+    /**
+     * Cleanup the paragraphs firstLine to lastLine (inclusive) without widening the range,
+     * the range must have been widened already (see getAffectedParagraphs(RTEditText, Selection)).
+     */
+    static void cleanupParagraphs(RTEditText editor, int firstLine, int lastLine, Effect...exclude) {
+        cleanupParagraphs(editor, Effects.ALIGNMENT, firstLine, lastLine, exclude);
+        cleanupParagraphs(editor, Effects.INDENTATION, firstLine, lastLine, exclude);
+        cleanupParagraphs(editor, Effects.BULLET, firstLine, lastLine, exclude);
+        cleanupParagraphs(editor, Effects.NUMBER, firstLine, lastLine, exclude);
+    }
+
+    /**
+     * @return the first and last paragraph of the range first to last widened until it covers all
+     * affected paragraphs (see cleanupParagraphs(RTEditText, List, Effect...))
+     */
+    private static int[] widenToLists(RTEditText editor, int first, int last) {
+        Spannable str = editor.getText();
+        int lastLine = editor.getParagraphCount() - 1;
+
+        // widen the range until it covers all affected paragraphs
+        boolean widened = true;
+        while (widened) {
+            widened = false;
+
+            // paragraph spans reaching into the range
+            int start = editor.getParagraph(first).start();
+            int end = editor.getParagraph(last).end();
+            for (ParagraphStyle span : str.getSpans(start, end, ParagraphStyle.class)) {
+                if (span instanceof RTSpan) {
+                    int spanStart = str.getSpanStart(span);
+                    int spanEnd = str.getSpanEnd(span);
+                    int spanFirst = editor.getParagraphIndex(spanStart);
+                    int spanLast = editor.getParagraphIndex(Math.max(spanStart, spanEnd - 1));
+                    if (spanFirst < first || spanLast > last) {
+                        first = Math.min(first, spanFirst);
+                        last = Math.max(last, spanLast);
+                        widened = true;
+                    }
+                }
+            }
+
+            // the list the range is part of
+            while (first > 0 && isListParagraph(str, editor.getParagraph(first - 1))) {
+                first--;
+                widened = true;
+            }
+            while (last < lastLine && isListParagraph(str, editor.getParagraph(last + 1))) {
+                last++;
+                widened = true;
+            }
+        }
+
+        return new int[] {first, last};
+    }
+
+    /*
+     * A paragraph that is neither numbered nor indented ends a list,
+     * the numbering after such a paragraph doesn't depend on the paragraphs before it.
+     */
+    private static boolean isListParagraph(Spannable str, Paragraph paragraph) {
+        return ! NUMBER.getSpans(str, paragraph, SpanCollectMode.SPAN_FLAGS).isEmpty() ||
+               ! INDENTATION.getSpans(str, paragraph, SpanCollectMode.EXACT).isEmpty();
+    }
+
     private static void cleanupParagraphs(RTEditText editor, ParagraphEffect effect, Effect...exclude) {
+        cleanupParagraphs(editor, effect, 0, editor.getParagraphCount() - 1, exclude);
+    }
+
+    private static void cleanupParagraphs(RTEditText editor, ParagraphEffect effect,
+                                          int firstLine, int lastLine, Effect...exclude) {
         for (Effect e : exclude) {
             if (effect == e) {
                 return;
             }
         }
 
-        effect.applyToSelection(editor, null, null);
+        effect.applyToParagraphs(editor, null, null, firstLine, lastLine);
     }
 
 }
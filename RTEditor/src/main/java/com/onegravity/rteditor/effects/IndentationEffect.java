@@ -24,7 +24,6 @@ import com.onegravity.rteditor.spans.RTSpan;
 import com.onegravity.rteditor.utils.Paragraph;
 import com.onegravity.rteditor.utils.Selection;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -38,22 +37,20 @@ import java.util.List;
  */
 public class IndentationEffect extends ParagraphEffect<Integer, IndentationSpan> {
 
-    private ParagraphSpanProcessor<Integer> mSpans2Process = new ParagraphSpanProcessor();
-
-    public void applyToSelection(RTEditText editor, Selection selectedParagraphs, Integer increment) {
+    @Override
+    void applyToParagraphs(RTEditText editor, Selection selectedParagraphs, Integer increment,
+                           int firstLine, int lastLine) {
         final Spannable str = editor.getText();
 
-        mSpans2Process.clear();
+        ParagraphSpanProcessor<Integer> spans2Process = obtainSpanProcessor();
 
-        // a manual for loop is faster than the for-each loop for an ArrayList:
-        // see https://developer.android.com/training/articles/perf-tips.html#Loops
-        ArrayList<Paragraph> paragraphs = editor.getParagraphs();
-        for (int i = 0, size = paragraphs.size(); i < size; i++) {
-            Paragraph paragraph = paragraphs.get(i);
+        // only the processed paragraphs are looked up (getParagraphs() would create all of them)
+        for (int i = firstLine; i <= lastLine; i++) {
+            Paragraph paragraph = editor.getParagraph(i);
 
-            // find existing IndentationSpan and add them to mSpans2Process to be removed
+            // find existing IndentationSpan and add them to spans2Process to be removed
             List<RTSpan<Integer>> existingSpans = getSpans(str, paragraph, SpanCollectMode.EXACT);
-            mSpans2Process.removeSpans(existingSpans, paragraph);
+            spans2Process.removeSpans(existingSpans, paragraph);
 
             // compute the indentation
             int indentation = 0;
@@ -71,12 +68,13 @@ public class IndentationEffect extends ParagraphEffect<Integer, IndentationSpan>
             // if we have an indentation then apply a new span
             if (indentation > 0) {
                 IndentationSpan leadingMarginSpan = new IndentationSpan(indentation, paragraph.isEmpty(), paragraph.isFirst(), paragraph.isLast());
-                mSpans2Process.addSpan(leadingMarginSpan, paragraph);
+                spans2Process.addSpan(leadingMarginSpan, paragraph);
             }
         }
 
         // add or remove spans
-        mSpans2Process.process(str);
+        spans2Process.process(str);
+        recycleSpanProcessor(spans2Process);
     }
 
 }
@@ -17,7 +17,6 @@
 package com.onegravity.rteditor.effects;
 
 import android.text.Spannable;
-import android.util.SparseIntArray;
 
 import com.onegravity.rteditor.RTEditText;
 import com.onegravity.rteditor.spans.NumberSpan;
@@ -26,7 +25,7 @@ import com.onegravity.rteditor.utils.Helper;
 import com.onegravity.rteditor.utils.Paragraph;
 import com.onegravity.rteditor.utils.Selection;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -39,23 +38,63 @@ import java.util.List;
  */
 public class NumberEffect extends ParagraphEffect<Boolean, NumberSpan> {
 
-    private ParagraphSpanProcessor<Boolean> mSpans2Process = new ParagraphSpanProcessor();
+    /*
+     * The numbering state while iterating over the paragraphs: for each indentation level the
+     * last number (0 = paragraph without number), sorted by indentation (a stack of list levels).
+     * One instance per applyToParagraphs call, so the effect can be used by several threads.
+     */
+    private static final class Numbering {
+        private int[] mLevelIndentations = new int[8];
+        private int[] mLevelNumbers = new int[8];
+        private int mNrOfLevels;
+
+        /**
+         * Determine the number of the next paragraph and update the numbering state.
+         * <p>
+         * The number depends on the closest preceding paragraph with the same or less indentation:
+         * 1) less indentation -> number 1
+         * 2) same indentation + no numbering -> number 1
+         * 3) same indentation + numbering -> increment number
+         * Paragraphs with more indentation (nested lists) don't matter.
+         *
+         * @return the number of the paragraph or 0 if it has no number
+         */
+        int next(int indentation, boolean hasNumber) {
+            // the paragraph ends all nested lists with more indentation
+            while (mNrOfLevels > 0 && mLevelIndentations[mNrOfLevels - 1] > indentation) {
+                mNrOfLevels--;
+            }
+
+            boolean sameLevel = mNrOfLevels > 0 && mLevelIndentations[mNrOfLevels - 1] == indentation;
+            int nr = ! hasNumber ? 0 : sameLevel ? mLevelNumbers[mNrOfLevels - 1] + 1 : 1;
+
+            if (! sameLevel) {
+                if (mNrOfLevels == mLevelIndentations.length) {
+                    mLevelIndentations = Arrays.copyOf(mLevelIndentations, mNrOfLevels * 2);
+                    mLevelNumbers = Arrays.copyOf(mLevelNumbers, mNrOfLevels * 2);
+                }
+                mLevelIndentations[mNrOfLevels++] = indentation;
+            }
+            mLevelNumbers[mNrOfLevels - 1] = nr;
+
+            return nr;
+        }
+    }
 
     @Override
-    public synchronized void applyToSelection(RTEditText editor, Selection selectedParagraphs, Boolean enable) {
+    void applyToParagraphs(RTEditText editor, Selection selectedParagraphs, Boolean enable,
+                           int firstLine, int lastLine) {
         final Spannable str = editor.getText();
 
-        mSpans2Process.clear();
+        ParagraphSpanProcessor<Boolean> spans2Process = obtainSpanProcessor();
 
-        int lineNr = 1;
-        SparseIntArray indentations = new SparseIntArray();
-        SparseIntArray numbers = new SparseIntArray();
+        // firstLine needs to be the first paragraph of a list since numbering starts from scratch here
+        // (Effects.cleanupParagraphs(RTEditText, List, Effect...) widens the range accordingly)
+        Numbering numbering = new Numbering();
 
-        // a manual for loop is faster than the for-each loop for an ArrayList:
-        // see https://developer.android.com/training/articles/perf-tips.html#Loops
-        ArrayList<Paragraph> paragraphs = editor.getParagraphs();
-        for (int i = 0, size = paragraphs.size(); i < size; i++) {
-            Paragraph paragraph = paragraphs.get(i);
+        // only the processed paragraphs are looked up (getParagraphs() would create all of them)
+        for (int i = firstLine; i <= lastLine; i++) {
+            Paragraph paragraph = editor.getParagraph(i);
 
             /*
              * We need to know the indentation for each paragraph to be able
@@ -63,16 +102,12 @@ public class NumberEffect extends ParagraphEffect<Boolean, NumberSpan> {
              */
             int currentIndentation = 0;
             List<RTSpan<Integer>> indentationSpans = Effects.INDENTATION.getSpans(str, paragraph, SpanCollectMode.EXACT);
-            if (! indentationSpans.isEmpty()) {
-                for (RTSpan<Integer> span : indentationSpans) {
-                    currentIndentation += span.getValue();
-                }
+            for (RTSpan<Integer> span : indentationSpans) {
+                currentIndentation += span.getValue();
             }
-            indentations.put(lineNr, currentIndentation);
 
-            // find existing NumberSpans and add them to mSpans2Process to be removed
+            // find existing NumberSpans
             List<RTSpan<Boolean>> existingSpans = getSpans(str, paragraph, SpanCollectMode.SPAN_FLAGS);
-            mSpans2Process.removeSpans(existingSpans, paragraph);
 
             /*
              * If the paragraph is selected then we sure have a number
@@ -80,39 +115,51 @@ public class NumberEffect extends ParagraphEffect<Boolean, NumberSpan> {
             boolean hasExistingSpans = ! existingSpans.isEmpty();
             boolean hasNumber = paragraph.isSelected(selectedParagraphs) ? enable : hasExistingSpans;
 
+            int nr = numbering.next(currentIndentation, hasNumber);
+
             /*
-             * If we have a number then apply a new span
+             * If we have a number then apply a new span unless the existing one is still correct
              */
             if (hasNumber) {
-                // let's determine the number for this paragraph
-                int nr = 1;
-                for (int line = 1; line < lineNr; line++) {
-                    int indentation = indentations.get(line);
-                    int number = numbers.get(line);
-                    if (indentation < currentIndentation) {
-                        // 1) less indentation -> number 1
-                        nr = 1;
-                    } else if (indentation == currentIndentation) {
-                        // 2) same indentation + no numbering -> number 1
-                        // 3) same indentation + numbering -> increment number
-                        nr = number == 0 ? 1 : number + 1;
+                int margin = Helper.getLeadingMarging();
+                NumberSpan existingSpan = findReusableSpan(str, existingSpans, paragraph, nr, margin);
+                for (RTSpan<Boolean> span : existingSpans) {
+                    if (span != existingSpan) {
+                        spans2Process.removeSpan(span, paragraph);
                     }
                 }
-                numbers.put(lineNr, nr);
-
-                int margin = Helper.getLeadingMarging();
-                NumberSpan numberSpan = new NumberSpan(nr++, margin, paragraph.isEmpty(), paragraph.isFirst(), paragraph.isLast());
-                mSpans2Process.addSpan(numberSpan, paragraph);
+                if (existingSpan == null) {
+                    NumberSpan numberSpan = new NumberSpan(nr, margin, paragraph.isEmpty(), paragraph.isFirst(), paragraph.isLast());
+                    spans2Process.addSpan(numberSpan, paragraph);
+                }
 
                 // if the paragraph has bullet spans, then remove them
-                Effects.BULLET.findSpans2Remove(str, paragraph, mSpans2Process);
+                Effects.BULLET.findSpans2Remove(str, paragraph, spans2Process);
+            } else {
+                spans2Process.removeSpans(existingSpans, paragraph);
             }
-
-            lineNr++;
         }
 
         // add or remove spans
-        mSpans2Process.process(str);
+        spans2Process.process(str);
+        recycleSpanProcessor(spans2Process);
+    }
+
+    /**
+     * @return the existing NumberSpan if it's the only one and already has the right number and
+     * position so there's no need to replace it, Null otherwise
+     */
+    private NumberSpan findReusableSpan(Spannable str, List<RTSpan<Boolean>> existingSpans,
+                                        Paragraph paragraph, int nr, int margin) {
+        if (existingSpans.size() == 1) {
+            NumberSpan span = (NumberSpan) existingSpans.get(0);
+            if (span.isSameAs(nr, margin, paragraph.isEmpty(), paragraph.isFirst(), paragraph.isLast()) &&
+                str.getSpanStart(span) == paragraph.start() && str.getSpanEnd(span) == paragraph.end() &&
+                str.getSpanFlags(span) == ParagraphSpanProcessor.getSpanFlags(paragraph)) {
+                return span;
+            }
+        }
+        return null;
     }
 
 }
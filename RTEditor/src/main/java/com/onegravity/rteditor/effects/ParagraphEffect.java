@@ -32,6 +32,13 @@ import java.util.List;
  */
 abstract class ParagraphEffect<V, C extends RTSpan<V>> extends Effect<V, C> {
 
+    /*
+     * The effects are singletons used by all editors (and background documents), so the scratch
+     * ParagraphSpanProcessor is kept per thread instead of per effect.
+     * The slot is empty while the processor is in use, a nested call gets a new one.
+     */
+    private final ThreadLocal<ParagraphSpanProcessor<V>> mSpanProcessors = new ThreadLocal<>();
+
     @Override
     final protected SpanCollector<V> newSpanCollector(Class<? extends RTSpan<V>> spanClazz) {
         return new ParagraphSpanCollector<V>(spanClazz);
@@ -47,14 +54,26 @@ abstract class ParagraphEffect<V, C extends RTSpan<V>> extends Effect<V, C> {
     }
 
     /**
-     * Make sure applyToSelection works on whole paragraphs and call
-     * Effects.cleanupParagraphs(RTEditText) afterwards.
+     * The selected paragraphs widened to the neighbouring paragraphs and the enclosing list
+     * (the numbering of the whole list can change), see Effects.getAffectedParagraphs.
+     */
+    @Override
+    public Selection getAffectedRange(RTEditText editor) {
+        return Effects.getAffectedParagraphs(editor, getSelection(editor));
+    }
+
+    /**
+     * Make sure applyToSelection works on whole paragraphs and cleanup the other paragraph effects
+     * afterwards. Only the paragraphs returned by getAffectedRange(RTEditText) are processed.
      */
     @Override
     public final void applyToSelection(RTEditText editor, V value) {
         Selection selection = getSelection(editor);
-        applyToSelection(editor, selection, value);
-        Effects.cleanupParagraphs(editor, this);
+        Selection affected = Effects.getAffectedParagraphs(editor, selection);
+        int firstLine = editor.getParagraphIndex(affected.start());
+        int lastLine = editor.getParagraphIndex(Math.max(affected.start(), affected.end() - 1));
+        applyToParagraphs(editor, selection, value, firstLine, lastLine);
+        Effects.cleanupParagraphs(editor, firstLine, lastLine, this);
     }
 
     /**
@@ -70,7 +89,51 @@ abstract class ParagraphEffect<V, C extends RTSpan<V>> extends Effect<V, C> {
      * @param selectedParagraphs Apply the effect to the selected paragraphs
      * @param value The value to apply (depends on the Effect)
      */
-    public abstract void applyToSelection(RTEditText editor, Selection selectedParagraphs, V value);
+    public final void applyToSelection(RTEditText editor, Selection selectedParagraphs, V value) {
+        applyToParagraphs(editor, selectedParagraphs, value, 0, editor.getParagraphCount() - 1);
+    }
+
+    /**
+     * Apply this effect to the selected paragraphs without cleaning up the other paragraphs.
+     * RTEditText.cleanupParagraphs(false) needs to be called afterwards (see EffectBatch).
+     */
+    final void applyToSelectedParagraphs(RTEditText editor, V value) {
+        Selection selection = getSelection(editor);
+        int firstLine = editor.getParagraphIndex(selection.start());
+        int lastLine = editor.getParagraphIndex(Math.max(selection.start(), selection.end() - 1));
+        applyToParagraphs(editor, selection, value, firstLine, lastLine);
+    }
+
+    /**
+     * Like applyToSelection(RTEditText, Selection, V) but only the paragraphs firstLine to lastLine
+     * (inclusive) are processed, the other paragraphs are left untouched.
+     * Effects.cleanupParagraphs(RTEditText, Selection, Effect...) uses this to process just the
+     * paragraphs that were modified.
+     *
+     * @param firstLine The index of the first paragraph to process (see RTEditText.getParagraph(int))
+     * @param lastLine The index of the last paragraph to process
+     */
+    abstract void applyToParagraphs(RTEditText editor, Selection selectedParagraphs, V value,
+                                    int firstLine, int lastLine);
+
+    /**
+     * @return an empty ParagraphSpanProcessor for the calling thread, return it with
+     * recycleSpanProcessor once the spans are processed
+     */
+    protected ParagraphSpanProcessor<V> obtainSpanProcessor() {
+        ParagraphSpanProcessor<V> processor = mSpanProcessors.get();
+        if (processor == null) {
+            return new ParagraphSpanProcessor<V>();
+        }
+        mSpanProcessors.set(null);
+        return processor;
+    }
+
+    protected void recycleSpanProcessor(ParagraphSpanProcessor<V> processor) {
+        // don't keep the spans alive
+        processor.clear();
+        mSpanProcessors.set(processor);
+    }
 
     /**
      * Find spans within that paragraph and add them to the ParagraphSpanProcessor to be removed
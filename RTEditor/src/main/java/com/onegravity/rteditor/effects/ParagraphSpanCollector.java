@@ -45,6 +45,12 @@ class ParagraphSpanCollector<V> extends SpanCollector<V> {
         return result;
     }
 
+    @Override
+    final protected boolean isCollected(Spannable str, Selection selection, Object span, SpanCollectMode mode) {
+        return isReturnedByAndroid(str.getSpanStart(span), str.getSpanEnd(span), selection.start(), selection.end()) &&
+               isAttached(str, selection, span, mode);
+    }
+
     /**
      * Note: a ParagraphSpan is always applied to a paragraph (including the crlf)
      * --> it will never be a point unless the cursor is in the last empty line!
@@ -84,13 +84,19 @@ class ParagraphSpanProcessor<V extends Object> {
             else {
                 Paragraph paragraph = paragraphSpan.mParagraph;
                 int paraEnd = paragraphSpan.mParagraph.end();
-                int flags = paragraph.isLast() && paragraph.isEmpty() ? Spanned.SPAN_INCLUSIVE_INCLUSIVE :
-                            paragraph.isLast() && paragraph.isFirst() ? Spanned.SPAN_INCLUSIVE_INCLUSIVE :
-                            paragraph.isLast() ? Spanned.SPAN_EXCLUSIVE_INCLUSIVE :
-                            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE;
-                str.setSpan(span, paraStart, paraEnd, flags);
+                str.setSpan(span, paraStart, paraEnd, getSpanFlags(paragraph));
             }
         }
     }
 
+    /**
+     * @return the span flags used for a span covering the paragraph
+     */
+    static int getSpanFlags(Paragraph paragraph) {
+        return paragraph.isLast() && paragraph.isEmpty() ? Spanned.SPAN_INCLUSIVE_INCLUSIVE :
+               paragraph.isLast() && paragraph.isFirst() ? Spanned.SPAN_INCLUSIVE_INCLUSIVE :
+               paragraph.isLast() ? Spanned.SPAN_EXCLUSIVE_INCLUSIVE :
+               Spanned.SPAN_EXCLUSIVE_EXCLUSIVE;
+    }
+
 }
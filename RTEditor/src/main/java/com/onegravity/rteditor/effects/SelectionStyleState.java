@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor.effects;
+
+import android.text.Spannable;
+
+import com.onegravity.rteditor.RTEditText;
+import com.onegravity.rteditor.spans.RTSpan;
+import com.onegravity.rteditor.utils.Selection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The effects and their values in the current selection of an RTEditText.
+ * <p>
+ * This is the equivalent of calling Effect.existsInSelection(RTEditText) and
+ * Effect.valuesInSelection(RTEditText) for all effects in Effects.ALL_EFFECTS but the spans are
+ * retrieved with a single Spanned.getSpans call and assigned to their effects in one sweep.
+ * <p>
+ * If the selection is a cursor, the state is valid as long as the cursor stays within the same
+ * style run (no span starts or ends between the old and the new position) and the text isn't
+ * modified (see RTEditText.getSelectionStyleState()).
+ */
+public class SelectionStyleState {
+
+    private static final List<Effect> EFFECTS = Effects.ALL_EFFECTS;
+
+    private final boolean[] mExists = new boolean[EFFECTS.size()];
+    private final List[] mValues = new List[EFFECTS.size()];
+
+    private final int mSelStart;
+    private final int mSelEnd;
+
+    // the cursor can move within ]mRunStart, mRunEnd[ without changing the state
+    private int mRunStart;
+    private int mRunEnd;
+
+    public SelectionStyleState(RTEditText editor) {
+        Spannable str = editor.getText();
+        Selection charSelection = new Selection(editor);
+        Selection paraSelection = editor.getParagraphsInSelection();
+
+        mSelStart = charSelection.start();
+        mSelEnd = charSelection.end();
+        mRunStart = paraSelection.start();
+        mRunEnd = paraSelection.end();
+
+        // covers the (widened) selection of the character effects and the paragraphs of the paragraph effects
+        int start = Math.max(0, Math.min(charSelection.start() - 1, paraSelection.start()));
+        int end = Math.min(str.length(), Math.max(charSelection.end() + 1, paraSelection.end()));
+        RTSpan[] spans = str.getSpans(start, end, RTSpan.class);
+
+        for (RTSpan span : spans) {
+            for (int i = 0, size = EFFECTS.size(); i < size; i++) {
+                Effect effect = EFFECTS.get(i);
+                Selection selection = effect instanceof ParagraphEffect ? paraSelection : charSelection;
+                if (effect.isCollected(str, selection, span, SpanCollectMode.SPAN_FLAGS)) {
+                    mExists[i] = true;
+                    if (mValues[i] == null) {
+                        mValues[i] = new ArrayList();
+                    }
+                    mValues[i].add(span.getValue());
+                }
+            }
+
+            if (charSelection.isEmpty()) {
+                updateRun(str.getSpanStart(span));
+                updateRun(str.getSpanEnd(span));
+            }
+        }
+    }
+
+    /*
+     * Shrink the style run around the cursor to exclude a span boundary.
+     */
+    private void updateRun(int pos) {
+        if (pos < mSelStart) {
+            mRunStart = Math.max(mRunStart, pos);
+        } else if (pos > mSelStart) {
+            mRunEnd = Math.min(mRunEnd, pos);
+        } else {
+            // cursor on a span boundary: the state is only valid for this position
+            mRunStart = mRunEnd = mSelStart;
+        }
+    }
+
+    /**
+     * @return True if the state is still valid for this selection (provided the text wasn't modified)
+     */
+    public boolean isValidFor(int selStart, int selEnd) {
+        if (selStart == mSelStart && selEnd == mSelEnd) {
+            return true;
+        }
+        return mSelStart == mSelEnd && selStart == selEnd &&
+               mRunStart < selStart && selStart < mRunEnd &&
+               mRunStart < mSelStart && mSelStart < mRunEnd;
+    }
+
+    /**
+     * @return True if the effect exists in the selection (see Effect.existsInSelection(RTEditText))
+     */
+    public boolean exists(Effect<?, ?> effect) {
+        int index = EFFECTS.indexOf(effect);
+        return index >= 0 && mExists[index];
+    }
+
+    /**
+     * @return the values of the effect in the selection (see Effect.valuesInSelection(RTEditText)),
+     * never Null
+     */
+    public <V> List<V> getValues(Effect<V, ?> effect) {
+        int index = EFFECTS.indexOf(effect);
+        List<V> values = index >= 0 ? mValues[index] : null;
+        return values == null ? Collections.<V>emptyList() : Collections.unmodifiableList(values);
+    }
+
+}
@@ -76,6 +76,34 @@ abstract class SpanCollector<V> {
      */
     protected abstract List<RTSpan<V>> getSpans(Spannable str, Selection selection, SpanCollectMode mode);
 
+    /**
+     * @return True if getSpans(Spannable, Selection, SpanCollectMode) would return this span.
+     * This allows to collect the spans of several effects using a single Spanned.getSpans call.
+     */
+    protected abstract boolean isCollected(Spannable str, Selection selection, Object span, SpanCollectMode mode);
+
+    /**
+     * @return the class of the spans this SpanCollector collects
+     */
+    final Class<? extends RTSpan<V>> getSpanClass() {
+        return mSpanClazz;
+    }
+
+    /**
+     * @return True if Spanned.getSpans(queryStart, queryEnd, Class) returns a span from spanStart
+     * to spanEnd (see the class comment for the adjacent spans Android includes or excludes).
+     */
+    final protected boolean isReturnedByAndroid(int spanStart, int spanEnd, int queryStart, int queryEnd) {
+        if (spanStart > queryEnd || spanEnd < queryStart) {
+            return false;
+        }
+        if (spanStart != spanEnd && queryStart != queryEnd) {
+            // range span and range selection: adjacent spans are ignored
+            return spanStart != queryEnd && spanEnd != queryStart;
+        }
+        return true;
+    }
+
     /**
      * Return an array of the markup objects attached to the specified slice of a Spannable and whose
      * type is the specified type or a subclass of it (see Spanned.getSpans(int, int, Class<T>)).
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor.effects;
+
+import android.text.Spannable;
+import android.text.Spanned;
+
+import com.onegravity.rteditor.spans.RTSpan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Merges adjacent and overlapping character spans with the same value (e.g. two BoldSpans [0, 5]
+ * and [5, 10] become one BoldSpan [0, 10]).
+ * <p>
+ * Applying character effects splits existing spans into preceding and succeeding parts so heavily
+ * edited texts accumulate lots of span fragments which slow down every getSpans call, the export
+ * and the drawing. The CharacterEffects compact the spans around the selection after applying
+ * themselves, RTEditText.compactSpans(boolean) compacts the modified parts or the whole text on demand.
+ * <p>
+ * Links aren't merged since two adjacent links are two links even if they have the same url.
+ * Paragraph spans are normalized by Effects.cleanupParagraphs.
+ */
+public class SpanCompactor {
+
+    private static final int START_FLAGS = Spanned.SPAN_POINT_MARK_MASK & 0xf0;
+    private static final int END_FLAGS = Spanned.SPAN_POINT_MARK_MASK & 0x0f;
+
+    // metrics
+    private long mNrOfCompactions;
+    private long mNrOfMergedSpans;
+    private int mLastSpanCount = -1;
+
+    /**
+     * Compact the spans of all character effects touching the range [start, end].
+     *
+     * @return the number of spans that were merged into other spans (and removed)
+     */
+    public synchronized int compact(Spannable str, int start, int end) {
+        int merged = 0;
+        for (Effect effect : Effects.ALL_EFFECTS) {
+            if (effect instanceof CharacterEffect && effect != Effects.LINK) {
+                merged += compact(str, start, end, effect);
+            }
+        }
+        if (start <= 0 && end >= str.length()) {
+            mLastSpanCount = getSpanCount(str);
+        }
+        return merged;
+    }
+
+    /**
+     * Compact the spans of one effect touching the range [start, end].
+     * Only spans touching the range are merged (spans outside the range remain untouched) so the
+     * change is covered by an undo/redo record of the range.
+     *
+     * @return the number of spans that were merged into other spans (and removed)
+     */
+    synchronized int compact(Spannable str, int start, int end, Effect<?, ?> effect) {
+        if (effect == Effects.LINK) {
+            return 0;
+        }
+
+        mNrOfCompactions++;
+
+        // widen the query because Android doesn't return adjacent spans for a range query
+        int queryStart = Math.max(0, start - 1);
+        int queryEnd = Math.min(str.length(), end + 1);
+        Object[] spans = str.getSpans(queryStart, queryEnd, effect.getSpanClass());
+        if (spans.length < 2) {
+            return 0;
+        }
+
+        // spans touching the range, empty spans (formatting at the cursor position) aren't merged
+        List<Run> runs = new ArrayList<>(spans.length);
+        for (Object span : spans) {
+            int spanStart = str.getSpanStart(span);
+            int spanEnd = str.getSpanEnd(span);
+            if (spanStart < spanEnd && spanEnd >= start && spanStart <= end) {
+                runs.add(new Run((RTSpan<?>) span, spanStart, spanEnd, str.getSpanFlags(span)));
+            }
+        }
+        if (runs.size() < 2) {
+            return 0;
+        }
+
+        Run[] sorted = runs.toArray(new Run[runs.size()]);
+        Arrays.sort(sorted, Run.BY_START);
+
+        // merge the runs, the first span of each run survives
+        int merged = 0;
+        List<Run> open = new ArrayList<>();
+        for (Run run : sorted) {
+            Run target = null;
+            for (int i = open.size() - 1; i >= 0; i--) {
+                Run candidate = open.get(i);
+                if (candidate.mEnd < run.mStart) {
+                    // sorted by start -> no other run can be merged with this one
+                    open.remove(i);
+                } else if (target == null && equals(candidate.mSpan.getValue(), run.mSpan.getValue())) {
+                    target = candidate;
+                }
+            }
+
+            if (target == null) {
+                open.add(run);
+            } else {
+                if (run.mEnd >= target.mEnd) {
+                    target.mEnd = run.mEnd;
+                    target.mFlags = (target.mFlags & ~END_FLAGS) | (run.mFlags & END_FLAGS);
+                }
+                target.mChanged = true;
+                str.removeSpan(run.mSpan);
+                merged++;
+            }
+        }
+
+        for (Run run : sorted) {
+            if (run.mChanged) {
+                str.setSpan(run.mSpan, run.mStart, run.mEnd, run.mFlags);
+            }
+        }
+
+        mNrOfMergedSpans += merged;
+        return merged;
+    }
+
+    private static boolean equals(Object value1, Object value2) {
+        return value1 == null ? value2 == null : value1.equals(value2);
+    }
+
+    private static class Run {
+        static final Comparator<Run> BY_START = new Comparator<Run>() {
+            @Override
+            public int compare(Run run1, Run run2) {
+                return run1.mStart < run2.mStart ? -1 : run1.mStart == run2.mStart ? 0 : 1;
+            }
+        };
+
+        final RTSpan<?> mSpan;
+        final int mStart;
+        int mEnd;
+        int mFlags;
+        boolean mChanged;
+
+        Run(RTSpan<?> span, int start, int end, int flags) {
+            mSpan = span;
+            mStart = start;
+            mEnd = end;
+            mFlags = flags;
+        }
+    }
+
+    // ****************************************** Metrics *******************************************
+
+    /**
+     * @return the number of RTSpans attached to the text
+     */
+    public static int getSpanCount(Spanned text) {
+        return text.getSpans(0, text.length(), RTSpan.class).length;
+    }
+
+    /**
+     * @return the number of RTSpans after the last compaction of the whole text
+     * or -1 if there was none
+     */
+    public synchronized int getLastSpanCount() {
+        return mLastSpanCount;
+    }
+
+    /**
+     * @return the number of compaction passes (one per effect and range)
+     */
+    public synchronized long getNrOfCompactions() {
+        return mNrOfCompactions;
+    }
+
+    /**
+     * @return the number of spans that were merged into other spans since this SpanCompactor was created
+     */
+    public synchronized long getNrOfMergedSpans() {
+        return mNrOfMergedSpans;
+    }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor.metrics;
+
+/**
+ * Distribution of the durations of one phase (see RTMetrics).
+ * <p>
+ * The buckets grow exponentially: bucket 0 counts durations below 2 microseconds, bucket i
+ * durations in [2^i, 2^(i+1)[ microseconds and the last bucket all longer durations (about 1s+).
+ */
+public final class LatencyHistogram {
+
+    private static final int NR_OF_BUCKETS = 21;
+
+    private final long[] mBuckets = new long[NR_OF_BUCKETS];
+    private long mCount;
+    private long mTotalNanos;
+    private long mMaxNanos;
+
+    void add(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = micros < 2 ? 0 : Math.min(NR_OF_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        mBuckets[bucket]++;
+        mCount++;
+        mTotalNanos += nanos;
+        mMaxNanos = Math.max(mMaxNanos, nanos);
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getTotalNanos() {
+        return mTotalNanos;
+    }
+
+    public long getMaxNanos() {
+        return mMaxNanos;
+    }
+
+    public long getMeanNanos() {
+        return mCount == 0 ? 0 : mTotalNanos / mCount;
+    }
+
+    public int getNumberOfBuckets() {
+        return NR_OF_BUCKETS;
+    }
+
+    /**
+     * @return the number of durations in a bucket
+     */
+    public long getBucketCount(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    /**
+     * @return the (exclusive) upper bound of a bucket in microseconds, Long.MAX_VALUE for the last bucket
+     */
+    public long getBucketUpperBoundMicros(int bucket) {
+        return bucket == NR_OF_BUCKETS - 1 ? Long.MAX_VALUE : 2L << bucket;
+    }
+
+    /**
+     * @param percentile The percentile (0..100)
+     * @return the upper bound (in microseconds) of the bucket containing the percentile
+     */
+    public long getPercentileMicros(double percentile) {
+        long threshold = (long) Math.ceil(mCount * percentile / 100d);
+        long count = 0;
+        for (int i = 0; i < NR_OF_BUCKETS; i++) {
+            count += mBuckets[i];
+            if (count >= threshold && count > 0) {
+                return getBucketUpperBoundMicros(i);
+            }
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor.metrics;
+
+import androidx.core.os.TraceCompat;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Opt-in timing of the editor's hot phases (text changes, undo recording, layout, paragraph cleanup,
+ * selection style, toolbar update and conversions).
+ * <p>
+ * While enabled each phase is emitted as a system trace section (visible in Perfetto/systrace)
+ * and its duration is added to a LatencyHistogram. The histograms are delivered to the
+ * MetricsListener (if any) at most once per report interval and reset afterwards.
+ * <p>
+ * Disabled (the default) begin() and end() cost a volatile read.
+ */
+public final class RTMetrics {
+
+    public enum Phase {
+        TEXT_CHANGE("RTEditor.textChange"),
+        UNDO_SNAPSHOT("RTEditor.undoSnapshot"),
+        LAYOUT_REBUILD("RTEditor.layoutRebuild"),
+        PARAGRAPH_CLEANUP("RTEditor.paragraphCleanup"),
+        SELECTION_STYLE("RTEditor.selectionStyle"),
+        TOOLBAR_UPDATE("RTEditor.toolbarUpdate"),
+        CONVERSION("RTEditor.conversion");
+
+        private final String mTraceName;
+
+        Phase(String traceName) {
+            mTraceName = traceName;
+        }
+    }
+
+    /**
+     * Receives the aggregated histograms, called on the thread that completed the last measurement
+     * (usually the UI thread).
+     */
+    public interface MetricsListener {
+        /**
+         * @param histograms The histograms of all phases measured since the last report (owned by the listener)
+         */
+        void onMetrics(Map<Phase, LatencyHistogram> histograms);
+    }
+
+    // returned by begin() if the metrics are disabled
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private static volatile boolean sEnabled;
+
+    private static MetricsListener sListener;
+    private static long sReportInterval;
+    private static long sLastReport;
+    private static final Map<Phase, LatencyHistogram> sHistograms = new EnumMap<>(Phase.class);
+
+    private RTMetrics() {}
+
+    // ****************************************** Configuration *******************************************
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Set the listener receiving the histograms and enable the metrics (disable them if listener is Null).
+     *
+     * @param reportIntervalMs The minimum time between two reports (in milliseconds)
+     */
+    public static synchronized void setMetricsListener(MetricsListener listener, long reportIntervalMs) {
+        sListener = listener;
+        sReportInterval = reportIntervalMs * 1000000L;
+        sLastReport = System.nanoTime();
+        sHistograms.clear();
+        sEnabled = listener != null;
+    }
+
+    /**
+     * Deliver the histograms collected so far to the listener right away.
+     */
+    public static void flush() {
+        MetricsListener listener;
+        Map<Phase, LatencyHistogram> histograms;
+        synchronized (RTMetrics.class) {
+            listener = sListener;
+            histograms = listener == null ? null : takeHistograms();
+        }
+        if (histograms != null && !histograms.isEmpty()) {
+            listener.onMetrics(histograms);
+        }
+    }
+
+    // ****************************************** Measurement *******************************************
+
+    /**
+     * Start measuring a phase, the returned value needs to be passed to end(Phase, long):
+     * <pre>
+     * long token = RTMetrics.begin(Phase.TEXT_CHANGE);
+     * try {
+     *     ...
+     * } finally {
+     *     RTMetrics.end(Phase.TEXT_CHANGE, token);
+     * }
+     * </pre>
+     */
+    public static long begin(Phase phase) {
+        if (!sEnabled) {
+            return NOT_STARTED;
+        }
+        TraceCompat.beginSection(phase.mTraceName);
+        return System.nanoTime();
+    }
+
+    public static void end(Phase phase, long token) {
+        if (token == NOT_STARTED) {
+            return;
+        }
+        long now = System.nanoTime();
+        TraceCompat.endSection();
+
+        MetricsListener listener;
+        Map<Phase, LatencyHistogram> histograms = null;
+        synchronized (RTMetrics.class) {
+            LatencyHistogram histogram = sHistograms.get(phase);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                sHistograms.put(phase, histogram);
+            }
+            histogram.add(now - token);
+
+            listener = sListener;
+            if (listener != null && now - sLastReport >= sReportInterval) {
+                histograms = takeHistograms();
+            }
+        }
+        if (histograms != null) {
+            listener.onMetrics(histograms);
+        }
+    }
+
+    private static Map<Phase, LatencyHistogram> takeHistograms() {
+        Map<Phase, LatencyHistogram> histograms = new EnumMap<>(sHistograms);
+        sHistograms.clear();
+        sLastReport = System.nanoTime();
+        return histograms;
+    }
+
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor.preview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Layout;
+import android.text.Spanned;
+import android.text.StaticLayout;
+import android.text.TextPaint;
+import android.util.LruCache;
+
+import com.onegravity.rteditor.api.RTMediaFactory;
+import com.onegravity.rteditor.api.format.RTHtml;
+import com.onegravity.rteditor.api.media.RTAudio;
+import com.onegravity.rteditor.api.media.RTImage;
+import com.onegravity.rteditor.api.media.RTVideo;
+import com.onegravity.rteditor.converter.ConverterHtmlToSpanned;
+import com.onegravity.rteditor.utils.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Renders small previews of rich text documents (the first lines of a document at a given width)
+ * on a background thread.
+ * <p>
+ * The previews are cached in memory (LRU) and on disk. The cache key is computed from the content
+ * of the document, the width and the Style, so a preview is re-used across sessions as long as
+ * the document doesn't change and the html doesn't need to be parsed again.
+ */
+public class RTPreviewService {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String DISK_CACHE_DIR = "rt_previews";
+
+    /*
+     * Default maximum size of the disk cache (in bytes)
+     */
+    private static final long DEFAULT_DISK_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Called on the ui thread once a preview is available.
+     */
+    public interface Callback {
+        /**
+         * @param preview The preview or Null if it couldn't be rendered
+         */
+        void onPreviewReady(Bitmap preview);
+    }
+
+    /**
+     * The text appearance of a preview (part of the cache key).
+     */
+    public static class Style {
+        private final float mTextSize;
+        private final int mTextColor;
+        private final int mBackgroundColor;
+        private final int mMaxLines;
+
+        /**
+         * @param textSize The text size in pixels
+         */
+        public Style(float textSize, int textColor, int backgroundColor, int maxLines) {
+            mTextSize = textSize;
+            mTextColor = textColor;
+            mBackgroundColor = backgroundColor;
+            mMaxLines = Math.max(1, maxLines);
+        }
+
+        String getKey() {
+            return Float.floatToIntBits(mTextSize) + "_" + Integer.toHexString(mTextColor) + "_" +
+                   Integer.toHexString(mBackgroundColor) + "_" + mMaxLines;
+        }
+    }
+
+    private final RTMediaFactory<RTImage, RTAudio, RTVideo> mMediaFactory;
+    private final File mDiskCacheDir;
+    private final long mDiskCacheSize;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Executor mExecutor;
+
+    public RTPreviewService(Context context, RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory) {
+        this(context, mediaFactory, (int) (Runtime.getRuntime().maxMemory() / 16), DEFAULT_DISK_CACHE_SIZE);
+    }
+
+    /**
+     * @param memoryCacheSize The maximum size of the memory cache (in bytes)
+     * @param diskCacheSize   The maximum size of the disk cache (in bytes)
+     */
+    public RTPreviewService(Context context, RTMediaFactory<RTImage, RTAudio, RTVideo> mediaFactory,
+                            int memoryCacheSize, long diskCacheSize) {
+        mMediaFactory = mediaFactory;
+        mDiskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIR);
+        mDiskCacheSize = diskCacheSize;
+        mMemoryCache = new LruCache<String, Bitmap>(memoryCacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Set the Executor the previews are rendered with.
+     * The default Executor uses a single low priority background thread.
+     */
+    public synchronized void setExecutor(Executor executor) {
+        mExecutor = executor;
+    }
+
+    private synchronized Executor getExecutor() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "RTPreviewService");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+        }
+        return mExecutor;
+    }
+
+    // ****************************************** Public API *******************************************
+
+    /**
+     * @return the preview if it's in the memory cache, Null otherwise (call requestPreview then)
+     */
+    public Bitmap getCachedPreview(RTHtml<RTImage, RTAudio, RTVideo> rtHtml, int width, Style style) {
+        return mMemoryCache.get(getKey(rtHtml, width, style));
+    }
+
+    /**
+     * Retrieve a preview from the caches or render it on a background thread.
+     *
+     * @return a Future that can be used to cancel the request (e.g. when a list item is recycled)
+     */
+    public Future<Bitmap> requestPreview(final RTHtml<RTImage, RTAudio, RTVideo> rtHtml, final int width,
+                                         final Style style, final Callback callback) {
+        FutureTask<Bitmap> task = new FutureTask<Bitmap>(() -> {
+            String key = getKey(rtHtml, width, style);
+            Bitmap preview = mMemoryCache.get(key);
+            if (preview == null) {
+                preview = readFromDisk(key);
+                if (preview == null) {
+                    preview = render(rtHtml, width, style);
+                    writeToDisk(key, preview);
+                }
+                if (preview != null) {
+                    mMemoryCache.put(key, preview);
+                }
+            }
+            return preview;
+        }) {
+            @Override
+            protected void done() {
+                if (!isCancelled()) {
+                    mHandler.post(() -> {
+                        if (!isCancelled()) {
+                            callback.onPreviewReady(getResult(this));
+                        }
+                    });
+                }
+            }
+        };
+        getExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * Clear the memory and the disk cache.
+     */
+    public void clear() {
+        mMemoryCache.evictAll();
+        getExecutor().execute(() -> {
+            synchronized (mDiskCacheDir) {
+                File[] files = mDiskCacheDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    // ****************************************** Rendering *******************************************
+
+    private Bitmap render(RTHtml<RTImage, RTAudio, RTVideo> rtHtml, int width, Style style) {
+        if (width <= 0) {
+            return null;
+        }
+
+        Spanned text = (Spanned) new ConverterHtmlToSpanned().convert(rtHtml, mMediaFactory).getText();
+
+        // each paragraph has at least one line -> the first mMaxLines paragraphs are all we need to layout
+        int end = 0;
+        for (int paragraphs = 0, length = text.length(); end < length && paragraphs < style.mMaxLines; end++) {
+            if (text.charAt(end) == '\n') {
+                paragraphs++;
+            }
+        }
+        CharSequence firstParagraphs = text.subSequence(0, end);
+
+        TextPaint paint = new TextPaint(TextPaint.ANTI_ALIAS_FLAG);
+        paint.setTextSize(style.mTextSize);
+        paint.setColor(style.mTextColor);
+        Layout layout = new StaticLayout(firstParagraphs, paint, width, Layout.Alignment.ALIGN_NORMAL, 1f, 0f, false);
+
+        int nrOfLines = Math.min(style.mMaxLines, layout.getLineCount());
+        int height = Math.max(1, layout.getLineBottom(nrOfLines - 1));
+        Bitmap preview = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(preview);
+        canvas.drawColor(style.mBackgroundColor);
+        canvas.clipRect(0, 0, width, height);
+        layout.draw(canvas);
+        return preview;
+    }
+
+    // ****************************************** Disk Cache *******************************************
+
+    private Bitmap readFromDisk(String key) {
+        synchronized (mDiskCacheDir) {
+            File file = new File(mDiskCacheDir, key);
+            if (!file.exists()) {
+                return null;
+            }
+            Bitmap preview = BitmapFactory.decodeFile(file.getAbsolutePath());
+            if (preview != null) {
+                // the disk cache evicts the least recently used files
+                file.setLastModified(System.currentTimeMillis());
+            }
+            return preview;
+        }
+    }
+
+    private void writeToDisk(String key, Bitmap preview) {
+        if (preview == null) {
+            return;
+        }
+
+        synchronized (mDiskCacheDir) {
+            if (!mDiskCacheDir.exists() && !mDiskCacheDir.mkdirs()) {
+                return;
+            }
+
+            File file = new File(mDiskCacheDir, key);
+            OutputStream out = null;
+            try {
+                out = new FileOutputStream(file);
+                preview.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } catch (IOException e) {
+                file.delete();
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+
+            trimDiskCache();
+        }
+    }
+
+    private void trimDiskCache() {
+        File[] files = mDiskCacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= mDiskCacheSize) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : lhsModified == rhsModified ? 0 : 1;
+            }
+        });
+        for (int i = 0; i < files.length && size > mDiskCacheSize; i++) {
+            size -= files[i].length();
+            files[i].delete();
+        }
+    }
+
+    // ****************************************** Private Methods *******************************************
+
+    /*
+     * The key is a hash of the content plus the width and the style.
+     */
+    private static String getKey(RTHtml<RTImage, RTAudio, RTVideo> rtHtml, int width, Style style) {
+        String html = rtHtml.getText();
+        byte[] content = (html == null ? "" : html).getBytes(UTF8);
+        StringBuilder key = new StringBuilder();
+        try {
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(content)) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            // every Android implementation supports SHA-1
+            key.append(Integer.toHexString(Arrays.hashCode(content)));
+        }
+        return key.append('_').append(width).append('_').append(style.getKey()).toString();
+    }
+
+    private static Bitmap getResult(Future<Bitmap> future) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+}
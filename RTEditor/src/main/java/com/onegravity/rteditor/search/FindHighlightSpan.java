@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor.search;
+
+import android.text.NoCopySpan;
+import android.text.TextPaint;
+import android.text.style.CharacterStyle;
+import android.text.style.UpdateAppearance;
+
+/**
+ * Highlights a search result (see RTFindReplace).
+ * <p>
+ * This is a NoCopySpan so it's neither copied with the text nor recorded for undo/redo and it's
+ * no RTSpan so it's not converted to html.
+ */
+public class FindHighlightSpan extends CharacterStyle implements UpdateAppearance, NoCopySpan {
+
+    private final int mColor;
+
+    public FindHighlightSpan(int color) {
+        mColor = color;
+    }
+
+    public int getColor() {
+        return mColor;
+    }
+
+    @Override
+    public void updateDrawState(TextPaint paint) {
+        paint.bgColor = mColor;
+    }
+
+}
@@ -0,0 +1,513 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor.search;
+
+import android.text.Editable;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+
+import com.onegravity.rteditor.RTEditText;
+import com.onegravity.rteditor.utils.Selection;
+
+import java.util.Arrays;
+
+/**
+ * Find and replace for an RTEditText (see RTEditText.getFindReplace()).
+ * <p>
+ * While a search is active the matches are kept up to date incrementally: a text change only
+ * re-scans the changed range (plus the length of the query on both sides), the other matches
+ * are shifted. Case-insensitive searches use a lower case copy of the text which is updated
+ * with each change, so no query needs to convert the whole text.
+ * If a query extends the previous one (search-as-you-type) only the previous matches are checked.
+ * <p>
+ * The matches are highlighted with FindHighlightSpans. Each match keeps its highlight, so a new
+ * query or a text change only adds, moves or removes the highlights of the matches that changed.
+ * replaceAll() replaces all matches
+ * within one batch edit as a single undo/redo operation.
+ */
+public class RTFindReplace implements TextWatcher {
+
+    private static final int DEFAULT_HIGHLIGHT_COLOR = 0x66FFEB3B;
+    private static final int DEFAULT_CURRENT_HIGHLIGHT_COLOR = 0xFFFF9800;
+
+    private final RTEditText mEditor;
+
+    private int mHighlightColor = DEFAULT_HIGHLIGHT_COLOR;
+    private int mCurrentHighlightColor = DEFAULT_CURRENT_HIGHLIGHT_COLOR;
+
+    // the current query, Null if no search is active
+    private String mQuery;
+    private boolean mIgnoreCase;
+    private boolean mWholeWord;
+
+    // lower case copy of the text for case-insensitive searches (Null otherwise)
+    private StringBuilder mFoldedText;
+
+    // start positions of the matches (sorted, non-overlapping) and their highlights (Null if not highlighted yet)
+    private int[] mMatches = new int[16];
+    private FindHighlightSpan[] mHighlights = new FindHighlightSpan[16];
+    private int mMatchCount;
+    private int mCurrent = -1;
+    private FindHighlightSpan mCurrentHighlight;
+
+    // range (after the change) to highlight again once the text change is done
+    private int mDirtyStart = -1;
+    private int mDirtyEnd;
+
+    // True while replaceAll() modifies the text
+    private boolean mSuspended;
+
+    public RTFindReplace(RTEditText editor) {
+        mEditor = editor;
+        editor.addTextChangedListener(this);
+    }
+
+    public void setHighlightColors(int highlightColor, int currentHighlightColor) {
+        mHighlightColor = highlightColor;
+        mCurrentHighlightColor = currentHighlightColor;
+        if (mQuery != null) {
+            highlightAll();
+        }
+    }
+
+    // ****************************************** Find *******************************************
+
+    /**
+     * Find all matches of the query and highlight them.
+     * The current match is the first one at or after the cursor (it's not selected, see findNext()).
+     *
+     * @return the number of matches
+     */
+    public int find(String query, boolean ignoreCase, boolean wholeWord) {
+        if (TextUtils.isEmpty(query)) {
+            clear();
+            return 0;
+        }
+
+        Editable text = mEditor.getText();
+        if (!ignoreCase) {
+            mFoldedText = null;
+        } else if (mFoldedText == null) {
+            mFoldedText = fold(text, 0, text.length());
+        }
+
+        String newQuery = ignoreCase ? fold(query, 0, query.length()).toString() : query;
+        boolean refine = mQuery != null && ignoreCase == mIgnoreCase && !wholeWord && !mWholeWord &&
+                         newQuery.startsWith(mQuery) && !hasBorder(mQuery);
+        boolean lengthChanged = mQuery == null || mQuery.length() != newQuery.length();
+        mQuery = newQuery;
+        mIgnoreCase = ignoreCase;
+        mWholeWord = wholeWord;
+
+        if (refine) {
+            // the previous query can't overlap itself -> its matches are all its occurrences
+            // and all occurrences of the new query are among them
+            int count = 0;
+            int minStart = 0;
+            for (int i = 0; i < mMatchCount; i++) {
+                int start = mMatches[i];
+                if (start >= minStart && matchesAt(start)) {
+                    mMatches[count] = start;
+                    mHighlights[count++] = mHighlights[i];
+                    minStart = start + mQuery.length();
+                } else {
+                    removeHighlight(mHighlights[i]);
+                }
+            }
+            clearHighlights(count, mMatchCount);
+            mMatchCount = count;
+        } else {
+            int[] oldMatches = Arrays.copyOf(mMatches, mMatchCount);
+            FindHighlightSpan[] oldHighlights = Arrays.copyOf(mHighlights, mMatchCount);
+            clearHighlights(0, mMatchCount);
+            mMatchCount = 0;
+            scan(0, text.length(), 0);
+
+            // keep the highlights of the matches that start at the same position
+            int j = 0;
+            for (int i = 0; i < oldMatches.length; i++) {
+                while (j < mMatchCount && mMatches[j] < oldMatches[i]) {
+                    j++;
+                }
+                if (j < mMatchCount && mMatches[j] == oldMatches[i]) {
+                    mHighlights[j] = oldHighlights[i];
+                } else {
+                    removeHighlight(oldHighlights[i]);
+                }
+            }
+        }
+
+        int selStart = Math.max(0, mEditor.getSelectionStart());
+        mCurrent = mMatchCount == 0 ? -1 : Math.min(mMatchCount - 1, findFirstMatch(selStart));
+
+        highlight(0, mMatchCount, lengthChanged);
+        highlightCurrent();
+        return mMatchCount;
+    }
+
+    /**
+     * Select the next match.
+     *
+     * @return the index of the selected match or -1 if there are no matches
+     */
+    public int findNext() {
+        if (mMatchCount > 0) {
+            mCurrent = (mCurrent + 1) % mMatchCount;
+            selectCurrent();
+        }
+        return mCurrent;
+    }
+
+    /**
+     * Select the previous match.
+     *
+     * @return the index of the selected match or -1 if there are no matches
+     */
+    public int findPrevious() {
+        if (mMatchCount > 0) {
+            mCurrent = mCurrent <= 0 ? mMatchCount - 1 : mCurrent - 1;
+            selectCurrent();
+        }
+        return mCurrent;
+    }
+
+    public int getMatchCount() {
+        return mMatchCount;
+    }
+
+    /**
+     * @return the index of the current match or -1 if there are no matches
+     */
+    public int getCurrentMatch() {
+        return mCurrent;
+    }
+
+    /**
+     * @return the start position of a match
+     */
+    public int getMatchStart(int index) {
+        return mMatches[index];
+    }
+
+    /**
+     * Stop searching and remove all highlights.
+     */
+    public void clear() {
+        mQuery = null;
+        mFoldedText = null;
+        removeHighlights();
+        mMatchCount = 0;
+        mCurrent = -1;
+        highlightCurrent();
+    }
+
+    // ****************************************** Replace *******************************************
+
+    /**
+     * Replace the current match, the match after it becomes the current one.
+     *
+     * @return True if a match was replaced
+     */
+    public boolean replace(final String replacement) {
+        if (mCurrent < 0) {
+            return false;
+        }
+
+        final int start = mMatches[mCurrent];
+        final int end = start + mQuery.length();
+        final Editable text = mEditor.getText();
+        mEditor.performChange(new Selection(start, end), () -> text.replace(start, end, replacement));
+
+        // the matches have been updated by the text change
+        mCurrent = mMatchCount == 0 ? -1 : findFirstMatch(start + replacement.length()) % mMatchCount;
+        highlightCurrent();
+        return true;
+    }
+
+    /**
+     * Replace all matches as one undo/redo operation.
+     *
+     * @return the number of replaced matches
+     */
+    public int replaceAll(final String replacement) {
+        final int count = mMatchCount;
+        if (count == 0) {
+            return 0;
+        }
+
+        final int[] matches = Arrays.copyOf(mMatches, count);
+        final int length = mQuery.length();
+        final Editable text = mEditor.getText();
+        mSuspended = true;
+        try {
+            // replace from the end so the positions of the remaining matches don't change
+            mEditor.performChange(new Selection(matches[0], matches[count - 1] + length), () -> {
+                for (int i = count - 1; i >= 0; i--) {
+                    text.replace(matches[i], matches[i] + length, replacement);
+                }
+            });
+        } finally {
+            mSuspended = false;
+        }
+
+        // the whole text may have changed and the highlights weren't tracked, search again
+        removeHighlights();
+        mMatchCount = 0;
+        String query = mQuery;
+        mQuery = null;
+        mFoldedText = null;
+        find(query, mIgnoreCase, mWholeWord);
+        return count;
+    }
+
+    // ****************************************** TextWatcher *******************************************
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        if (mQuery == null || mSuspended) {
+            return;
+        }
+
+        if (mFoldedText != null) {
+            mFoldedText.replace(start, start + before, fold(s, start, start + count).toString());
+        }
+
+        // drop the matches touching the changed text and shift the ones after it
+        int length = mQuery.length();
+        int oldEnd = start + before;
+        int diff = count - before;
+        int nrOfMatches = 0;
+        int insertAt = 0;
+        for (int i = 0; i < mMatchCount; i++) {
+            int match = mMatches[i];
+            FindHighlightSpan highlight = mHighlights[i];
+            if (match + length < start) {
+                mHighlights[nrOfMatches] = highlight;
+                mMatches[nrOfMatches++] = match;
+                insertAt = nrOfMatches;
+            } else if (match > oldEnd) {
+                mHighlights[nrOfMatches] = highlight;
+                mMatches[nrOfMatches++] = match + diff;
+            } else {
+                removeHighlight(highlight);
+            }
+        }
+        clearHighlights(nrOfMatches, mMatchCount);
+        mMatchCount = nrOfMatches;
+
+        // re-scan the changed text, a match may start up to the query's length before it
+        int textLength = s.length();
+        int scanStart = Math.max(0, start - length);
+        int scanEnd = Math.min(textLength, start + count + length);
+        if (insertAt > 0) {
+            scanStart = Math.max(scanStart, mMatches[insertAt - 1] + length);
+        }
+        if (insertAt < mMatchCount) {
+            scanEnd = Math.min(scanEnd, mMatches[insertAt]);
+        }
+        scan(scanStart, scanEnd, insertAt);
+
+        if (mCurrent >= mMatchCount) {
+            mCurrent = mMatchCount - 1;
+        }
+
+        mDirtyStart = mDirtyStart < 0 ? scanStart : Math.min(mDirtyStart, scanStart);
+        mDirtyEnd = Math.max(mDirtyEnd, scanEnd);
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        if (mDirtyStart >= 0) {
+            int start = mDirtyStart;
+            int end = Math.min(s.length(), mDirtyEnd);
+            mDirtyStart = -1;
+            mDirtyEnd = 0;
+
+            // the matches found by the re-scan aren't highlighted yet
+            int first = findFirstMatch(start);
+            highlight(first, Math.max(first, findFirstMatch(end)), false);
+            highlightCurrent();
+        }
+    }
+
+    // ****************************************** Matching *******************************************
+
+    /*
+     * Find the matches in [start, end[ and insert them at position index of the match array.
+     */
+    private void scan(int start, int end, int index) {
+        int length = mQuery.length();
+        int pos = start;
+        while (pos + length <= end) {
+            CharSequence text = mFoldedText != null ? mFoldedText : mEditor.getText();
+            int match = TextUtils.indexOf(text, mQuery, pos, end);
+            if (match < 0 || match + length > end) {
+                break;
+            }
+            if (!mWholeWord || isWholeWord(match, length)) {
+                insertMatch(index++, match);
+                pos = match + length;
+            } else {
+                pos = match + 1;
+            }
+        }
+    }
+
+    private boolean matchesAt(int pos) {
+        CharSequence text = mFoldedText != null ? mFoldedText : mEditor.getText();
+        int length = mQuery.length();
+        if (pos + length > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(pos + i) != mQuery.charAt(i)) {
+                return false;
+            }
+        }
+        return !mWholeWord || isWholeWord(pos, length);
+    }
+
+    private boolean isWholeWord(int start, int length) {
+        CharSequence text = mEditor.getText();
+        int end = start + length;
+        return (start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1))) &&
+               (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)));
+    }
+
+    private void insertMatch(int index, int match) {
+        if (mMatchCount == mMatches.length) {
+            mMatches = Arrays.copyOf(mMatches, mMatches.length * 2);
+            mHighlights = Arrays.copyOf(mHighlights, mMatches.length);
+        }
+        System.arraycopy(mMatches, index, mMatches, index + 1, mMatchCount - index);
+        System.arraycopy(mHighlights, index, mHighlights, index + 1, mMatchCount - index);
+        mMatches[index] = match;
+        mHighlights[index] = null;
+        mMatchCount++;
+    }
+
+    /*
+     * @return the index of the first match starting at or after pos (mMatchCount if there is none)
+     */
+    private int findFirstMatch(int pos) {
+        int low = 0;
+        int high = mMatchCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mMatches[mid] < pos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * @return True if a proper prefix of the query is also a suffix (occurrences can overlap then)
+     */
+    private static boolean hasBorder(String query) {
+        int length = query.length();
+        for (int k = 1; k < length; k++) {
+            if (query.regionMatches(0, query, length - k, k)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static StringBuilder fold(CharSequence text, int start, int end) {
+        StringBuilder folded = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            folded.append(Character.toLowerCase(text.charAt(i)));
+        }
+        return folded;
+    }
+
+    // ****************************************** Highlighting *******************************************
+
+    /*
+     * Highlight all matches again (e.g. with new colors).
+     */
+    private void highlightAll() {
+        removeHighlights();
+        highlight(0, mMatchCount, false);
+        highlightCurrent();
+    }
+
+    /*
+     * Highlight the matches [from, to[ that aren't highlighted yet.
+     * If the query's length changed the existing highlights are moved to the new end of their match.
+     */
+    private void highlight(int from, int to, boolean lengthChanged) {
+        Editable text = mEditor.getText();
+        int length = mQuery.length();
+        for (int i = from; i < to; i++) {
+            FindHighlightSpan highlight = mHighlights[i];
+            if (highlight == null || lengthChanged) {
+                if (highlight == null) {
+                    highlight = new FindHighlightSpan(mHighlightColor);
+                    mHighlights[i] = highlight;
+                }
+                text.setSpan(highlight, mMatches[i], mMatches[i] + length, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+    }
+
+    private void highlightCurrent() {
+        Editable text = mEditor.getText();
+        if (mCurrentHighlight != null) {
+            text.removeSpan(mCurrentHighlight);
+            mCurrentHighlight = null;
+        }
+        if (mCurrent >= 0) {
+            int start = mMatches[mCurrent];
+            mCurrentHighlight = new FindHighlightSpan(mCurrentHighlightColor);
+            text.setSpan(mCurrentHighlight, start, start + mQuery.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+
+    private void removeHighlights() {
+        for (int i = 0; i < mMatchCount; i++) {
+            removeHighlight(mHighlights[i]);
+        }
+        clearHighlights(0, mMatchCount);
+    }
+
+    private void removeHighlight(FindHighlightSpan highlight) {
+        if (highlight != null) {
+            mEditor.getText().removeSpan(highlight);
+        }
+    }
+
+    // don't keep removed highlights alive
+    private void clearHighlights(int from, int to) {
+        Arrays.fill(mHighlights, from, Math.max(from, to), null);
+    }
+
+    private void selectCurrent() {
+        int start = mMatches[mCurrent];
+        mEditor.setSelection(start, start + mQuery.length());
+        highlightCurrent();
+    }
+
+}
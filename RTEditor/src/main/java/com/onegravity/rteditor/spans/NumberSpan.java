@@ -77,6 +77,14 @@ public class NumberSpan extends BaseListItemSpan implements LeadingMarginSpan, R
         }
     }
 
+    /**
+     * @return True if this span is equal to a span created with the same parameters,
+     * so it can be re-used instead of replacing it.
+     */
+    public boolean isSameAs(int nr, int gapWidth, boolean isEmpty, boolean isFirst, boolean isLast) {
+        return mNr == nr && mGapWidth == gapWidth && mIgnoreSpan == (isEmpty && isLast && !isFirst);
+    }
+
     @Override
     public Boolean getValue() {
         return Boolean.TRUE;
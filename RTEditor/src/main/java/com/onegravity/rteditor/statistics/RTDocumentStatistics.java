@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.onegravity.rteditor.statistics;
+
+import android.text.Editable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import com.onegravity.rteditor.RTEditText;
+import com.onegravity.rteditor.spans.ImageSpan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Word, character, paragraph and image counts of an RTEditText (see RTEditText.getStatistics()).
+ * <p>
+ * The counts are kept per paragraph. A text change only recounts the paragraphs it touched,
+ * the getters return the totals without looking at the text.
+ * <p>
+ * Words are sequences of letters and digits. Line breaks, zero width spaces and the placeholder
+ * characters of media aren't counted as characters. Only paragraphs with visible content
+ * (characters other than white space or images) are counted as paragraphs.
+ */
+public class RTDocumentStatistics implements TextWatcher {
+
+    private static final char ZERO_WIDTH_SPACE = '\u200B';
+    private static final char OBJECT_REPLACEMENT = '\uFFFC';
+
+    /**
+     * Notified on the UI thread after a change of the text changed one or more of the counts.
+     */
+    public interface StatisticsListener {
+        void onStatisticsChanged(RTDocumentStatistics statistics);
+    }
+
+    private final RTEditText mEditor;
+    private final List<StatisticsListener> mListeners = new ArrayList<>();
+
+    // the paragraphs: start position and counts (the last paragraph ends at the end of the text)
+    private int mSize;
+    private int[] mStarts = new int[16];
+    private int[] mChars = new int[16];
+    private int[] mCharsNoSpaces = new int[16];
+    private int[] mWords = new int[16];
+    private int[] mImages = new int[16];
+
+    // the totals
+    private int mCharCount;
+    private int mCharNoSpacesCount;
+    private int mWordCount;
+    private int mImageCount;
+    private int mParagraphCount;
+
+    // True between beforeTextChanged and afterTextChanged
+    private boolean mInTextChange;
+    private boolean mChanged;
+
+    public RTDocumentStatistics(RTEditText editor) {
+        mEditor = editor;
+        editor.addTextChangedListener(this);
+        Editable text = editor.getText();
+        recount(text, 0, -1, 0, text.length());
+    }
+
+    public void addStatisticsListener(StatisticsListener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeStatisticsListener(StatisticsListener listener) {
+        mListeners.remove(listener);
+    }
+
+    // ****************************************** Counts *******************************************
+
+    public int getWordCount() {
+        return mWordCount;
+    }
+
+    public int getCharacterCount() {
+        return mCharCount;
+    }
+
+    /**
+     * @return the number of characters without white space
+     */
+    public int getCharacterCountWithoutSpaces() {
+        return mCharNoSpacesCount;
+    }
+
+    /**
+     * @return the number of paragraphs with visible content
+     */
+    public int getParagraphCount() {
+        return mParagraphCount;
+    }
+
+    public int getImageCount() {
+        return mImageCount;
+    }
+
+    // ****************************************** TextWatcher *******************************************
+
+    @Override
+    public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        mInTextChange = true;
+    }
+
+    @Override
+    public void onTextChanged(CharSequence s, int start, int before, int count) {
+        // the paragraphs containing the start and the end of the replaced text
+        int first = findParagraph(start);
+        int last = findParagraph(start + before);
+
+        // recount them (with the new text) and shift the following paragraphs
+        int diff = count - before;
+        int regionStart = mStarts[first];
+        int regionEnd = last + 1 < mSize ? mStarts[last + 1] + diff : s.length();
+        int nrOfParagraphs = recount(s, first, last, regionStart, regionEnd);
+        for (int i = first + nrOfParagraphs; i < mSize; i++) {
+            mStarts[i] += diff;
+        }
+    }
+
+    @Override
+    public void afterTextChanged(Editable s) {
+        mInTextChange = false;
+        notifyListeners();
+    }
+
+    /**
+     * Called by the editor when an image span was added to or removed from the text.
+     */
+    public void onImageChanged(Spanned text, int position) {
+        if (mInTextChange) {
+            // the paragraphs changed by the text change are recounted anyway
+            return;
+        }
+        int index = findParagraph(position);
+        int end = index + 1 < mSize ? mStarts[index + 1] : text.length();
+        recount(text, index, index, mStarts[index], end);
+        notifyListeners();
+    }
+
+    private void notifyListeners() {
+        if (mChanged) {
+            mChanged = false;
+            for (StatisticsListener listener : new ArrayList<>(mListeners)) {
+                listener.onStatisticsChanged(this);
+            }
+        }
+    }
+
+    // ****************************************** Counting *******************************************
+
+    /*
+     * Replace the paragraphs [first, last] by the paragraphs of text[start, end[.
+     *
+     * @return the number of new paragraphs
+     */
+    private int recount(CharSequence text, int first, int last, int start, int end) {
+        int oldChars = mCharCount, oldCharsNoSpaces = mCharNoSpacesCount, oldWords = mWordCount;
+        int oldImages = mImageCount, oldParagraphs = mParagraphCount;
+
+        for (int i = first; i <= last; i++) {
+            addToTotals(i, -1);
+        }
+
+        // split the range into paragraphs
+        int nrOfParagraphs = 0;
+        int[] starts = new int[4];
+        int pos = start;
+        do {
+            if (nrOfParagraphs == starts.length) {
+                starts = Arrays.copyOf(starts, nrOfParagraphs * 2);
+            }
+            starts[nrOfParagraphs++] = pos;
+            while (pos < end && text.charAt(pos) != '\n') {
+                pos++;
+            }
+            pos++;
+        } while (pos < end || (pos == end && end == text.length()));
+
+        replaceParagraphs(first, last, nrOfParagraphs);
+
+        Spanned spanned = text instanceof Spanned ? (Spanned) text : null;
+        for (int i = 0; i < nrOfParagraphs; i++) {
+            int index = first + i;
+            int paragraphStart = starts[i];
+            int paragraphEnd = i + 1 < nrOfParagraphs ? starts[i + 1] : end;
+            countParagraph(text, spanned, index, paragraphStart, paragraphEnd);
+            addToTotals(index, 1);
+        }
+
+        mChanged |= oldChars != mCharCount || oldCharsNoSpaces != mCharNoSpacesCount ||
+                    oldWords != mWordCount || oldImages != mImageCount || oldParagraphs != mParagraphCount;
+        return nrOfParagraphs;
+    }
+
+    private void countParagraph(CharSequence text, Spanned spanned, int index, int start, int end) {
+        int chars = 0;
+        int charsNoSpaces = 0;
+        int words = 0;
+        boolean inWord = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            boolean letterOrDigit = Character.isLetterOrDigit(c);
+            if (letterOrDigit && !inWord) {
+                words++;
+            }
+            inWord = letterOrDigit;
+            if (c != '\n' && c != ZERO_WIDTH_SPACE && c != OBJECT_REPLACEMENT) {
+                chars++;
+                if (!Character.isWhitespace(c)) {
+                    charsNoSpaces++;
+                }
+            }
+        }
+
+        int images = 0;
+        if (spanned != null) {
+            for (ImageSpan span : spanned.getSpans(start, end, ImageSpan.class)) {
+                int spanStart = spanned.getSpanStart(span);
+                if (spanStart >= start && spanStart < end) {
+                    images++;
+                }
+            }
+        }
+
+        mStarts[index] = start;
+        mChars[index] = chars;
+        mCharsNoSpaces[index] = charsNoSpaces;
+        mWords[index] = words;
+        mImages[index] = images;
+    }
+
+    private void addToTotals(int index, int sign) {
+        mCharCount += sign * mChars[index];
+        mCharNoSpacesCount += sign * mCharsNoSpaces[index];
+        mWordCount += sign * mWords[index];
+        mImageCount += sign * mImages[index];
+        if (mCharsNoSpaces[index] > 0 || mImages[index] > 0) {
+            mParagraphCount += sign;
+        }
+    }
+
+    /*
+     * Replace the paragraphs [first, last] by count (uninitialized) paragraphs.
+     */
+    private void replaceParagraphs(int first, int last, int count) {
+        int removed = last - first + 1;
+        int newSize = mSize - removed + count;
+        if (newSize > mStarts.length) {
+            int capacity = Math.max(newSize, mStarts.length * 2);
+            mStarts = Arrays.copyOf(mStarts, capacity);
+            mChars = Arrays.copyOf(mChars, capacity);
+            mCharsNoSpaces = Arrays.copyOf(mCharsNoSpaces, capacity);
+            mWords = Arrays.copyOf(mWords, capacity);
+            mImages = Arrays.copyOf(mImages, capacity);
+        }
+        int tail = mSize - last - 1;
+        for (int[] array : new int[][] {mStarts, mChars, mCharsNoSpaces, mWords, mImages}) {
+            System.arraycopy(array, last + 1, array, first + count, tail);
+        }
+        mSize = newSize;
+    }
+
+    /*
+     * @return the index of the paragraph containing the position (the last one for the end of the text)
+     */
+    private int findParagraph(int position) {
+        int low = 0;
+        int high = mSize - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (mStarts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+}
@@ -22,6 +22,7 @@ import android.content.res.Resources;
 import android.graphics.Color;
 import android.text.Layout;
 import android.util.AttributeSet;
+import android.util.SparseIntArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
@@ -33,6 +34,7 @@ import com.onegravity.colorpicker.ColorPickerListener;
 import com.onegravity.rteditor.R;
 import com.onegravity.rteditor.RTToolbar;
 import com.onegravity.rteditor.RTToolbarListener;
+import com.onegravity.rteditor.RTToolbarState;
 import com.onegravity.rteditor.effects.Effects;
 import com.onegravity.rteditor.fonts.FontManager;
 import com.onegravity.rteditor.fonts.RTTypeface;
@@ -46,6 +48,9 @@ import com.onegravity.rteditor.toolbar.spinner.SpinnerItemAdapter;
 import com.onegravity.rteditor.toolbar.spinner.SpinnerItems;
 import com.onegravity.rteditor.utils.Helper;
 
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -103,6 +108,22 @@ public class HorizontalRTToolbar extends LinearLayout implements RTToolbar, View
     private Spinner mBGColor;
     private SpinnerItemAdapter<? extends ColorSpinnerItem> mBGColorAdapter;
 
+    /*
+     * Map the spinner values to their positions so we don't have to search the spinner items
+     * (rebuilt when the items change)
+     */
+    private final Map<String, Integer> mFontPositions = new HashMap<>();    // key: lower case font name
+    private final SparseIntArray mFontSizePositions = new SparseIntArray();
+    private SparseIntArray mFontColorPositions;
+    private SparseIntArray mBGColorPositions;
+
+    /*
+     * The state applied by setState(RTToolbarState, RTToolbarState),
+     * Null if the views were changed since (by the user or by calling the individual setters)
+     */
+    private RTToolbarState mState;
+    private boolean mIsApplyingState;
+
     private int mCustomColorFont = Color.BLACK;
     private int mCustomColorBG = Color.BLACK;
 
@@ -192,6 +213,44 @@ public class HorizontalRTToolbar extends LinearLayout implements RTToolbar, View
                 R.layout.rte_toolbar_bgcolor_spinner,
                 R.layout.rte_toolbar_bgcolor_spinner_item,
                 getBGColorItems(), mBGColorListener);
+
+        // map spinner values to positions
+        if (mFont != null) {
+            for (int pos = 0; pos < mFontAdapter.getCount(); pos++) {
+                RTTypeface typeface = mFontAdapter.getItem(pos).getTypeface();
+                if (typeface != null && !mFontPositions.containsKey(getFontKey(typeface))) {
+                    mFontPositions.put(getFontKey(typeface), pos);
+                }
+            }
+        }
+        if (mFontSize != null) {
+            for (int pos = 0; pos < mFontSizeAdapter.getCount(); pos++) {
+                int size = mFontSizeAdapter.getItem(pos).getFontSize();
+                if (mFontSizePositions.indexOfKey(size) < 0) {
+                    mFontSizePositions.put(size, pos);
+                }
+            }
+        }
+    }
+
+    private static String getFontKey(RTTypeface typeface) {
+        // RTTypeface.equals compares the names ignoring the case
+        return typeface.getName().toLowerCase(Locale.US);
+    }
+
+    /**
+     * @return a map from color (without alpha) to the position of the first spinner item with that color
+     */
+    private SparseIntArray getColorPositions(SpinnerItemAdapter<? extends ColorSpinnerItem> adapter) {
+        SparseIntArray positions = new SparseIntArray();
+        for (int pos = 0; pos < adapter.getCount(); pos++) {
+            ColorSpinnerItem item = adapter.getItem(pos);
+            int color = item.getColor() & 0xffffff;
+            if (!item.isEmpty() && positions.indexOfKey(color) < 0) {
+                positions.put(color, pos);
+            }
+        }
+        return positions;
     }
 
     private RTToolbarImageButton initImageButton(int id) {
@@ -306,6 +365,7 @@ public class HorizontalRTToolbar extends LinearLayout implements RTToolbar, View
                 @Override
                 public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                     if (!mFirstCall.getAndSet(false) && dropDownNavAdapter.getSelectedItem() != position) {
+                        mState = null;
                         listener.onItemSelected(dropDownNavAdapter.getItem(position), position);
                     }
                     dropDownNavAdapter.setSelectedItem(position);
@@ -349,48 +409,80 @@ public class HorizontalRTToolbar extends LinearLayout implements RTToolbar, View
         return mId;
     }
 
+    /**
+     * Only the views whose values differ from the state applied before are updated.
+     */
+    @Override
+    public void setState(RTToolbarState state, RTToolbarState previous) {
+        mIsApplyingState = true;
+        try {
+            state.applyTo(this, mState);
+        } finally {
+            mIsApplyingState = false;
+        }
+        mState = state;
+    }
+
+    /*
+     * Views changed outside of setState(RTToolbarState, RTToolbarState) -> the next state needs to set all values
+     */
+    private void invalidateState() {
+        if (!mIsApplyingState) {
+            mState = null;
+        }
+    }
+
     @Override
     public void setBold(boolean enabled) {
+        invalidateState();
         if (mBold != null) mBold.setChecked(enabled);
     }
 
     @Override
     public void setItalic(boolean enabled) {
+        invalidateState();
         if (mItalic != null) mItalic.setChecked(enabled);
     }
 
     @Override
     public void setUnderline(boolean enabled) {
+        invalidateState();
         if (mUnderline != null) mUnderline.setChecked(enabled);
     }
 
     @Override
     public void setStrikethrough(boolean enabled) {
+        invalidateState();
         if (mStrikethrough != null) mStrikethrough.setChecked(enabled);
     }
 
     @Override
     public void setSuperscript(boolean enabled) {
+        invalidateState();
         if (mSuperscript != null) mSuperscript.setChecked(enabled);
     }
 
     @Override
     public void setSubscript(boolean enabled) {
+        invalidateState();
         if (mSubscript != null) mSubscript.setChecked(enabled);
     }
 
     @Override
     public void setBullet(boolean enabled) {
+        invalidateState();
         if (mBullet != null) mBullet.setChecked(enabled);
     }
 
     @Override
     public void setNumber(boolean enabled) {
+        invalidateState();
         if (mNumber != null) mNumber.setChecked(enabled);
     }
 
     @Override
     public void setAlignment(Layout.Alignment alignment) {
+        invalidateState();
         if (mAlignLeft != null) mAlignLeft.setChecked(alignment == Layout.Alignment.ALIGN_NORMAL);
         if (mAlignCenter != null)
             mAlignCenter.setChecked(alignment == Layout.Alignment.ALIGN_CENTER);
@@ -400,20 +492,16 @@ public class HorizontalRTToolbar extends LinearLayout implements RTToolbar, View
 
     @Override
     public void setFont(RTTypeface typeface) {
+        invalidateState();
         if (mFont != null) {
             if (typeface != null) {
-                for (int pos = 0; pos < mFontAdapter.getCount(); pos++) {
-                    FontSpinnerItem item = mFontAdapter.getItem(pos);
-                    if (typeface.equals(item.getTypeface())) {
-                        mFontAdapter.setSelectedItem(pos);
-                        mFont.setSelection(pos);
-                        break;
-                    }
+                Integer pos = mFontPositions.get(getFontKey(typeface));
+                if (pos != null) {
+                    setSelection(mFont, mFontAdapter, pos);
                 }
             }
             else {
-                mFontAdapter.setSelectedItem(0);
-                mFont.setSelection(0);
+                setSelection(mFont, mFontAdapter, 0);
             }
         }
     }
@@ -425,21 +513,17 @@ public class HorizontalRTToolbar extends LinearLayout implements RTToolbar, View
      */
     @Override
     public void setFontSize(int size) {
+        invalidateState();
         if (mFontSize != null) {
             if (size <= 0) {
                 mFontSizeAdapter.updateSpinnerTitle("");
-                mFontSizeAdapter.setSelectedItem(0);
-                mFontSize.setSelection(0);
+                setSelection(mFontSize, mFontSizeAdapter, 0);
             } else {
                 size = Helper.convertSpToPx(size);
                 mFontSizeAdapter.updateSpinnerTitle(Integer.toString(size));
-                for (int pos = 0; pos < mFontSizeAdapter.getCount(); pos++) {
-                    FontSizeSpinnerItem item = mFontSizeAdapter.getItem(pos);
-                    if (size == item.getFontSize()) {
-                        mFontSizeAdapter.setSelectedItem(pos);
-                        mFontSize.setSelection(pos);
-                        break;
-                    }
+                int pos = mFontSizePositions.get(size, -1);
+                if (pos >= 0) {
+                    setSelection(mFontSize, mFontSizeAdapter, pos);
                 }
             }
         }
@@ -447,39 +531,57 @@ public class HorizontalRTToolbar extends LinearLayout implements RTToolbar, View
 
     @Override
     public void setFontColor(int color) {
-        if (mFontColor != null) setFontColor(color, mFontColor, mFontColorAdapter);
+        invalidateState();
+        if (mFontColor != null) {
+            if (mFontColorPositions == null) {
+                mFontColorPositions = getColorPositions(mFontColorAdapter);
+            }
+            setFontColor(color, mFontColor, mFontColorAdapter, mFontColorPositions);
+        }
     }
 
     @Override
     public void setBGColor(int color) {
-        if (mBGColor != null) setFontColor(color, mBGColor, mBGColorAdapter);
+        invalidateState();
+        if (mBGColor != null) {
+            if (mBGColorPositions == null) {
+                mBGColorPositions = getColorPositions(mBGColorAdapter);
+            }
+            setFontColor(color, mBGColor, mBGColorAdapter, mBGColorPositions);
+        }
     }
 
     @Override
     public void removeFontColor() {
+        invalidateState();
         if (mFontColor != null) {
-            mFontColorAdapter.setSelectedItem(0);
-            mFontColor.setSelection(0);
+            setSelection(mFontColor, mFontColorAdapter, 0);
         }
     }
 
     @Override
     public void removeBGColor() {
+        invalidateState();
         if (mBGColor != null) {
-            mBGColorAdapter.setSelectedItem(0);
-            mBGColor.setSelection(0);
+            setSelection(mBGColor, mBGColorAdapter, 0);
         }
     }
 
-    private void setFontColor(int color, Spinner spinner, SpinnerItemAdapter<? extends ColorSpinnerItem> adapter) {
-        int color2Compare = color & 0xffffff;
-        for (int pos = 0; pos < adapter.getCount(); pos++) {
-            ColorSpinnerItem item = adapter.getItem(pos);
-            if (!item.isEmpty() && color2Compare == (item.getColor() & 0xffffff)) {
-                adapter.setSelectedItem(pos);
-                spinner.setSelection(pos);
-                break;
-            }
+    private void setFontColor(int color, Spinner spinner, SpinnerItemAdapter<? extends ColorSpinnerItem> adapter,
+                              SparseIntArray positions) {
+        int pos = positions.get(color & 0xffffff, -1);
+        if (pos >= 0) {
+            setSelection(spinner, adapter, pos);
+        }
+    }
+
+    /*
+     * Select a spinner item, the spinner isn't touched if the item is already selected.
+     */
+    private void setSelection(Spinner spinner, SpinnerItemAdapter<?> adapter, int pos) {
+        adapter.setSelectedItem(pos);
+        if (spinner.getSelectedItemPosition() != pos) {
+            spinner.setSelection(pos);
         }
     }
 
@@ -516,6 +618,7 @@ public class HorizontalRTToolbar extends LinearLayout implements RTToolbar, View
                     public void onColorChanged(int color) {
                         mCustomColorFont = color;
                         spinnerItem.setColor(color);
+                        mFontColorPositions = null;
                         mFontColorAdapter.notifyDataSetChanged();
                         if (mListener != null) {
                             mListener.onEffectSelected(Effects.FONTCOLOR, color);
@@ -541,6 +644,7 @@ public class HorizontalRTToolbar extends LinearLayout implements RTToolbar, View
                     public void onColorChanged(int color) {
                         mCustomColorBG = color;
                         spinnerItem.setColor(color);
+                        mBGColorPositions = null;
                         mBGColorAdapter.notifyDataSetChanged();
                         if (mListener != null) {
                             mListener.onEffectSelected(Effects.BGCOLOR, color);
@@ -559,6 +663,7 @@ public class HorizontalRTToolbar extends LinearLayout implements RTToolbar, View
     @Override
     public void onClick(View v) {
         if (mListener != null) {
+            mState = null;
 
             int id = v.getId();
             if (id == R.id.toolbar_bold) {
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps track of the parts of a text that were modified (text or spans).
+ * <p>
+ * Consumers (paragraph cleanup, export, statistics...) subscribe to the tracker and get their
+ * own Subscription. A Subscription accumulates the modified ranges since the consumer's last
+ * checkpoint, so the consumer can process just those ranges instead of the whole text.
+ * The ranges are kept up to date when text is inserted or deleted and overlapping or adjacent
+ * ranges are merged.
+ * <p>
+ * The RTEditText feeds the tracker from its TextWatcher and SpanWatcher callbacks
+ * (see RTEditText.getDirtyRangeTracker()).
+ */
+public class DirtyRangeTracker {
+
+    /*
+     * If a Subscription has more ranges than this, the closest ones are merged
+     */
+    private static final int MAX_NR_OF_RANGES = 32;
+
+    private final List<Subscription> mSubscriptions = new ArrayList<>();
+
+    // the last text change, used to tell moved spans (text inserted/deleted before them) from changed spans
+    private int mEditStart = -1;
+    private int mEditBefore;
+    private int mEditCount;
+
+    /**
+     * @return a new Subscription, initially without modified ranges
+     */
+    public synchronized Subscription subscribe() {
+        Subscription subscription = new Subscription();
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    public synchronized void unsubscribe(Subscription subscription) {
+        mSubscriptions.remove(subscription);
+    }
+
+    // ****************************************** Change Notifications *******************************************
+
+    /**
+     * The text in [start, start + before] was replaced by count characters
+     * (parameters as in TextWatcher.onTextChanged).
+     */
+    public synchronized void onTextChanged(int start, int before, int count) {
+        mEditStart = start;
+        mEditBefore = before;
+        mEditCount = count;
+        for (Subscription subscription : mSubscriptions) {
+            subscription.replace(start, before, count);
+        }
+    }
+
+    /**
+     * A span was added to or removed from [start, end].
+     */
+    public synchronized void onSpanChanged(int start, int end) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.add(start, end);
+        }
+    }
+
+    /**
+     * The last text change is complete, including the SpanWatcher notifications it caused.
+     * Span changes reported from now on are no longer taken for shifts caused by that change.
+     */
+    public synchronized void onTextChangeCompleted() {
+        mEditStart = -1;
+    }
+
+    /**
+     * A span was moved from [oldStart, oldEnd] to [newStart, newEnd].
+     * Spans that were only shifted by the last text change are ignored.
+     */
+    public synchronized void onSpanChanged(int oldStart, int oldEnd, int newStart, int newEnd) {
+        boolean moved = oldStart != newStart || oldEnd != newEnd;
+        if (mEditStart >= 0 && moved && map(oldStart) == newStart && map(oldEnd) == newEnd) {
+            return;
+        }
+        onSpanChanged(oldStart, oldEnd);
+        onSpanChanged(newStart, newEnd);
+    }
+
+    /**
+     * Mark the whole text as modified (e.g. after the text was replaced).
+     */
+    public synchronized void invalidate(int length) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.clear();
+            subscription.add(0, length);
+        }
+    }
+
+    private int map(int pos) {
+        int editEnd = mEditStart + mEditBefore;
+        return pos <= mEditStart ? pos :
+               pos >= editEnd ? pos + mEditCount - mEditBefore :
+               -1;
+    }
+
+    // ****************************************** Subscription *******************************************
+
+    /**
+     * The modified ranges of a single consumer.
+     * All positions are relative to the current text.
+     */
+    public class Subscription {
+        // start and end of the ranges, sorted by position, non-overlapping
+        private int[] mRanges = new int[16];
+        private int mCount;
+
+        /**
+         * @return True if anything was modified since the last checkpoint
+         */
+        public boolean isDirty() {
+            synchronized (DirtyRangeTracker.this) {
+                return mCount > 0;
+            }
+        }
+
+        /**
+         * @return the range covering all modified ranges or Null if nothing was modified
+         */
+        public Selection getDirtyRange() {
+            synchronized (DirtyRangeTracker.this) {
+                return mCount == 0 ? null : new Selection(mRanges[0], mRanges[mCount * 2 - 1]);
+            }
+        }
+
+        /**
+         * @return the modified character ranges since the last checkpoint
+         */
+        public List<Selection> getDirtyRanges() {
+            synchronized (DirtyRangeTracker.this) {
+                List<Selection> ranges = new ArrayList<>(mCount);
+                for (int i = 0; i < mCount; i++) {
+                    ranges.add(new Selection(mRanges[i * 2], mRanges[i * 2 + 1]));
+                }
+                return ranges;
+            }
+        }
+
+        /**
+         * @return the modified ranges expanded to paragraph boundaries (merged if they share a paragraph)
+         */
+        public List<Selection> getDirtyParagraphs(CharSequence text) {
+            synchronized (DirtyRangeTracker.this) {
+                List<Selection> paragraphs = new ArrayList<>(mCount);
+                int length = text.length();
+                for (int i = 0; i < mCount; i++) {
+                    int start = Math.min(mRanges[i * 2], length);
+                    int end = Math.min(mRanges[i * 2 + 1], length);
+                    while (start > 0 && text.charAt(start - 1) != '\n') {
+                        start--;
+                    }
+                    while (end < length && (end == start || text.charAt(end - 1) != '\n')) {
+                        end++;
+                    }
+
+                    Selection last = paragraphs.isEmpty() ? null : paragraphs.get(paragraphs.size() - 1);
+                    if (last != null && start <= last.end()) {
+                        paragraphs.set(paragraphs.size() - 1, new Selection(last.start(), Math.max(end, last.end())));
+                    } else {
+                        paragraphs.add(new Selection(start, end));
+                    }
+                }
+                return paragraphs;
+            }
+        }
+
+        /**
+         * Forget all modified ranges, the consumer has processed them.
+         */
+        public void checkpoint() {
+            synchronized (DirtyRangeTracker.this) {
+                clear();
+            }
+        }
+
+        private void clear() {
+            mCount = 0;
+        }
+
+        /*
+         * Shift the ranges after the change and add the changed range.
+         */
+        private void replace(int start, int before, int count) {
+            int oldEnd = start + before;
+            int diff = count - before;
+            for (int i = 0; i < mCount * 2; i++) {
+                int pos = mRanges[i];
+                mRanges[i] = pos <= start ? pos : pos >= oldEnd ? pos + diff : start + count;
+            }
+            add(start, start + count);
+        }
+
+        private void add(int start, int end) {
+            if (start > end) {
+                int tmp = start;
+                start = end;
+                end = tmp;
+            }
+
+            // find the first range ending at or after start
+            int first = 0;
+            while (first < mCount && mRanges[first * 2 + 1] < start) {
+                first++;
+            }
+            // find the first range starting after end
+            int last = first;
+            while (last < mCount && mRanges[last * 2] <= end) {
+                last++;
+            }
+
+            if (first < last) {
+                // merge with the overlapping/adjacent ranges [first, last[
+                start = Math.min(start, mRanges[first * 2]);
+                end = Math.max(end, mRanges[(last - 1) * 2 + 1]);
+                System.arraycopy(mRanges, last * 2, mRanges, (first + 1) * 2, (mCount - last) * 2);
+                mCount -= last - first - 1;
+            } else {
+                // insert a new range at position first
+                if (mCount * 2 == mRanges.length) {
+                    int[] ranges = new int[mRanges.length * 2];
+                    System.arraycopy(mRanges, 0, ranges, 0, mRanges.length);
+                    mRanges = ranges;
+                }
+                System.arraycopy(mRanges, first * 2, mRanges, (first + 1) * 2, (mCount - first) * 2);
+                mCount++;
+            }
+            mRanges[first * 2] = start;
+            mRanges[first * 2 + 1] = end;
+
+            if (mCount > MAX_NR_OF_RANGES) {
+                mergeClosestRanges();
+            }
+        }
+
+        private void mergeClosestRanges() {
+            int closest = 0;
+            int minGap = Integer.MAX_VALUE;
+            for (int i = 0; i < mCount - 1; i++) {
+                int gap = mRanges[(i + 1) * 2] - mRanges[i * 2 + 1];
+                if (gap < minGap) {
+                    minGap = gap;
+                    closest = i;
+                }
+            }
+            mRanges[closest * 2 + 1] = mRanges[(closest + 1) * 2 + 1];
+            System.arraycopy(mRanges, (closest + 2) * 2, mRanges, (closest + 1) * 2, (mCount - closest - 2) * 2);
+            mCount--;
+        }
+    }
+
+}
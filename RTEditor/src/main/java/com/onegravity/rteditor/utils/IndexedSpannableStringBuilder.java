@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor.utils;
+
+import android.text.Editable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+
+import com.onegravity.rteditor.utils.SpanIntervalTree.Node;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A SpannableStringBuilder for documents with lots of spans.
+ * <p>
+ * The text and the span positions are still managed by the SpannableStringBuilder so rendering
+ * and editing behave exactly the same. In addition the spans are indexed in one interval tree
+ * per span class and an identity map from span to tree node. getSpans(int, int, Class) only
+ * visits the trees of the requested kind and only the spans intersecting the query range
+ * (O(log n + k) instead of a scan over all spans of all kinds). Span positions are read through
+ * the SpannableStringBuilder's own identity map.
+ * <p>
+ * While the builder modifies its spans (text changes, setSpan, removeSpan) queries are answered by
+ * the SpannableStringBuilder, so watchers notified during the modification see consistent results.
+ * <p>
+ * Use the Factory with TextView.setEditableFactory() (see RTEditText.setUseSpanIndex(boolean)).
+ * Requires API 23+: before that getSpanStart/getSpanEnd are O(n) and every indexed query would
+ * pay for them.
+ */
+public class IndexedSpannableStringBuilder extends SpannableStringBuilder {
+
+    private static final Comparator<Node> ORDER_COMPARATOR = new Comparator<Node>() {
+        @Override
+        public int compare(Node lhs, Node rhs) {
+            return lhs.mOrder < rhs.mOrder ? -1 : lhs.mOrder == rhs.mOrder ? 0 : 1;
+        }
+    };
+
+    private static final SpanIntervalTree[] NO_TREES = new SpanIntervalTree[0];
+
+    /*
+     * All fields are null while the SpannableStringBuilder constructor runs,
+     * the overridden methods delegate to the SpannableStringBuilder until the index is built.
+     */
+    private Map<Object, Node> mNodes;
+    private Map<Class<?>, SpanIntervalTree> mTrees;
+    private Map<Class<?>, SpanIntervalTree[]> mTreesByKind;
+
+    // nodes detached from their tree during a modification, re-inserted once the modification is done
+    private List<Node> mPending;
+    private int mModificationDepth;
+
+    private int mNextOrder;
+    private int mRandom = 0x2545F491;
+
+    public IndexedSpannableStringBuilder() {
+        this("");
+    }
+
+    public IndexedSpannableStringBuilder(CharSequence text) {
+        this(text, 0, text.length());
+    }
+
+    public IndexedSpannableStringBuilder(CharSequence text, int start, int end) {
+        super(text, start, end);
+        mNodes = new IdentityHashMap<>();
+        mTrees = new HashMap<>();
+        mTreesByKind = new HashMap<>();
+        mPending = new ArrayList<>();
+        rebuildIndex();
+    }
+
+    // ****************************************** Factory *******************************************
+
+    public static class Factory extends Editable.Factory {
+        private static final Factory sInstance = new Factory();
+
+        public static Factory getInstance() {
+            return sInstance;
+        }
+
+        @Override
+        public Editable newEditable(CharSequence source) {
+            return new IndexedSpannableStringBuilder(source);
+        }
+    }
+
+    // ****************************************** Modifications *******************************************
+
+    @Override
+    public SpannableStringBuilder replace(int start, int end, CharSequence tb, int tbStart, int tbEnd) {
+        if (mNodes == null) {
+            return super.replace(start, end, tb, tbStart, tbEnd);
+        }
+
+        beginModification();
+        try {
+            // spans touching the replaced range can be moved, shrunk or removed
+            List<Node> touching = new ArrayList<>();
+            for (SpanIntervalTree tree : mTrees.values()) {
+                tree.collect(start, end, touching);
+            }
+            for (Node node : touching) {
+                detach(node);
+            }
+
+            SpannableStringBuilder result = super.replace(start, end, tb, tbStart, tbEnd);
+
+            // the spans of the inserted text were copied (or moved if they were spans of this text already)
+            if (tb instanceof Spanned && ((Spanned) tb).getSpans(tbStart, tbEnd, Object.class).length > 0) {
+                for (Object span : super.getSpans(start, start + tbEnd - tbStart, Object.class)) {
+                    Node node = mNodes.get(span);
+                    detach(node == null ? createNode(span) : node);
+                }
+            }
+
+            return result;
+        } finally {
+            endModification();
+        }
+    }
+
+    @Override
+    public void setSpan(Object what, int start, int end, int flags) {
+        if (mNodes == null) {
+            super.setSpan(what, start, end, flags);
+            return;
+        }
+
+        beginModification();
+        try {
+            Node node = mNodes.get(what);
+            detach(node == null ? createNode(what) : node);
+            super.setSpan(what, start, end, flags);
+        } finally {
+            endModification();
+        }
+    }
+
+    @Override
+    public void removeSpan(Object what) {
+        if (mNodes == null) {
+            super.removeSpan(what);
+            return;
+        }
+
+        beginModification();
+        try {
+            Node node = mNodes.get(what);
+            if (node != null) {
+                detach(node);
+            }
+            super.removeSpan(what);
+        } finally {
+            endModification();
+        }
+    }
+
+    @Override
+    public void clearSpans() {
+        if (mNodes == null) {
+            super.clearSpans();
+            return;
+        }
+
+        beginModification();
+        try {
+            super.clearSpans();
+        } finally {
+            endModification();
+        }
+        clearIndex();
+    }
+
+    private void beginModification() {
+        mModificationDepth++;
+    }
+
+    private void endModification() {
+        if (--mModificationDepth == 0) {
+            for (Node node : mPending) {
+                node.mDetached = false;
+                if (super.getSpanStart(node.mSpan) >= 0) {
+                    getTree(node.mSpan.getClass()).insert(node);
+                } else {
+                    mNodes.remove(node.mSpan);
+                }
+            }
+            mPending.clear();
+
+            for (SpanIntervalTree tree : mTrees.values()) {
+                if (tree.isStale()) {
+                    // spans were removed bypassing removeSpan(Object)
+                    rebuildIndex();
+                    break;
+                }
+            }
+        }
+    }
+
+    /*
+     * Remove the node from its tree (if any) till the current modification is done.
+     */
+    private void detach(Node node) {
+        SpanIntervalTree tree = node.getTree();
+        if (tree != null) {
+            tree.remove(node);
+        }
+        if (!node.mDetached) {
+            node.mDetached = true;
+            mPending.add(node);
+        }
+    }
+
+    // ****************************************** Query *******************************************
+
+    @Override
+    public <T> T[] getSpans(int queryStart, int queryEnd, Class<T> kind) {
+        if (mNodes == null || mModificationDepth > 0 || kind == null) {
+            return super.getSpans(queryStart, queryEnd, kind);
+        }
+
+        SpanIntervalTree[] trees = getTrees(kind);
+        List<Node> nodes = new ArrayList<>();
+        for (SpanIntervalTree tree : trees) {
+            tree.collect(queryStart, queryEnd, nodes);
+        }
+        for (SpanIntervalTree tree : trees) {
+            if (tree.isStale()) {
+                // spans were removed bypassing removeSpan(Object)
+                rebuildIndex();
+                return super.getSpans(queryStart, queryEnd, kind);
+            }
+        }
+
+        // same rules as SpannableStringBuilder: non-empty spans adjacent to a non-empty range aren't returned
+        int count = 0;
+        boolean hasPriority = false;
+        for (int i = 0, size = nodes.size(); i < size; i++) {
+            Node node = nodes.get(i);
+            int spanStart = super.getSpanStart(node.mSpan);
+            int spanEnd = super.getSpanEnd(node.mSpan);
+            if (spanStart == spanEnd || queryStart == queryEnd ||
+                (spanStart != queryEnd && spanEnd != queryStart)) {
+                nodes.set(count++, node);
+                hasPriority |= (super.getSpanFlags(node.mSpan) & Spanned.SPAN_PRIORITY) != 0;
+            }
+        }
+        List<Node> result = nodes.subList(0, count);
+
+        // spans are returned in insertion order, higher priority spans first
+        Collections.sort(result, ORDER_COMPARATOR);
+        if (hasPriority) {
+            Collections.sort(result, new Comparator<Node>() {
+                @Override
+                public int compare(Node lhs, Node rhs) {
+                    int lhsPriority = getSpanFlags(lhs.mSpan) & Spanned.SPAN_PRIORITY;
+                    int rhsPriority = getSpanFlags(rhs.mSpan) & Spanned.SPAN_PRIORITY;
+                    return lhsPriority > rhsPriority ? -1 : lhsPriority == rhsPriority ? 0 : 1;
+                }
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        T[] spans = (T[]) Array.newInstance(kind, count);
+        for (int i = 0; i < count; i++) {
+            spans[i] = kind.cast(result.get(i).mSpan);
+        }
+        return spans;
+    }
+
+    // ****************************************** Index *******************************************
+
+    private void rebuildIndex() {
+        clearIndex();
+        for (Object span : super.getSpans(0, length(), Object.class)) {
+            getTree(span.getClass()).insert(createNode(span));
+        }
+    }
+
+    private void clearIndex() {
+        mNodes.clear();
+        mTrees.clear();
+        mTreesByKind.clear();
+        mPending.clear();
+    }
+
+    private Node createNode(Object span) {
+        // xorshift to get the random treap priorities
+        mRandom ^= mRandom << 13;
+        mRandom ^= mRandom >>> 17;
+        mRandom ^= mRandom << 5;
+
+        Node node = new Node(span, mNextOrder++, mRandom);
+        mNodes.put(span, node);
+        return node;
+    }
+
+    private SpanIntervalTree getTree(Class<?> spanClass) {
+        SpanIntervalTree tree = mTrees.get(spanClass);
+        if (tree == null) {
+            tree = new SpanIntervalTree(this);
+            mTrees.put(spanClass, tree);
+            mTreesByKind.clear();
+        }
+        return tree;
+    }
+
+    /*
+     * @return the trees of all span classes assignable to the requested kind
+     */
+    private SpanIntervalTree[] getTrees(Class<?> kind) {
+        SpanIntervalTree[] trees = mTreesByKind.get(kind);
+        if (trees == null) {
+            List<SpanIntervalTree> list = new ArrayList<>();
+            for (Map.Entry<Class<?>, SpanIntervalTree> entry : mTrees.entrySet()) {
+                if (kind.isAssignableFrom(entry.getKey())) {
+                    list.add(entry.getValue());
+                }
+            }
+            trees = list.isEmpty() ? NO_TREES : list.toArray(new SpanIntervalTree[list.size()]);
+            mTreesByKind.put(kind, trees);
+        }
+        return trees;
+    }
+
+}
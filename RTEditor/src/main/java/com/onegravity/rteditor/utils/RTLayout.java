@@ -16,12 +16,8 @@
 
 package com.onegravity.rteditor.utils;
 
-import android.text.Spanned;
-
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * This class finds the Paragraphs in a Spanned text.
@@ -31,44 +27,194 @@ import java.util.regex.Pattern;
  * |_______________||________________||_____________|
  *
  * We need this for all the paragraph formatting (bullet points, indentation etc.).
- * While it's optimized for performance, it should still be used with caution.
+ * <p>
+ * The start positions of the paragraphs are kept in an int array with a gap at the position of the
+ * last change (like a gap buffer). Starts before the gap are absolute positions, starts after the gap
+ * are stored relative to the end of the text, so a text change only needs to update the paragraphs
+ * it touches (see onTextChanged(CharSequence, int, int, int)) and the others don't have to be moved.
+ * Offset to line queries use a binary search.
  */
 public class RTLayout implements Serializable {
     private static final long serialVersionUID = 2210969820444215580L;
 
-    private static final Pattern LINEBREAK_PATTERN = Pattern.compile("\\r\\n|\\r|\\n");
+    private static final int MIN_GAP_SIZE = 16;
+
+    // the start positions of the lines / paragraphs (line 0 isn't stored since it always starts at 0)
+    private int[] mStarts = new int[MIN_GAP_SIZE];
+    private int mGapStart;
+    private int mGapLength = MIN_GAP_SIZE;
 
     private int mNrOfLines = 0;
-    private final ArrayList<Paragraph> mParagraphs = new ArrayList<>();
+    private int mLength;
+
+    // Paragraph objects handed out by getParagraph(int), re-used as long as the paragraph doesn't change
+    private transient Paragraph[] mParagraphCache;
+    private transient ArrayList<Paragraph> mParagraphs;
+
+    public RTLayout(final CharSequence text) {
+        if (text != null) {
+            mNrOfLines = 1;
+            onTextChanged(text, 0, 0, text.length());
+        }
+    }
 
-    public RTLayout(final Spanned spanned) {
-        if (spanned != null) {
-            final String s = spanned.toString();
+    // ****************************************** Updates *******************************************
 
-            // find the line breaks and the according lines / paragraphs
+    /**
+     * Update the layout after text in [start, start + before] was replaced by count characters
+     * (parameters as in TextWatcher.onTextChanged).
+     *
+     * @param text The text after the change.
+     */
+    public void onTextChanged(final CharSequence text, final int start, final int before, final int count) {
+        if (mNrOfLines == 0) {
             mNrOfLines = 1;
-            final Matcher m = LINEBREAK_PATTERN.matcher(s);
-            int groupStart = 0;
-            while (m.find()) {
-                // the line feeds are part of the paragraph              isFirst          isLast
-                Paragraph paragraph = new Paragraph(groupStart, m.end(), mNrOfLines == 1, false);
-                mParagraphs.add(paragraph);
-                groupStart = m.end();
+        }
+
+        /*
+         * A line starts at p if text[p - 1] is a \n or a \r not followed by a \n.
+         * The line starts depending on the changed characters are [start, start + before] (old text)
+         * and [start, start + count] (new text). Line 0 isn't stored so positions start at 1.
+         */
+        final int from = Math.max(1, start);
+
+        // move the gap in front of the first affected line
+        moveGap(findFirstStartAtOrAfter(from));
+
+        // remove the affected lines
+        final int oldEnd = start + before;
+        final int physEnd = mStarts.length;
+        while (mGapStart + mGapLength < physEnd && mLength - mStarts[mGapStart + mGapLength] <= oldEnd) {
+            mGapLength++;
+            mNrOfLines--;
+        }
+
+        // the lines after the gap are relative to the end of the text and don't need to be updated
+        mLength += count - before;
+
+        // add the new lines
+        final int newEnd = Math.min(start + count, mLength);
+        for (int p = from; p <= newEnd; p++) {
+            if (isLineStart(text, p)) {
+                insertAtGap(p);
                 mNrOfLines++;
             }
+        }
+
+        mParagraphs = null;
+    }
+
+    private boolean isLineStart(CharSequence text, int pos) {
+        char c = text.charAt(pos - 1);
+        return c == '\n' || (c == '\r' && (pos == text.length() || text.charAt(pos) != '\n'));
+    }
+
+    private void insertAtGap(int start) {
+        if (mGapLength == 0) {
+            int[] starts = new int[mStarts.length * 2 + MIN_GAP_SIZE];
+            int after = mStarts.length - mGapStart;
+            System.arraycopy(mStarts, 0, starts, 0, mGapStart);
+            System.arraycopy(mStarts, mGapStart, starts, starts.length - after, after);
+            mGapLength = starts.length - mStarts.length;
+            mStarts = starts;
+        }
+        mStarts[mGapStart++] = start;
+        mGapLength--;
+    }
+
+    /*
+     * Move the gap to the stored line index (line - 1), converting the moved positions
+     * from absolute to relative to the end of the text or vice versa.
+     */
+    private void moveGap(int index) {
+        while (mGapStart > index) {
+            mGapStart--;
+            mStarts[mGapStart + mGapLength] = mLength - mStarts[mGapStart];
+        }
+        while (mGapStart < index) {
+            mStarts[mGapStart] = mLength - mStarts[mGapStart + mGapLength];
+            mGapStart++;
+        }
+    }
+
+    /*
+     * @return the index of the first stored line start >= pos (binary search)
+     */
+    private int findFirstStartAtOrAfter(int pos) {
+        int low = 0;
+        int high = mNrOfLines - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getStoredStart(mid) < pos) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int getStoredStart(int index) {
+        return index < mGapStart ? mStarts[index] : mLength - mStarts[index + mGapLength];
+    }
+
+    // ****************************************** Queries *******************************************
+
+    /**
+     * @return the number of lines / paragraphs
+     */
+    public int getLineCount() {
+        return mNrOfLines;
+    }
+
+    /**
+     * @return the length of the text this layout was computed for
+     */
+    public int getTextLength() {
+        return mLength;
+    }
 
-            // even an empty line after the last cr/lf is considered a paragraph
-            if (mParagraphs.size() < mNrOfLines) {
-                Paragraph paragraph = new Paragraph(groupStart, s.length(), mNrOfLines == 1, true);
-                mParagraphs.add(paragraph);
+    /**
+     * @return the Paragraph for a certain line.
+     * The same Paragraph object is returned as long as the paragraph doesn't change
+     * (the paragraphs after a change have moved so they are created again when they're requested).
+     */
+    public Paragraph getParagraph(final int line) {
+        int start = getLineStart(line);
+        int end = getLineEnd(line);
+        boolean isFirst = line == 0;
+        boolean isLast = line == mNrOfLines - 1;
+
+        if (mParagraphCache == null || mParagraphCache.length < mNrOfLines) {
+            Paragraph[] cache = new Paragraph[mNrOfLines * 2 + MIN_GAP_SIZE];
+            if (mParagraphCache != null) {
+                System.arraycopy(mParagraphCache, 0, cache, 0, mParagraphCache.length);
             }
+            mParagraphCache = cache;
+        }
+
+        Paragraph paragraph = mParagraphCache[line];
+        if (paragraph == null || paragraph.start() != start || paragraph.end() != end ||
+            paragraph.isFirst() != isFirst || paragraph.isLast() != isLast) {
+            paragraph = new Paragraph(start, end, isFirst, isLast);
+            mParagraphCache[line] = paragraph;
         }
+        return paragraph;
     }
 
     /**
      * @return all Paragraphs for this layout / spanned text.
+     * The list is re-used until the text changes, don't modify it.
+     * Creating it is O(lines), use getParagraph(int) to look up single paragraphs after a change.
      */
     public ArrayList<Paragraph> getParagraphs() {
+        if (mParagraphs == null) {
+            ArrayList<Paragraph> paragraphs = new ArrayList<>(mNrOfLines);
+            for (int line = 0; line < mNrOfLines; line++) {
+                paragraphs.add(getParagraph(line));
+            }
+            mParagraphs = paragraphs;
+        }
         return mParagraphs;
     }
 
@@ -76,20 +222,31 @@ public class RTLayout implements Serializable {
      * @return the line for a certain position in the spanned text
      */
     public int getLineForOffset(final int offset) {
-        int lineNr = 0;
-        while (lineNr < mNrOfLines && offset >= mParagraphs.get(lineNr).end()) {
-            lineNr++;
+        if (mNrOfLines == 0) {
+            return 0;
         }
-        return Math.min(Math.max(0, lineNr), mParagraphs.size() - 1);
+
+        // the number of line starts <= offset (line 0 starts at 0)
+        int low = 0;
+        int high = mNrOfLines - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getStoredStart(mid) <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
     }
 
     /**
      * @return the start position of a certain line in the spanned text
      */
     public int getLineStart(final int line) {
-        return mNrOfLines == 0 || line < 0 ? 0 :
-               line < mNrOfLines ? mParagraphs.get(line).start() :
-               mParagraphs.get(mNrOfLines - 1).end() - 1;
+        return mNrOfLines == 0 || line <= 0 ? 0 :
+               line < mNrOfLines ? getStoredStart(line - 1) :
+               mLength - 1;
     }
 
     /**
@@ -97,17 +254,17 @@ public class RTLayout implements Serializable {
      */
     public int getLineEnd(final int line) {
         return mNrOfLines == 0 || line < 0 ? 0 :
-               line < mNrOfLines ? mParagraphs.get(line).end() :
-               mParagraphs.get(mNrOfLines - 1).end() - 1;
+               line < mNrOfLines - 1 ? getStoredStart(line) :
+               line == mNrOfLines - 1 ? mLength :
+               mLength - 1;
     }
 
     @Override
     public String toString() {
         StringBuilder s = new StringBuilder();
-        int line = 1;
-        for (Paragraph p : mParagraphs) {
-            s.append(line++).append(": ").append(p.start()).append("-").append(p.end())
-                    .append(p.isLast() ? "" : ", ");
+        for (int line = 0; line < mNrOfLines; line++) {
+            s.append(line + 1).append(": ").append(getLineStart(line)).append("-").append(getLineEnd(line))
+                    .append(line == mNrOfLines - 1 ? "" : ", ");
         }
         return s.toString();
     }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015-2023 Emanuel Moecklin
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.onegravity.rteditor.utils;
+
+import android.text.Spanned;
+
+import java.util.List;
+
+/**
+ * An augmented interval tree (a treap ordered by span start) over the spans of a text.
+ * <p>
+ * The nodes don't store the span positions, they are read from the text when needed.
+ * Text changes map positions monotonically for all spans not touching the changed range,
+ * so the order of the tree and the augmentation (the node with the largest end in each subtree)
+ * stay valid as long as the spans touching a change are removed before and re-inserted after
+ * the change (see IndexedSpannableStringBuilder.replace).
+ * <p>
+ * If the tree encounters a span that is no longer attached to the text, it marks itself as stale
+ * and needs to be rebuilt.
+ */
+final class SpanIntervalTree {
+
+    static final class Node {
+        final Object mSpan;
+        final int mOrder;           // insertion order
+        private final int mPriority;  // heap priority of the treap
+        private Node mLeft;
+        private Node mRight;
+        private Node mParent;
+        private Node mMaxEnd;       // the node with the largest span end in this subtree
+        private SpanIntervalTree mTree;
+        boolean mDetached;          // removed from its tree during a modification of the text
+
+        Node(Object span, int order, int priority) {
+            mSpan = span;
+            mOrder = order;
+            mPriority = priority;
+        }
+
+        SpanIntervalTree getTree() {
+            return mTree;
+        }
+    }
+
+    private final Spanned mText;
+    private Node mRoot;
+    private boolean mStale;
+
+    SpanIntervalTree(Spanned text) {
+        mText = text;
+    }
+
+    /**
+     * @return True if the tree contains spans that were removed from the text without notice
+     */
+    boolean isStale() {
+        return mStale;
+    }
+
+    // ****************************************** Insert / Remove *******************************************
+
+    void insert(Node node) {
+        node.mTree = this;
+        node.mMaxEnd = node;
+
+        if (mRoot == null) {
+            mRoot = node;
+            return;
+        }
+
+        int start = start(node);
+        Node parent = mRoot;
+        while (true) {
+            if (start < start(parent)) {
+                if (parent.mLeft == null) {
+                    parent.mLeft = node;
+                    break;
+                }
+                parent = parent.mLeft;
+            } else {
+                if (parent.mRight == null) {
+                    parent.mRight = node;
+                    break;
+                }
+                parent = parent.mRight;
+            }
+        }
+        node.mParent = parent;
+        updateToRoot(parent);
+
+        while (node.mParent != null && node.mPriority > node.mParent.mPriority) {
+            rotateUp(node);
+        }
+    }
+
+    void remove(Node node) {
+        // rotate the node down until it has at most one child
+        while (node.mLeft != null && node.mRight != null) {
+            rotateUp(node.mLeft.mPriority > node.mRight.mPriority ? node.mLeft : node.mRight);
+        }
+
+        Node child = node.mLeft != null ? node.mLeft : node.mRight;
+        Node parent = node.mParent;
+        if (child != null) {
+            child.mParent = parent;
+        }
+        if (parent == null) {
+            mRoot = child;
+        } else if (parent.mLeft == node) {
+            parent.mLeft = child;
+        } else {
+            parent.mRight = child;
+        }
+        updateToRoot(parent);
+
+        node.mLeft = node.mRight = node.mParent = node.mMaxEnd = null;
+        node.mTree = null;
+    }
+
+    // ****************************************** Query *******************************************
+
+    /**
+     * Collect all nodes whose span intersects [start, end] (including spans ending at start
+     * and spans starting at end). The nodes are added in the order of their span start.
+     */
+    void collect(int start, int end, List<Node> result) {
+        collect(mRoot, start, end, result);
+    }
+
+    private void collect(Node node, int start, int end, List<Node> result) {
+        if (node == null || end(node.mMaxEnd) < start) {
+            return;
+        }
+        collect(node.mLeft, start, end, result);
+        if (start(node) > end) {
+            // all spans in the right subtree start after end too
+            return;
+        }
+        if (end(node) >= start) {
+            result.add(node);
+        }
+        collect(node.mRight, start, end, result);
+    }
+
+    // ****************************************** Tree Maintenance *******************************************
+
+    private void rotateUp(Node node) {
+        Node parent = node.mParent;
+        Node grandParent = parent.mParent;
+
+        if (parent.mLeft == node) {
+            parent.mLeft = node.mRight;
+            if (node.mRight != null) {
+                node.mRight.mParent = parent;
+            }
+            node.mRight = parent;
+        } else {
+            parent.mRight = node.mLeft;
+            if (node.mLeft != null) {
+                node.mLeft.mParent = parent;
+            }
+            node.mLeft = parent;
+        }
+        parent.mParent = node;
+
+        node.mParent = grandParent;
+        if (grandParent == null) {
+            mRoot = node;
+        } else if (grandParent.mLeft == parent) {
+            grandParent.mLeft = node;
+        } else {
+            grandParent.mRight = node;
+        }
+
+        update(parent);
+        update(node);
+    }
+
+    private void updateToRoot(Node node) {
+        while (node != null) {
+            update(node);
+            node = node.mParent;
+        }
+    }
+
+    private void update(Node node) {
+        Node maxEnd = node;
+        int max = end(node);
+        if (node.mLeft != null && end(node.mLeft.mMaxEnd) > max) {
+            maxEnd = node.mLeft.mMaxEnd;
+            max = end(maxEnd);
+        }
+        if (node.mRight != null && end(node.mRight.mMaxEnd) > max) {
+            maxEnd = node.mRight.mMaxEnd;
+        }
+        node.mMaxEnd = maxEnd;
+    }
+
+    private int start(Node node) {
+        int start = mText.getSpanStart(node.mSpan);
+        if (start < 0) {
+            mStale = true;
+        }
+        return start;
+    }
+
+    private int end(Node node) {
+        int end = mText.getSpanEnd(node.mSpan);
+        if (end < 0) {
+            mStale = true;
+        }
+        return end;
+    }
+
+}